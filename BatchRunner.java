@@ -0,0 +1,477 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs a script of catalog commands without the console menu, for scripted maintenance such as
+ * repricing, quantity corrections or delistings.
+ *
+ * The script holds one JSON object per line; blank lines and lines starting with # are ignored:
+ * <pre>
+ * {"op":"enter","id":42,"title":"Dune","author":"Frank Herbert","qty":5}
+ * {"op":"update","id":42,"qty":7}            only the fields given are changed
+ * {"op":"delete","id":42}
+ * {"op":"search","title":"dune","limit":20}  or "author"
+ * </pre>
+ *
+ * Consecutive commands of the same kind are sent as one JDBC batch of up to batchSize
+ * statements. A batch is also sent before a command of another kind, so commands always take
+ * effect in script order and a search sees every write before it. Writes are committed every
+ * commitInterval commands instead of one by one. Writes and the tombstones of deletes carry a
+ * {@link CatalogVersion#placeholder()} stamp until each transaction stamps one catalog version
+ * on all of them just before it commits, so it holds the version counter only for the stamp and
+ * the commit; the rows of a transaction share one version token.
+ *
+ * One JSON result line is written per command, in script order, once the transaction holding
+ * it has committed:
+ * <pre>
+ * {"line":1,"op":"enter","id":42,"status":"ok"}
+ * {"line":2,"op":"update","id":43,"status":"not_found"}
+ * {"line":3,"op":"search","status":"ok","books":[...]}
+ * {"line":4,"status":"error","message":"Unknown op: sell"}
+ * </pre>
+ * An enter whose id is taken is reported as "duplicate" (found with one IN query per batch, as
+ * in {@link BulkImporter}). A command that cannot be parsed is reported as "error" and skipped.
+ * If writing fails, the transaction is rolled back, its writes are reported as "rolled_back"
+ * and the script stops there.
+ *
+ * The runner is meant to run on its own, before any cache or index is loaded, so it notifies
+ * no {@link CatalogListener}.
+ */
+public class BatchRunner {
+
+    /**
+     * Counters describing a finished (or stopped) script.
+     */
+    public static final class Result {
+        long commands;
+        long ok;
+        long duplicate;
+        long notFound;
+        long errors;
+        long rolledBack;
+        long elapsedNanos;
+
+        public double commandsPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : commands * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d command(s): %d ok, %d duplicate, %d not found, %d error(s), "
+                    + "%d rolled back in %.1f s (%.0f commands/sec)",
+                    commands, ok, duplicate, notFound, errors, rolledBack, elapsedNanos / 1e9, commandsPerSecond());
+        }
+    }
+
+    private enum Op { ENTER, UPDATE, DELETE, SEARCH }
+
+    private static final String INSERT_SQL = "INSERT INTO books (id, title, author, qty, version, stamp) VALUES (?, ?, ?, ?, ?, ?)";
+    // Fields left out of an update command are passed as NULL and keep their value.
+    private static final String UPDATE_SQL = "UPDATE books SET title = COALESCE(?, title),"
+            + " author = COALESCE(?, author), qty = COALESCE(?, qty), version = ?, stamp = ? WHERE id = ?";
+    private static final String DELETE_SQL = "DELETE FROM books WHERE id = ?";
+
+    private static final OperationMetrics LOOKUP_METRICS = Metrics.operation("batch.existingIds");
+    private static final OperationMetrics ENTER_METRICS = Metrics.operation("batch.enter");
+    private static final OperationMetrics UPDATE_METRICS = Metrics.operation("batch.update");
+    private static final OperationMetrics DELETE_METRICS = Metrics.operation("batch.delete");
+    private static final OperationMetrics COMMIT_METRICS = Metrics.operation("batch.commit");
+
+    /**
+     * One line of the script and, once it ran, its outcome.
+     */
+    private static final class Command {
+        final long line;
+        final Op op;
+        final int id;
+        final String title;
+        final String author;
+        final Integer qty;
+        final int limit;
+        String status;
+        String message;
+        List<Book> found;
+
+        Command(long line, Op op, int id, String title, String author, Integer qty, int limit) {
+            this.line = line;
+            this.op = op;
+            this.id = id;
+            this.title = title;
+            this.author = author;
+            this.qty = qty;
+            this.limit = limit;
+        }
+
+        boolean isWrite() {
+            return op != null && op != Op.SEARCH;
+        }
+    }
+
+    private final BookStatements statements;
+    private final Connection connection;
+    private final int batchSize;
+    private final int commitInterval;
+    // Placeholder stamp and version token of the writes of the open transaction, 0 until its
+    // first batch is sent.
+    private long placeholder;
+    private long token;
+
+    /**
+     * @param statements     The statements of the established SQL connection, used for searches;
+     *                       the connection's autocommit mode is restored afterwards.
+     * @param batchSize      Commands per JDBC batch.
+     * @param commitInterval Writes per transaction, rounded up to whole batches.
+     */
+    public BatchRunner(BookStatements statements, int batchSize, int commitInterval) {
+        this.statements = statements;
+        this.connection = statements.getConnection();
+        this.batchSize = Math.max(1, batchSize);
+        this.commitInterval = Math.max(this.batchSize, commitInterval);
+    }
+
+    /**
+     * Creates a runner configured by ebookstore.batch.batchSize (default 500) and
+     * ebookstore.batch.commitInterval (default 5000).
+     */
+    public static BatchRunner fromSystemProperties(BookStatements statements) {
+        return new BatchRunner(statements,
+                Integer.getInteger("ebookstore.batch.batchSize", 500),
+                Integer.getInteger("ebookstore.batch.commitInterval", 5000));
+    }
+
+    /**
+     * Runs every command of the script and writes one result line per command.
+     * @param script The commands, one JSON object per line.
+     * @param out    Where the results go; flushed after every transaction.
+     * @return The counters of the run.
+     * @throws IOException  If the script cannot be read or the results cannot be written.
+     * @throws SQLException If a write fails; its transaction was rolled back and reported.
+     */
+    public Result run(BufferedReader script, Writer out) throws IOException, SQLException {
+        Result result = new Result();
+        long start = System.nanoTime();
+        boolean autoCommit = connection.getAutoCommit();
+        // Commands not yet written out, in script order, and the writes not yet sent.
+        List<Command> uncommitted = new ArrayList<>();
+        List<Command> batch = new ArrayList<>();
+        long sinceCommit = 0;
+
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement(INSERT_SQL);
+             PreparedStatement update = connection.prepareStatement(UPDATE_SQL);
+             PreparedStatement delete = connection.prepareStatement(DELETE_SQL);
+             PreparedStatement tombstone = connection.prepareStatement(CatalogVersion.TOMBSTONE_IF_EXISTS)) {
+            try {
+                long lineNumber = 0;
+                String line;
+                while ((line = script.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    Command command = parse(lineNumber, line);
+                    // The batch before it goes first, and may commit and write out its results
+                    // before this command is listed among them.
+                    if (command.op != null && !batch.isEmpty() && batch.get(0).op != command.op) {
+                        send(batch, insert, update, delete, tombstone);
+                        sinceCommit = commitIfDue(sinceCommit, out, uncommitted, result);
+                    }
+                    uncommitted.add(command);
+                    if (command.op == null) {
+                        continue;
+                    }
+                    if (command.op == Op.SEARCH) {
+                        search(command);
+                        if (sinceCommit == 0) {
+                            // Nothing is waiting for a commit, so the result can go out now.
+                            write(out, uncommitted, result);
+                        }
+                        continue;
+                    }
+                    batch.add(command);
+                    sinceCommit++;
+                    if (batch.size() >= batchSize) {
+                        send(batch, insert, update, delete, tombstone);
+                        sinceCommit = commitIfDue(sinceCommit, out, uncommitted, result);
+                    }
+                }
+                send(batch, insert, update, delete, tombstone);
+                commit(sinceCommit);
+                write(out, uncommitted, result);
+            } catch (SQLException e) {
+                connection.rollback();
+                placeholder = 0;
+                for (Command command : uncommitted) {
+                    if (command.isWrite()) {
+                        command.status = "rolled_back";
+                        command.message = e.getMessage();
+                    }
+                }
+                write(out, uncommitted, result);
+                throw e;
+            }
+        } finally {
+            connection.setAutoCommit(autoCommit);
+            result.elapsedNanos = System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    /**
+     * Commits once commitInterval writes were sent, whether their last batch filled up or was
+     * sent early because the next command is of another kind, and writes out their results.
+     * @return The writes since the last commit afterwards.
+     */
+    private long commitIfDue(long sinceCommit, Writer out, List<Command> uncommitted, Result result)
+            throws IOException, SQLException {
+        if (sinceCommit < commitInterval) {
+            return sinceCommit;
+        }
+        commit(sinceCommit);
+        write(out, uncommitted, result);
+        return 0;
+    }
+
+    /**
+     * Parses one script line.
+     * @return The command, or a command without op whose status is "error" if the line is invalid.
+     */
+    private static Command parse(long line, String text) {
+        try {
+            Map<String, Object> fields = Json.parseObject(text);
+            Object op = fields.get("op");
+            if (!(op instanceof String)) {
+                throw new IllegalArgumentException("Expected \"op\": enter, update, delete or search");
+            }
+            switch ((String) op) {
+                case "enter":
+                    Integer qty = integer(fields, "qty");
+                    if (qty == null || !(fields.get("title") instanceof String)
+                            || !(fields.get("author") instanceof String)) {
+                        throw new IllegalArgumentException("enter needs id, title, author and qty");
+                    }
+                    return new Command(line, Op.ENTER, id(fields), (String) fields.get("title"),
+                            (String) fields.get("author"), qty, 0);
+                case "update":
+                    Command update = new Command(line, Op.UPDATE, id(fields), string(fields, "title"),
+                            string(fields, "author"), integer(fields, "qty"), 0);
+                    if (update.title == null && update.author == null && update.qty == null) {
+                        throw new IllegalArgumentException("update needs title, author or qty");
+                    }
+                    return update;
+                case "delete":
+                    return new Command(line, Op.DELETE, id(fields), null, null, null, 0);
+                case "search":
+                    String title = string(fields, "title");
+                    String author = string(fields, "author");
+                    if ((title == null) == (author == null)) {
+                        throw new IllegalArgumentException("search needs either title or author");
+                    }
+                    Integer limit = integer(fields, "limit");
+                    return new Command(line, Op.SEARCH, 0, title, author, null,
+                            limit == null ? 20 : Math.max(1, limit));
+                default:
+                    throw new IllegalArgumentException("Unknown op: " + op);
+            }
+        } catch (IllegalArgumentException e) {
+            Command invalid = new Command(line, null, 0, null, null, null, 0);
+            invalid.status = "error";
+            invalid.message = e.getMessage();
+            return invalid;
+        }
+    }
+
+    private static int id(Map<String, Object> fields) {
+        Integer id = integer(fields, "id");
+        if (id == null) {
+            throw new IllegalArgumentException("Expected \"id\" (number)");
+        }
+        return id;
+    }
+
+    private static Integer integer(Map<String, Object> fields, String name) {
+        Object value = fields.get(name);
+        if (value == null) {
+            return null;
+        }
+        // A long outside the int range would wrap around to another id or quantity.
+        if (!(value instanceof Long) || (Long) value < Integer.MIN_VALUE || (Long) value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Expected \"" + name + "\" to be a whole number within "
+                    + Integer.MIN_VALUE + " and " + Integer.MAX_VALUE);
+        }
+        return ((Long) value).intValue();
+    }
+
+    private static String string(Map<String, Object> fields, String name) {
+        Object value = fields.get(name);
+        if (value != null && !(value instanceof String)) {
+            throw new IllegalArgumentException("Expected \"" + name + "\" to be a string");
+        }
+        return (String) value;
+    }
+
+    private void search(Command command) throws SQLException {
+        command.found = command.title != null
+                ? statements.searchTitle(command.title, Integer.MIN_VALUE, command.limit)
+                : statements.searchAuthor(command.author, Integer.MIN_VALUE, command.limit);
+        command.status = "ok";
+    }
+
+    /**
+     * Sends the pending writes, which are all of one kind, as one JDBC batch and records the
+     * outcome of each.
+     */
+    private void send(List<Command> batch, PreparedStatement insert, PreparedStatement update,
+                      PreparedStatement delete, PreparedStatement tombstone) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (placeholder == 0) {
+            placeholder = CatalogVersion.placeholder();
+            token = CatalogVersion.token();
+        }
+        Op op = batch.get(0).op;
+        PreparedStatement stmt = op == Op.ENTER ? insert : op == Op.UPDATE ? update : delete;
+        OperationMetrics metrics = op == Op.ENTER ? ENTER_METRICS : op == Op.UPDATE ? UPDATE_METRICS : DELETE_METRICS;
+        List<Command> sent = new ArrayList<>(batch.size());
+        if (op == Op.ENTER) {
+            List<Book> books = new ArrayList<>(batch.size());
+            for (Command command : batch) {
+                books.add(new Book(command.id, command.title, command.author, command.qty));
+            }
+            Set<Integer> existing = BulkImporter.existingIds(connection, books, LOOKUP_METRICS);
+            Set<Integer> seen = new HashSet<>();
+            for (Command command : batch) {
+                // Ids repeated inside the batch are treated like ids already in the table.
+                if (existing.contains(command.id) || !seen.add(command.id)) {
+                    command.status = "duplicate";
+                    continue;
+                }
+                stmt.setInt(1, command.id);
+                stmt.setString(2, command.title);
+                stmt.setString(3, command.author);
+                stmt.setInt(4, command.qty);
+                stmt.setLong(5, token);
+                stmt.setLong(6, placeholder);
+                stmt.addBatch();
+                sent.add(command);
+            }
+        } else {
+            for (Command command : batch) {
+                if (op == Op.UPDATE) {
+                    stmt.setString(1, command.title);
+                    stmt.setString(2, command.author);
+                    if (command.qty != null) {
+                        stmt.setInt(3, command.qty);
+                    } else {
+                        stmt.setNull(3, Types.INTEGER);
+                    }
+                    stmt.setLong(4, token);
+                    stmt.setLong(5, placeholder);
+                    stmt.setInt(6, command.id);
+                } else {
+                    tombstone.setLong(1, placeholder);
+                    tombstone.setInt(2, command.id);
+                    tombstone.addBatch();
+                    stmt.setInt(1, command.id);
+                }
+                stmt.addBatch();
+                sent.add(command);
+            }
+        }
+        batch.clear();
+        if (sent.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int[] counts;
+        try {
+            if (op == Op.DELETE) {
+                tombstone.executeBatch();
+            }
+            counts = stmt.executeBatch();
+        } catch (SQLException e) {
+            metrics.error(System.nanoTime() - start);
+            throw e;
+        }
+        metrics.record(System.nanoTime() - start, sent.size());
+        for (int i = 0; i < sent.size(); i++) {
+            // Drivers may answer SUCCESS_NO_INFO for rewritten batches; the row was then written.
+            int count = i < counts.length ? counts[i] : Statement.SUCCESS_NO_INFO;
+            sent.get(i).status = count == 0 ? "not_found" : "ok";
+        }
+    }
+
+    private void commit(long writes) throws SQLException {
+        if (writes == 0 || placeholder == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            CatalogVersion.stamp(connection, placeholder);
+            connection.commit();
+        } catch (SQLException e) {
+            COMMIT_METRICS.error(System.nanoTime() - start);
+            throw e;
+        }
+        COMMIT_METRICS.record(System.nanoTime() - start, writes);
+        placeholder = 0;
+    }
+
+    /**
+     * Writes the results of the commands, counts them and clears the list.
+     */
+    private static void write(Writer out, List<Command> commands, Result result) throws IOException {
+        StringBuilder json = new StringBuilder(128);
+        for (Command command : commands) {
+            json.setLength(0);
+            json.append("{\"line\":").append(command.line);
+            if (command.op != null) {
+                json.append(",\"op\":\"").append(command.op.name().toLowerCase()).append('"');
+            }
+            if (command.isWrite()) {
+                json.append(",\"id\":").append(command.id);
+            }
+            json.append(",\"status\":\"").append(command.status).append('"');
+            if (command.message != null) {
+                json.append(",\"message\":");
+                Json.writeString(json, command.message);
+            }
+            if (command.found != null) {
+                json.append(",\"books\":").append(Json.books(command.found));
+            }
+            out.write(json.append('\n').toString());
+            count(command.status, result);
+        }
+        commands.clear();
+        out.flush();
+    }
+
+    private static void count(String status, Result result) {
+        result.commands++;
+        switch (status) {
+            case "ok":
+                result.ok++;
+                break;
+            case "duplicate":
+                result.duplicate++;
+                break;
+            case "not_found":
+                result.notFound++;
+                break;
+            case "rolled_back":
+                result.rolledBack++;
+                break;
+            default:
+                result.errors++;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * An immutable snapshot of one row of the books table.
+ *
+ * The version is the random token of the last write to the row (see {@link CatalogVersion}), or
+ * 0 for books that did not come from a versioned row, such as parsed input or embedded storage.
+ */
+public final class Book {
+
+    private final int id;
+    private final String title;
+    private final String author;
+    private final int qty;
+    private final long version;
+
+    public Book(int id, String title, String author, int qty) {
+        this(id, title, author, qty, 0);
+    }
+
+    public Book(int id, String title, String author, int qty, long version) {
+        this.id = id;
+        this.title = title;
+        this.author = author;
+        this.qty = qty;
+        this.version = version;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public int getQty() {
+        return qty;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns a copy of this book with a different id.
+     */
+    public Book withId(int newId) {
+        return new Book(newId, title, author, qty, version);
+    }
+
+    /**
+     * Returns a copy of this book with a different title.
+     */
+    public Book withTitle(String newTitle) {
+        return new Book(id, newTitle, author, qty, version);
+    }
+
+    /**
+     * Returns a copy of this book with a different author.
+     */
+    public Book withAuthor(String newAuthor) {
+        return new Book(id, title, newAuthor, qty, version);
+    }
+
+    /**
+     * Returns a copy of this book with a different quantity.
+     */
+    public Book withQty(int newQty) {
+        return new Book(id, title, author, newQty, version);
+    }
+
+    /**
+     * Returns a copy of this book with the version token of another write.
+     */
+    public Book withVersion(long newVersion) {
+        return new Book(id, title, author, qty, newVersion);
+    }
+
+    @Override
+    public String toString() {
+        return "Book[id=" + id + ", title=" + title + ", author=" + author + ", qty=" + qty
+                + ", version=" + version + "]";
+    }
+}
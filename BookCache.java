@@ -0,0 +1,263 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * An in-memory, size-bounded cache of the books table keyed by book id.
+ *
+ * The cache is warmed from the database at startup and kept up to date by the write paths
+ * (write-through), since every insert, update and delete goes through this process.
+ * When the whole catalog fits, the cache is "complete": a miss then proves that an id does
+ * not exist and catalog pages can be served without touching the database at all.
+ * Once an entry has to be evicted (least recently used first), the cache only answers
+ * point lookups and everything else falls back to the database.
+ */
+public class BookCache implements CatalogListener {
+
+    // Books read per page while warming.
+    private static final int WARM_CHUNK = 1000;
+
+    private final int capacity;
+
+    // Access-ordered so that iteration starts at the least recently used entry.
+    private final LinkedHashMap<Integer, Book> entries;
+
+    // Sorted view of the same entries, only maintained while the cache is complete.
+    private final TreeMap<Integer, Book> sorted = new TreeMap<>();
+
+    private boolean complete = false;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a cache holding at most the given number of books.
+     * @param capacity The maximum number of books kept in memory.
+     */
+    public BookCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Integer, Book>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Book> eldest) {
+                if (size() <= BookCache.this.capacity) {
+                    return false;
+                }
+                evictions++;
+                // With an entry gone, a miss no longer proves the id is absent.
+                complete = false;
+                sorted.clear();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Creates the cache configured by -Debookstore.cache.size=N, or returns null when caching is off.
+     * @return A new cache, or null if the cache size is not set or not positive.
+     */
+    public static BookCache fromSystemProperties() {
+        int size = Integer.getInteger("ebookstore.cache.size", 0);
+        return size > 0 ? new BookCache(size) : null;
+    }
+
+    /**
+     * Loads books in id order until the catalog is exhausted or the cache is full.
+     * The cache is marked complete only if the whole catalog was loaded.
+     * @param repository Where the catalog is stored.
+     * @throws SQLException If the catalog cannot be read.
+     */
+    public synchronized void warm(BookRepository repository) throws SQLException {
+        entries.clear();
+        sorted.clear();
+        boolean fits = true;
+        int fromId = Integer.MIN_VALUE;
+        while (true) {
+            // Ask for one book past the capacity so we can tell whether the catalog fits.
+            int limit = Math.min(WARM_CHUNK, capacity + 1 - entries.size());
+            List<Book> chunk = repository.page(fromId, limit);
+            for (Book book : chunk) {
+                if (entries.size() == capacity) {
+                    fits = false;
+                    break;
+                }
+                entries.put(book.getId(), book);
+                sorted.put(book.getId(), book);
+            }
+            if (!fits || chunk.size() < limit || chunk.get(chunk.size() - 1).getId() == Integer.MAX_VALUE) {
+                break;
+            }
+            fromId = chunk.get(chunk.size() - 1).getId() + 1;
+        }
+        complete = fits;
+        if (!complete) {
+            sorted.clear();
+        }
+    }
+
+    /**
+     * Loads books from an in-memory copy of the catalog, such as a {@link CatalogSnapshot}, in
+     * the same way as reading it from the repository.
+     * @param catalog Every book in the catalog, in id order.
+     */
+    public synchronized void warm(Iterable<Book> catalog) {
+        entries.clear();
+        sorted.clear();
+        complete = false;
+        for (Book book : catalog) {
+            if (entries.size() == capacity) {
+                sorted.clear();
+                return;
+            }
+            entries.put(book.getId(), book);
+            sorted.put(book.getId(), book);
+        }
+        complete = true;
+    }
+
+    /**
+     * Returns true if the cache holds every book in the catalog.
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Looks up a book by id.
+     * @param id The book id.
+     * @return The cached book, or null if it is not cached (see {@link #isComplete()}).
+     */
+    public synchronized Book get(int id) {
+        Book book = entries.get(id);
+        if (book != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return book;
+    }
+
+    /**
+     * Adds or replaces a book after it was written to, or read from, the database.
+     * @param book The current state of the book.
+     */
+    public synchronized void put(Book book) {
+        entries.put(book.getId(), book);
+        if (complete) {
+            sorted.put(book.getId(), book);
+        }
+    }
+
+    /**
+     * Removes a book after it was deleted from the database.
+     * @param id The id of the deleted book.
+     */
+    public synchronized void remove(int id) {
+        entries.remove(id);
+        sorted.remove(id);
+    }
+
+    @Override
+    public void bookSaved(Book book) {
+        put(book);
+    }
+
+    @Override
+    public void bookDeleted(int id) {
+        remove(id);
+    }
+
+    @Override
+    public synchronized void quantityChanged(int id, int qty) {
+        // Bypasses get() so that stock changes are not counted as cache hits or misses.
+        Book book = entries.get(id);
+        if (book != null) {
+            put(book.withQty(qty));
+        }
+    }
+
+    /**
+     * Returns every cached book in id order, or null if the cache is not complete.
+     * Used to build other in-memory structures without scanning the database again.
+     */
+    public synchronized List<Book> snapshot() {
+        return complete ? new ArrayList<>(sorted.values()) : null;
+    }
+
+    /**
+     * Returns up to limit books with an id greater than or equal to fromId, in id order.
+     * @return The page, or null if the cache is not complete and cannot answer range queries.
+     */
+    public synchronized List<Book> page(int fromId, int limit) {
+        if (!complete) {
+            misses++;
+            return null;
+        }
+        hits++;
+        List<Book> page = new ArrayList<>(Math.min(limit, sorted.size()));
+        Iterator<Book> it = sorted.tailMap(fromId, true).values().iterator();
+        while (it.hasNext() && page.size() < limit) {
+            page.add(it.next());
+        }
+        return page;
+    }
+
+    /**
+     * Returns up to limit ids smaller than beforeId, in descending order.
+     * @return The ids, or null if the cache is not complete and cannot answer range queries.
+     */
+    public synchronized List<Integer> idsBefore(int beforeId, int limit) {
+        if (!complete) {
+            misses++;
+            return null;
+        }
+        hits++;
+        NavigableMap<Integer, Book> head = sorted.headMap(beforeId, false).descendingMap();
+        if (head.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Integer> ids = new ArrayList<>(limit);
+        for (Integer id : head.keySet()) {
+            if (ids.size() == limit) {
+                break;
+            }
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns a one-line summary of the cache counters, used to size the cache.
+     */
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        double hitRate = lookups == 0 ? 0.0 : (100.0 * hits) / lookups;
+        return String.format("Cache: %d/%d books%s, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                entries.size(), capacity, complete ? " (complete)" : "", hits, misses, hitRate, evictions);
+    }
+}
@@ -0,0 +1,105 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Where the catalog is stored. The console works only through this interface, so the same
+ * operations run against MySQL ({@link BookStatements}) or an embedded file ({@link MappedBookRepository}).
+ *
+ * Failures of either backend are reported as SQLException; a duplicate id is an exception for
+ * which {@link BookStatements#isDuplicateKey(SQLException)} returns true.
+ */
+public interface BookRepository extends AutoCloseable {
+
+    /**
+     * @return The book with this id, or null if there is none.
+     */
+    Book findById(int id) throws SQLException;
+
+    /**
+     * Returns up to limit books with an id greater than or equal to fromId, in id order.
+     */
+    List<Book> page(int fromId, int limit) throws SQLException;
+
+    /**
+     * Returns up to limit ids smaller than beforeId, in descending order.
+     */
+    List<Integer> idsBefore(int beforeId, int limit) throws SQLException;
+
+    /**
+     * Finds up to limit books with an id greater than or equal to fromId, in id order, whose
+     * title contains the text, ignoring case, apostrophes and commas. The next page of results
+     * starts after the last id of the previous one.
+     */
+    List<Book> searchTitle(String title, int fromId, int limit) throws SQLException;
+
+    /**
+     * Finds up to limit books with an id greater than or equal to fromId, in id order, whose
+     * author contains the text, ignoring case.
+     */
+    List<Book> searchAuthor(String author, int fromId, int limit) throws SQLException;
+
+    /**
+     * Counts the books {@link #searchTitle(String, int, int)} would find.
+     */
+    int countTitle(String title) throws SQLException;
+
+    /**
+     * Counts the books {@link #searchAuthor(String, int, int)} would find.
+     */
+    int countAuthor(String author) throws SQLException;
+
+    /**
+     * Inserts a book.
+     * @return False if a book with the same id already exists.
+     */
+    boolean insert(Book book) throws SQLException;
+
+    /**
+     * Replaces the title, author and quantity of a book, whatever they currently are.
+     * @return False if no book has this id.
+     */
+    boolean update(Book book) throws SQLException;
+
+    /**
+     * Replaces a book (including its id) only if it was not changed since the caller read it:
+     * with JDBC the row must still have the caller's version, in the embedded file the same
+     * values (null strings match empty ones).
+     * @return False if the book was changed or deleted in the meantime.
+     * @throws SQLException If the new id is taken by another book, or the write fails.
+     */
+    boolean updateIfUnchanged(Book expected, Book updated) throws SQLException;
+
+    /**
+     * Deletes a book, whatever its current state.
+     * @return False if no book has this id.
+     */
+    boolean delete(int id) throws SQLException;
+
+    /**
+     * Deletes a book only if it was not changed since the caller read it, like
+     * {@link #updateIfUnchanged(Book, Book)}.
+     * @return False if the book was changed or deleted in the meantime.
+     */
+    boolean deleteIfUnchanged(Book expected) throws SQLException;
+
+    /**
+     * Adds a change to the quantity of several books, all or nothing. A change that would
+     * make a quantity negative is skipped.
+     * @param ids    The book ids.
+     * @param deltas The change for each id.
+     * @return The update count for each id: 0 if the book is gone or the change was skipped.
+     */
+    int[] addToQty(List<Integer> ids, List<Integer> deltas) throws SQLException;
+
+    /**
+     * Returns the version token written on the rows of the last successful write, so the
+     * caller can pass on the book as it is now stored; 0 if the storage keeps no versions.
+     */
+    long lastVersion();
+
+    /**
+     * Releases the storage: closes the connection or unmaps the file.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,595 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The JDBC {@link BookRepository}: the book operations of one database connection, backed by a
+ * fixed set of prepared statements.
+ *
+ * Each statement is prepared the first time it is used and then reused for the lifetime of
+ * the connection, so the SQL is parsed once per connection rather than once per call.
+ * Inserts detect an existing id from the primary key violation instead of checking first.
+ * Every write gives the row a new random version token and marks it pending for the next
+ * {@link CatalogVersion} stamp, which is what {@link ChangeFeed} pulls. A write that touches one
+ * row is a single autocommitted statement; deletes, which also leave a tombstone, and moves to a
+ * new id run in a short transaction. The *IfUnchanged variants only touch the row when it still
+ * has the version the caller read, so a concurrent change, made by this instance or any other,
+ * is never overwritten.
+ *
+ * Every execution is timed into the "db.NAME" {@link OperationMetrics}, and reading the rows
+ * of a query into "db.NAME.fetch", so slow SQL can be told apart from slow result-set iteration.
+ *
+ * An instance is not thread-safe; it belongs to whoever currently holds its connection.
+ */
+public class BookStatements implements BookRepository {
+
+    private static final String COLUMNS = "SELECT id, title, author, qty, version FROM books ";
+
+    private static final int SELECT_BY_ID = 0;
+    private static final int PAGE = 1;
+    private static final int IDS_BEFORE = 2;
+    private static final int SEARCH_TITLE = 3;
+    private static final int SEARCH_AUTHOR = 4;
+    private static final int INSERT = 5;
+    private static final int UPDATE = 6;
+    private static final int UPDATE_IF_UNCHANGED = 7;
+    private static final int DELETE = 8;
+    private static final int DELETE_IF_UNCHANGED = 9;
+    private static final int ADD_QTY = 10;
+    private static final int COUNT_TITLE = 11;
+    private static final int COUNT_AUTHOR = 12;
+    private static final int NEXT_VERSION = 13;
+    private static final int CURRENT_VERSION = 14;
+    private static final int TOMBSTONE = 15;
+    private static final int CHANGES = 16;
+    private static final int DELETED = 17;
+    private static final int PENDING = 18;
+    private static final int STAMP_BOOKS = 19;
+    private static final int STAMP_TOMBSTONES = 20;
+
+    private static final String TITLE_MATCHES = "WHERE LOWER(REPLACE(REPLACE(title, '''', ''), ',', '')) LIKE ?";
+    private static final String AUTHOR_MATCHES = "WHERE author LIKE ?";
+
+    private static final String[] SQL = {
+        COLUMNS + "WHERE id = ?",
+        COLUMNS + "WHERE id >= ? ORDER BY id LIMIT ?",
+        "SELECT id FROM books WHERE id < ? ORDER BY id DESC LIMIT ?",
+        COLUMNS + TITLE_MATCHES + " AND id >= ? ORDER BY id LIMIT ?",
+        COLUMNS + AUTHOR_MATCHES + " AND id >= ? ORDER BY id LIMIT ?",
+        "INSERT INTO books (id, title, author, qty, version, stamp) VALUES (?, ?, ?, ?, ?, 0)",
+        "UPDATE books SET title = ?, author = ?, qty = ?, version = ?, stamp = 0 WHERE id = ?",
+        "UPDATE books SET id = ?, title = ?, author = ?, qty = ?, version = ?, stamp = 0 WHERE id = ? AND version = ?",
+        "DELETE FROM books WHERE id = ?",
+        "DELETE FROM books WHERE id = ? AND version = ?",
+        "UPDATE books SET qty = qty + ?, version = ?, stamp = 0 WHERE id = ? AND qty + ? >= 0",
+        "SELECT COUNT(*) FROM books " + TITLE_MATCHES,
+        "SELECT COUNT(*) FROM books " + AUTHOR_MATCHES,
+        CatalogVersion.NEXT,
+        CatalogVersion.CURRENT,
+        CatalogVersion.TOMBSTONE,
+        // Keyset over (stamp, id), so a large burst of changes is read a page at a time.
+        "SELECT id, title, author, qty, version, stamp FROM books"
+                + " WHERE (stamp = ? AND id > ?) OR (stamp > ? AND stamp <= ?) ORDER BY stamp, id LIMIT ?",
+        "SELECT id FROM book_tombstones WHERE stamp > ? AND stamp <= ?",
+        CatalogVersion.PENDING,
+        CatalogVersion.STAMP_BOOKS,
+        CatalogVersion.STAMP_TOMBSTONES,
+    };
+
+    private static final String[] NAMES = {
+        "selectById", "page", "idsBefore", "searchTitle", "searchAuthor", "insert",
+        "update", "updateIfUnchanged", "delete", "deleteIfUnchanged", "addToQty",
+        "countTitle", "countAuthor", "nextVersion", "currentVersion", "tombstone", "changes",
+        "deleted", "pending", "stampBooks", "stampTombstones",
+    };
+
+    // Metrics for running each statement, and for reading the rows of the queries.
+    private static final OperationMetrics[] EXECUTE = new OperationMetrics[SQL.length];
+    private static final OperationMetrics[] FETCH = new OperationMetrics[SQL.length];
+
+    static {
+        for (int i = 0; i < SQL.length; i++) {
+            EXECUTE[i] = Metrics.operation("db." + NAMES[i]);
+            if (i <= SEARCH_AUTHOR || i == CHANGES) {
+                FETCH[i] = Metrics.operation("db." + NAMES[i] + ".fetch");
+            }
+        }
+    }
+
+    private final Connection connection;
+    private final int queryTimeoutSeconds;
+    private final PreparedStatement[] statements = new PreparedStatement[SQL.length];
+    private long lastVersion;
+    // Catalog version stamped on the last row returned by changes().
+    private long lastChangeStamp;
+
+    /**
+     * Writes that belong in one transaction.
+     */
+    private interface Write<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * @param connection          The connection the statements are prepared on.
+     * @param queryTimeoutSeconds Timeout applied to every statement, 0 for none.
+     */
+    public BookStatements(Connection connection, int queryTimeoutSeconds) {
+        this.connection = connection;
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    private PreparedStatement statement(int which) throws SQLException {
+        PreparedStatement stmt = statements[which];
+        if (stmt == null || stmt.isClosed()) {
+            stmt = connection.prepareStatement(SQL[which], ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setQueryTimeout(queryTimeoutSeconds);
+            statements[which] = stmt;
+        }
+        return stmt;
+    }
+
+    /**
+     * @return The book with this id, or null if there is none.
+     */
+    public Book findById(int id) throws SQLException {
+        PreparedStatement stmt = statement(SELECT_BY_ID);
+        stmt.setInt(1, id);
+        List<Book> books = readAll(stmt, SELECT_BY_ID, 1);
+        return books.isEmpty() ? null : books.get(0);
+    }
+
+    /**
+     * Returns up to limit books with an id greater than or equal to fromId, in id order
+     * (keyset pagination: the next page starts after the last id of the previous one).
+     */
+    public List<Book> page(int fromId, int limit) throws SQLException {
+        PreparedStatement stmt = statement(PAGE);
+        stmt.setInt(1, fromId);
+        stmt.setInt(2, limit);
+        return readAll(stmt, PAGE, limit);
+    }
+
+    /**
+     * Returns up to limit ids smaller than beforeId, in descending order.
+     */
+    public List<Integer> idsBefore(int beforeId, int limit) throws SQLException {
+        PreparedStatement stmt = statement(IDS_BEFORE);
+        stmt.setFetchSize(limit);
+        stmt.setInt(1, beforeId);
+        stmt.setInt(2, limit);
+        List<Integer> ids = new ArrayList<>(limit);
+        try (ResultSet rs = executeQuery(stmt, IDS_BEFORE)) {
+            long start = System.nanoTime();
+            try {
+                while (rs.next()) {
+                    ids.add(rs.getInt(1));
+                }
+            } catch (SQLException e) {
+                FETCH[IDS_BEFORE].error(System.nanoTime() - start);
+                throw e;
+            }
+            FETCH[IDS_BEFORE].record(System.nanoTime() - start, ids.size());
+        }
+        return ids;
+    }
+
+    /**
+     * Finds up to limit books from fromId on whose title contains the text, ignoring case,
+     * apostrophes and commas. Rows are read forward-only and the LIMIT stops the scan of the
+     * primary key once a page is found, so a broad search costs no more than a narrow one.
+     */
+    public List<Book> searchTitle(String title, int fromId, int limit) throws SQLException {
+        PreparedStatement stmt = statement(SEARCH_TITLE);
+        stmt.setString(1, "%" + SearchIndex.normalize(title) + "%");
+        stmt.setInt(2, fromId);
+        stmt.setInt(3, limit);
+        return readAll(stmt, SEARCH_TITLE, limit);
+    }
+
+    /**
+     * Finds up to limit books from fromId on whose author contains the text.
+     */
+    public List<Book> searchAuthor(String author, int fromId, int limit) throws SQLException {
+        PreparedStatement stmt = statement(SEARCH_AUTHOR);
+        stmt.setString(1, "%" + author + "%");
+        stmt.setInt(2, fromId);
+        stmt.setInt(3, limit);
+        return readAll(stmt, SEARCH_AUTHOR, limit);
+    }
+
+    public int countTitle(String title) throws SQLException {
+        PreparedStatement stmt = statement(COUNT_TITLE);
+        stmt.setString(1, "%" + SearchIndex.normalize(title) + "%");
+        return count(stmt, COUNT_TITLE);
+    }
+
+    public int countAuthor(String author) throws SQLException {
+        PreparedStatement stmt = statement(COUNT_AUTHOR);
+        stmt.setString(1, "%" + author + "%");
+        return count(stmt, COUNT_AUTHOR);
+    }
+
+    private static int count(PreparedStatement stmt, int which) throws SQLException {
+        try (ResultSet rs = executeQuery(stmt, which)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Inserts a book.
+     * @return False if a book with the same id already exists.
+     */
+    public boolean insert(Book book) throws SQLException {
+        long version = CatalogVersion.token();
+        PreparedStatement stmt = statement(INSERT);
+        stmt.setInt(1, book.getId());
+        stmt.setString(2, book.getTitle());
+        stmt.setString(3, book.getAuthor());
+        stmt.setInt(4, book.getQty());
+        stmt.setLong(5, version);
+        try {
+            return written(executeUpdate(stmt, INSERT), version);
+        } catch (SQLException e) {
+            if (isDuplicateKey(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the title, author and quantity of a book, whatever they currently are.
+     * @return False if no book has this id.
+     */
+    public boolean update(Book book) throws SQLException {
+        long version = CatalogVersion.token();
+        PreparedStatement stmt = statement(UPDATE);
+        stmt.setString(1, book.getTitle());
+        stmt.setString(2, book.getAuthor());
+        stmt.setInt(3, book.getQty());
+        stmt.setLong(4, version);
+        stmt.setInt(5, book.getId());
+        return written(executeUpdate(stmt, UPDATE), version);
+    }
+
+    /**
+     * Replaces a book (including its id) only if the row still has the version the caller read.
+     * A changed id leaves a tombstone for the old one, in the same transaction.
+     * @param expected The book as last read by the caller.
+     * @param updated  The new state of the book.
+     * @return False if the book was changed or deleted in the meantime.
+     * @throws SQLException If the update fails, e.g. with a duplicate key when the new id is taken
+     *                      (see {@link #isDuplicateKey(SQLException)}).
+     */
+    public boolean updateIfUnchanged(Book expected, Book updated) throws SQLException {
+        long version = CatalogVersion.token();
+        boolean moved = updated.getId() != expected.getId();
+        Write<Integer> write = () -> {
+            PreparedStatement stmt = statement(UPDATE_IF_UNCHANGED);
+            stmt.setInt(1, updated.getId());
+            stmt.setString(2, updated.getTitle());
+            stmt.setString(3, updated.getAuthor());
+            stmt.setInt(4, updated.getQty());
+            stmt.setLong(5, version);
+            stmt.setInt(6, expected.getId());
+            stmt.setLong(7, expected.getVersion());
+            int rows = executeUpdate(stmt, UPDATE_IF_UNCHANGED);
+            if (rows > 0 && moved) {
+                tombstone(expected.getId());
+            }
+            return rows;
+        };
+        return written(moved ? transaction(write) : write.run(), version);
+    }
+
+    /**
+     * Deletes a book, whatever its current state.
+     * @return False if no book has this id.
+     */
+    public boolean delete(int id) throws SQLException {
+        return transaction(() -> {
+            PreparedStatement stmt = statement(DELETE);
+            stmt.setInt(1, id);
+            if (executeUpdate(stmt, DELETE) == 0) {
+                return false;
+            }
+            tombstone(id);
+            return true;
+        });
+    }
+
+    /**
+     * Deletes a book only if the row still has the version the caller read.
+     * @return False if the book was changed or deleted in the meantime.
+     */
+    public boolean deleteIfUnchanged(Book expected) throws SQLException {
+        return transaction(() -> {
+            PreparedStatement stmt = statement(DELETE_IF_UNCHANGED);
+            stmt.setInt(1, expected.getId());
+            stmt.setLong(2, expected.getVersion());
+            if (executeUpdate(stmt, DELETE_IF_UNCHANGED) == 0) {
+                return false;
+            }
+            tombstone(expected.getId());
+            return true;
+        });
+    }
+
+    /**
+     * Adds a change to the quantity of several books in one batch and one transaction. The quantity
+     * is changed relative to whatever the row holds, and a change that would make it negative is skipped.
+     * All the rows written get the same version token.
+     * @param ids    The book ids.
+     * @param deltas The change for each id.
+     * @return The update count for each id: 0 if the book is gone or the change was skipped.
+     */
+    public int[] addToQty(List<Integer> ids, List<Integer> deltas) throws SQLException {
+        long version = CatalogVersion.token();
+        PreparedStatement stmt = statement(ADD_QTY);
+        try {
+            int[] counts = transaction(() -> {
+                for (int i = 0; i < ids.size(); i++) {
+                    stmt.setInt(1, deltas.get(i));
+                    stmt.setLong(2, version);
+                    stmt.setInt(3, ids.get(i));
+                    stmt.setInt(4, deltas.get(i));
+                    stmt.addBatch();
+                }
+                long start = System.nanoTime();
+                try {
+                    int[] result = stmt.executeBatch();
+                    long rows = 0;
+                    for (int count : result) {
+                        rows += Math.max(0, count);
+                    }
+                    EXECUTE[ADD_QTY].record(System.nanoTime() - start, rows);
+                    return result;
+                } catch (SQLException e) {
+                    EXECUTE[ADD_QTY].error(System.nanoTime() - start);
+                    throw e;
+                }
+            });
+            lastVersion = version;
+            return counts;
+        } finally {
+            stmt.clearBatch();
+        }
+    }
+
+    /**
+     * Returns the version token written by the last successful write through these statements,
+     * so callers can pass on the book as it is now stored.
+     */
+    public long lastVersion() {
+        return lastVersion;
+    }
+
+    private boolean written(int rows, long version) {
+        if (rows == 0) {
+            return false;
+        }
+        lastVersion = version;
+        return true;
+    }
+
+    /**
+     * Runs writes in a transaction of their own, or when the caller already has a transaction
+     * open, in that one, leaving the commit to the caller.
+     */
+    private <T> T transaction(Write<T> write) throws SQLException {
+        if (!connection.getAutoCommit()) {
+            return write.run();
+        }
+        connection.setAutoCommit(false);
+        try {
+            T result = write.run();
+            connection.commit();
+            return result;
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException ignored) {
+                // The connection is probably broken; the original failure is what matters.
+            }
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private void tombstone(int id) throws SQLException {
+        PreparedStatement stmt = statement(TOMBSTONE);
+        stmt.setInt(1, id);
+        executeUpdate(stmt, TOMBSTONE);
+    }
+
+    /**
+     * Stamps the rows and tombstones written since the last stamp with the next catalog version
+     * (see {@link CatalogVersion}), in one transaction. When nothing is pending, which one query
+     * over the indexes on stamp tells, the counter is left alone.
+     * @return The version stamped, or 0 if nothing was pending.
+     */
+    public long stampPending() throws SQLException {
+        try (ResultSet rs = executeQuery(statement(PENDING), PENDING)) {
+            if (!rs.next() || rs.getInt(1) == 0) {
+                return 0;
+            }
+        }
+        return transaction(() -> {
+            if (executeUpdate(statement(NEXT_VERSION), NEXT_VERSION) == 0) {
+                throw new SQLException("catalog_version has no row for books; create it as in schema.sql");
+            }
+            long version = currentVersion();
+            stamp(STAMP_BOOKS, version);
+            stamp(STAMP_TOMBSTONES, version);
+            return version;
+        });
+    }
+
+    private void stamp(int which, long version) throws SQLException {
+        PreparedStatement stmt = statement(which);
+        stmt.setLong(1, version);
+        stmt.setLong(2, 0);
+        executeUpdate(stmt, which);
+    }
+
+    /**
+     * Returns the latest committed catalog version, or inside a transaction that advanced it,
+     * the version of that transaction.
+     * @throws SQLException If the query fails or catalog_version has no row for books.
+     */
+    public long currentVersion() throws SQLException {
+        PreparedStatement stmt = statement(CURRENT_VERSION);
+        try (ResultSet rs = executeQuery(stmt, CURRENT_VERSION)) {
+            if (!rs.next()) {
+                throw new SQLException("catalog_version has no row for books; create it as in schema.sql");
+            }
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Returns the random id of this database (see {@link CatalogVersion#incarnation(Connection)}).
+     */
+    public long incarnation() throws SQLException {
+        return CatalogVersion.incarnation(connection);
+    }
+
+    /**
+     * Returns up to limit books stamped after (afterVersion, afterId) and at most at catalog
+     * version upTo, ordered by stamp and id. Start with afterId = Integer.MAX_VALUE for every book
+     * stamped after afterVersion, and continue from {@link #lastChangeStamp()} and the id of the
+     * last book returned.
+     */
+    public List<Book> changes(long afterVersion, int afterId, long upTo, int limit) throws SQLException {
+        PreparedStatement stmt = statement(CHANGES);
+        stmt.setFetchSize(limit);
+        stmt.setLong(1, afterVersion);
+        stmt.setInt(2, afterId);
+        stmt.setLong(3, afterVersion);
+        stmt.setLong(4, upTo);
+        stmt.setInt(5, limit);
+        List<Book> books = new ArrayList<>(Math.min(limit, 1000));
+        try (ResultSet rs = executeQuery(stmt, CHANGES)) {
+            long start = System.nanoTime();
+            try {
+                while (rs.next()) {
+                    books.add(new Book(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4), rs.getLong(5)));
+                    lastChangeStamp = rs.getLong(6);
+                }
+            } catch (SQLException e) {
+                FETCH[CHANGES].error(System.nanoTime() - start);
+                throw e;
+            }
+            FETCH[CHANGES].record(System.nanoTime() - start, books.size());
+        }
+        return books;
+    }
+
+    /**
+     * Returns the catalog version stamped on the last book returned by
+     * {@link #changes(long, int, long, int)}.
+     */
+    public long lastChangeStamp() {
+        return lastChangeStamp;
+    }
+
+    /**
+     * Returns the ids of the books deleted after version after and at most at version upTo.
+     */
+    public List<Integer> deleted(long after, long upTo) throws SQLException {
+        PreparedStatement stmt = statement(DELETED);
+        stmt.setLong(1, after);
+        stmt.setLong(2, upTo);
+        List<Integer> ids = new ArrayList<>();
+        try (ResultSet rs = executeQuery(stmt, DELETED)) {
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns true if the exception reports a primary key (or other unique key) violation.
+     * SQLState class 23 is "integrity constraint violation" for every standard driver.
+     */
+    public static boolean isDuplicateKey(SQLException e) {
+        return e instanceof SQLIntegrityConstraintViolationException
+                || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+    }
+
+    private static ResultSet executeQuery(PreparedStatement stmt, int which) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery();
+            EXECUTE[which].record(System.nanoTime() - start, 0);
+            return rs;
+        } catch (SQLException e) {
+            EXECUTE[which].error(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    private static int executeUpdate(PreparedStatement stmt, int which) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            int rows = stmt.executeUpdate();
+            EXECUTE[which].record(System.nanoTime() - start, rows);
+            return rows;
+        } catch (SQLException e) {
+            if (isDuplicateKey(e)) {
+                // An expected outcome that callers report to the user, not a failure.
+                EXECUTE[which].record(System.nanoTime() - start, 0);
+            } else {
+                EXECUTE[which].error(System.nanoTime() - start);
+            }
+            throw e;
+        }
+    }
+
+    private static List<Book> readAll(PreparedStatement stmt, int which, int expected) throws SQLException {
+        stmt.setFetchSize(expected);
+        List<Book> books = new ArrayList<>(Math.min(expected, 1000));
+        try (ResultSet rs = executeQuery(stmt, which)) {
+            long start = System.nanoTime();
+            try {
+                while (rs.next()) {
+                    books.add(new Book(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4), rs.getLong(5)));
+                }
+            } catch (SQLException e) {
+                FETCH[which].error(System.nanoTime() - start);
+                throw e;
+            }
+            FETCH[which].record(System.nanoTime() - start, books.size());
+        }
+        return books;
+    }
+
+    /**
+     * Closes the prepared statements and the connection.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < statements.length; i++) {
+            if (statements[i] != null) {
+                try {
+                    statements[i].close();
+                } catch (SQLException e) {
+                    // The statement is being discarded anyway.
+                }
+                statements[i] = null;
+            }
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Nothing useful to do: the connection is being discarded anyway.
+        }
+    }
+}
@@ -0,0 +1,484 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads books from a large CSV or TSV file into the books table.
+ *
+ * The file is read sequentially in chunks of batchSize lines. Each chunk is parsed on a worker
+ * thread while the calling thread writes earlier chunks, in file order, as JDBC batches inside
+ * transactions that are committed every commitInterval rows. Ids already in the table are found
+ * with one IN query per batch instead of one lookup per row, and are then skipped or updated.
+ * Each transaction gives all of its rows one version token and a
+ * {@link CatalogVersion#placeholder()} stamp, and stamps one catalog version on them just before
+ * it commits, so it holds the version counter only for the stamp and the commit.
+ *
+ * Expected columns are id, title, author, qty. A first line whose id column is not a number is
+ * taken as a header and skipped, and blank lines are skipped; neither counts as malformed.
+ * Fields may be quoted with double quotes (CSV style), and a quoted field may span lines.
+ */
+public class BulkImporter {
+
+    /**
+     * What to do with a row whose id already exists in the table.
+     */
+    public enum OnDuplicate { SKIP, UPDATE }
+
+    /**
+     * Counters describing a finished (or aborted) import.
+     */
+    public static final class Result {
+        long read;
+        long inserted;
+        long updated;
+        long skipped;
+        long malformed;
+        long elapsedNanos;
+
+        public long getInserted() {
+            return inserted;
+        }
+
+        public long getUpdated() {
+            return updated;
+        }
+
+        public double rowsPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : read * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d row(s) read: %d inserted, %d updated, %d skipped (duplicate id), "
+                    + "%d malformed in %.1f s (%.0f rows/sec)",
+                    read, inserted, updated, skipped, malformed, elapsedNanos / 1e9, rowsPerSecond());
+        }
+    }
+
+    private static final String INSERT_SQL = "INSERT INTO books (id, title, author, qty, version, stamp) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_SQL =
+            "UPDATE books SET title = ?, author = ?, qty = ?, version = ?, stamp = ? WHERE id = ?";
+
+    // Longest record read while looking for the quote that closes a field, in characters.
+    private static final int MAX_RECORD_CHARS = 1 << 16;
+
+    private static final OperationMetrics LOOKUP_METRICS = Metrics.operation("import.existingIds");
+    private static final OperationMetrics BATCH_METRICS = Metrics.operation("import.batch");
+    private static final OperationMetrics COMMIT_METRICS = Metrics.operation("import.commit");
+
+    private final Connection connection;
+    private final int batchSize;
+    private final int commitInterval;
+    private final int threads;
+    private final OnDuplicate onDuplicate;
+    private final List<CatalogListener> listeners;
+
+    // Records that were neither blank nor a book, counted by the parsers.
+    private final AtomicLong malformed = new AtomicLong();
+    // Placeholder stamp and version token of the rows of the open transaction, 0 until its first batch.
+    private long placeholder;
+    private long token;
+
+    /**
+     * @param connection     The established SQL connection; its autocommit mode is restored afterwards.
+     * @param batchSize      Rows per JDBC batch (and per parsing chunk).
+     * @param commitInterval Rows per transaction, rounded up to whole batches.
+     * @param threads        Number of parser threads.
+     * @param onDuplicate    How rows with an existing id are handled.
+     * @param listeners      In-memory catalog views to notify after each commit.
+     */
+    public BulkImporter(Connection connection, int batchSize, int commitInterval, int threads,
+                        OnDuplicate onDuplicate, List<CatalogListener> listeners) {
+        this.connection = connection;
+        this.batchSize = Math.max(1, batchSize);
+        this.commitInterval = Math.max(this.batchSize, commitInterval);
+        this.threads = Math.max(1, threads);
+        this.onDuplicate = onDuplicate;
+        this.listeners = listeners;
+    }
+
+    /**
+     * Creates an importer configured by system properties:
+     * ebookstore.import.batchSize (default 1000), ebookstore.import.commitInterval (default 20000),
+     * ebookstore.import.threads (default: number of processors) and
+     * ebookstore.import.onDuplicate (skip or update, default skip).
+     */
+    public static BulkImporter fromSystemProperties(Connection connection, List<CatalogListener> listeners) {
+        String duplicates = System.getProperty("ebookstore.import.onDuplicate", "skip");
+        return new BulkImporter(connection,
+                Integer.getInteger("ebookstore.import.batchSize", 1000),
+                Integer.getInteger("ebookstore.import.commitInterval", 20000),
+                Integer.getInteger("ebookstore.import.threads", Runtime.getRuntime().availableProcessors()),
+                "update".equalsIgnoreCase(duplicates) ? OnDuplicate.UPDATE : OnDuplicate.SKIP,
+                listeners);
+    }
+
+    /**
+     * Imports the file. Files ending in .tsv or .tab are tab separated, anything else is comma separated.
+     * On failure the current transaction is rolled back; earlier commits are kept.
+     * @param file The file to import.
+     * @return The import counters.
+     * @throws IOException  If the file cannot be read.
+     * @throws SQLException If writing to the database fails.
+     */
+    public Result importFile(Path file) throws IOException, SQLException {
+        String name = file.getFileName().toString().toLowerCase();
+        char delimiter = name.endsWith(".tsv") || name.endsWith(".tab") ? '\t' : ',';
+
+        Result result = new Result();
+        malformed.set(0);
+        long start = System.nanoTime();
+        boolean autoCommit = connection.getAutoCommit();
+        ExecutorService parsers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "import-parser");
+            t.setDaemon(true);
+            return t;
+        });
+        // Parsed chunks in file order; bounded so that a slow database holds back the reader.
+        ArrayDeque<Future<List<Book>>> pending = new ArrayDeque<>();
+        List<Book> uncommitted = new ArrayList<>();
+        long sinceCommit = 0;
+
+        placeholder = 0;
+        connection.setAutoCommit(false);
+        try (RecordReader reader = new RecordReader(new BufferedReader(new InputStreamReader(
+                Files.newInputStream(file), StandardCharsets.UTF_8), 1 << 20));
+             PreparedStatement insert = connection.prepareStatement(INSERT_SQL);
+             PreparedStatement update = connection.prepareStatement(UPDATE_SQL)) {
+
+            List<String> chunk = new ArrayList<>(batchSize);
+            String line = reader.next();
+            if (line != null && isHeader(line, delimiter)) {
+                line = reader.next();
+            }
+            while (true) {
+                if (line != null) {
+                    chunk.add(line);
+                    if (chunk.size() < batchSize) {
+                        line = reader.next();
+                        continue;
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    final List<String> lines = chunk;
+                    pending.add(parsers.submit(() -> parse(lines, delimiter)));
+                    chunk = new ArrayList<>(batchSize);
+                }
+                while (!pending.isEmpty() && (line == null || pending.size() > threads * 2)) {
+                    List<Book> books = await(pending.poll());
+                    result.read += books.size();
+                    sinceCommit += writeBatch(books, insert, update, result, uncommitted);
+                    if (sinceCommit >= commitInterval) {
+                        commit(uncommitted);
+                        sinceCommit = 0;
+                    }
+                }
+                if (line == null) {
+                    break;
+                }
+                line = reader.next();
+            }
+            commit(uncommitted);
+        } catch (SQLException | IOException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            parsers.shutdownNow();
+            connection.setAutoCommit(autoCommit);
+            result.elapsedNanos = System.nanoTime() - start;
+        }
+        result.malformed = malformed.get();
+        return result;
+    }
+
+    private void commit(List<Book> uncommitted) throws SQLException {
+        if (placeholder == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            CatalogVersion.stamp(connection, placeholder);
+            connection.commit();
+        } catch (SQLException e) {
+            COMMIT_METRICS.error(System.nanoTime() - start);
+            throw e;
+        }
+        COMMIT_METRICS.record(System.nanoTime() - start, uncommitted.size());
+        for (Book book : uncommitted) {
+            Book saved = book.withVersion(token);
+            for (CatalogListener listener : listeners) {
+                listener.bookSaved(saved);
+            }
+        }
+        uncommitted.clear();
+        placeholder = 0;
+    }
+
+    private static List<Book> await(Future<List<Book>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to parse import file", e.getCause());
+        }
+    }
+
+    /**
+     * Writes one parsed chunk: looks up which ids already exist with a single query, then
+     * inserts the new rows and updates or skips the existing ones as JDBC batches.
+     * @return The number of rows written.
+     */
+    private long writeBatch(List<Book> books, PreparedStatement insert, PreparedStatement update,
+                            Result result, List<Book> uncommitted) throws SQLException {
+        if (books.isEmpty()) {
+            return 0;
+        }
+        Set<Integer> existing = existingIds(connection, books, LOOKUP_METRICS);
+        if (placeholder == 0) {
+            placeholder = CatalogVersion.placeholder();
+            token = CatalogVersion.token();
+        }
+        Set<Integer> seen = new HashSet<>();
+        int inserts = 0;
+        int updates = 0;
+        for (Book book : books) {
+            // Ids repeated inside the file are treated like ids already in the table.
+            boolean duplicate = existing.contains(book.getId()) || !seen.add(book.getId());
+            if (!duplicate) {
+                insert.setInt(1, book.getId());
+                insert.setString(2, book.getTitle());
+                insert.setString(3, book.getAuthor());
+                insert.setInt(4, book.getQty());
+                insert.setLong(5, token);
+                insert.setLong(6, placeholder);
+                insert.addBatch();
+                inserts++;
+            } else if (onDuplicate == OnDuplicate.UPDATE) {
+                update.setString(1, book.getTitle());
+                update.setString(2, book.getAuthor());
+                update.setInt(3, book.getQty());
+                update.setLong(4, token);
+                update.setLong(5, placeholder);
+                update.setInt(6, book.getId());
+                update.addBatch();
+                updates++;
+            } else {
+                result.skipped++;
+                continue;
+            }
+            if (!listeners.isEmpty()) {
+                uncommitted.add(book);
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            if (inserts > 0) {
+                insert.executeBatch();
+            }
+            if (updates > 0) {
+                update.executeBatch();
+            }
+        } catch (SQLException e) {
+            BATCH_METRICS.error(System.nanoTime() - start);
+            throw e;
+        }
+        BATCH_METRICS.record(System.nanoTime() - start, inserts + updates);
+        result.inserted += inserts;
+        result.updated += updates;
+        return inserts + updates;
+    }
+
+    /**
+     * Returns which of the books' ids are already in the table, using one IN query.
+     * @param metrics Where the query is timed.
+     */
+    static Set<Integer> existingIds(Connection connection, List<Book> books, OperationMetrics metrics)
+            throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT id FROM books WHERE id IN (");
+        for (int i = 0; i < books.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(')');
+        Set<Integer> existing = new HashSet<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < books.size(); i++) {
+                stmt.setInt(i + 1, books.get(i).getId());
+            }
+            long start = System.nanoTime();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(rs.getInt(1));
+                }
+            } catch (SQLException e) {
+                metrics.error(System.nanoTime() - start);
+                throw e;
+            }
+            metrics.record(System.nanoTime() - start, existing.size());
+        }
+        return existing;
+    }
+
+    /**
+     * Parses a chunk of records into books, dropping blank lines and counting malformed ones.
+     * Runs on a parser thread.
+     */
+    private List<Book> parse(List<String> lines, char delimiter) {
+        List<Book> books = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            Book book = parseLine(line, delimiter);
+            if (book != null) {
+                books.add(book);
+            } else if (!line.trim().isEmpty()) {
+                malformed.incrementAndGet();
+            }
+        }
+        return books;
+    }
+
+    /**
+     * Tells whether the first record of a file is a header: a line that is not a book and whose
+     * first column is not a number, such as "id,title,author,qty".
+     */
+    static boolean isHeader(String line, char delimiter) {
+        if (line.trim().isEmpty() || parseLine(line, delimiter) != null) {
+            return false;
+        }
+        try {
+            Integer.parseInt(splitFields(line, delimiter).get(0).trim());
+            return false;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Parses one id, title, author, qty record.
+     * @return The book, or null if the record is blank, a header or malformed.
+     */
+    static Book parseLine(String line, char delimiter) {
+        List<String> fields = splitFields(line, delimiter);
+        if (fields.size() != 4) {
+            return null;
+        }
+        try {
+            int id = Integer.parseInt(fields.get(0).trim());
+            int qty = Integer.parseInt(fields.get(3).trim());
+            return new Book(id, fields.get(1).trim(), fields.get(2).trim(), qty);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Splits a record on the delimiter, honouring double-quoted fields with "" as an escaped quote.
+     * A quoted field keeps the line breaks it spans.
+     */
+    static List<String> splitFields(String line, char delimiter) {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Reads the file record by record. A record is one line, or several when a quoted field is
+     * still open at the end of a line; the line break is then part of the field.
+     */
+    static final class RecordReader implements AutoCloseable {
+        private final BufferedReader reader;
+        private long lineNumber;
+
+        RecordReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return The next record, or null at the end of the file.
+         * @throws IOException If a quoted field is not closed before the end of the file or
+         *                     within {@value #MAX_RECORD_CHARS} characters.
+         */
+        String next() throws IOException {
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            long first = ++lineNumber;
+            if (!opensQuote(line, false)) {
+                return line;
+            }
+            StringBuilder record = new StringBuilder(line);
+            boolean quoted = true;
+            while (quoted) {
+                line = reader.readLine();
+                if (line == null || record.length() + line.length() > MAX_RECORD_CHARS) {
+                    throw new IOException("Unterminated quoted field in the record starting on line " + first
+                            + (line == null ? ": the file ends inside the quotes." : ": it runs past "
+                            + MAX_RECORD_CHARS + " characters.") + " Check for a missing closing quote.");
+                }
+                lineNumber++;
+                record.append('\n').append(line);
+                quoted = opensQuote(line, true);
+            }
+            return record.toString();
+        }
+
+        /**
+         * Tells whether a quoted field is still open at the end of the line, following the same
+         * rules as {@link #splitFields}: every quote toggles the state, and "" inside quotes
+         * toggles it twice.
+         * @param quoted Whether the line starts inside a quoted field.
+         */
+        private static boolean opensQuote(String line, boolean quoted) {
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) == '"') {
+                    quoted = !quoted;
+                }
+            }
+            return quoted;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the books table to a CSV or JSON Lines file.
+ *
+ * Rows are read with a forward-only, read-only result set using a streaming fetch size, and
+ * written straight to a large buffered writer, so heap use stays flat whatever the table size.
+ * The format follows the file name: ".jsonl" or ".ndjson" writes JSON Lines, anything else CSV,
+ * and a trailing ".gz" compresses the output with gzip.
+ */
+public class CatalogExporter {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final OperationMetrics EXPORT_METRICS = Metrics.operation("export");
+
+    private final Connection connection;
+    private final long progressInterval;
+
+    /**
+     * @param connection       The established SQL connection.
+     * @param progressInterval Print a progress line every this many rows (0 to disable).
+     */
+    public CatalogExporter(Connection connection, long progressInterval) {
+        this.connection = connection;
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * Exports every book, in id order, to the given file.
+     * @param file The output file; overwritten if it exists.
+     * @return The number of rows written.
+     * @throws IOException  If the file cannot be written.
+     * @throws SQLException If the table cannot be read.
+     */
+    public long export(Path file) throws IOException, SQLException {
+        String name = file.getFileName().toString().toLowerCase();
+        boolean gzip = name.endsWith(".gz");
+        if (gzip) {
+            name = name.substring(0, name.length() - 3);
+        }
+        boolean json = name.endsWith(".jsonl") || name.endsWith(".ndjson");
+
+        long start = System.nanoTime();
+        long rows = 0;
+        String sql = "SELECT id, title, author, qty FROM books ORDER BY id";
+        try (Writer out = openWriter(file, gzip);
+             PreparedStatement stmt = connection.prepareStatement(sql,
+                     ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(streamingFetchSize());
+            if (!json) {
+                out.write("id,title,author,qty\n");
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int id = rs.getInt(1);
+                    String title = rs.getString(2);
+                    String author = rs.getString(3);
+                    int qty = rs.getInt(4);
+                    if (json) {
+                        writeJsonLine(out, id, title, author, qty);
+                    } else {
+                        writeCsvLine(out, id, title, author, qty);
+                    }
+                    rows++;
+                    if (progressInterval > 0 && rows % progressInterval == 0) {
+                        printProgress(rows, start);
+                    }
+                }
+            }
+        } catch (IOException | SQLException e) {
+            EXPORT_METRICS.error(System.nanoTime() - start);
+            throw e;
+        }
+        EXPORT_METRICS.record(System.nanoTime() - start, rows);
+        printProgress(rows, start);
+        return rows;
+    }
+
+    /**
+     * Returns the fetch size that makes the driver stream rows instead of buffering the result.
+     * MySQL Connector/J only streams with Integer.MIN_VALUE; other drivers take a row count.
+     */
+    private int streamingFetchSize() throws SQLException {
+        String url = connection.getMetaData().getURL();
+        return url != null && url.startsWith("jdbc:mysql:") ? Integer.MIN_VALUE : 1000;
+    }
+
+    private static Writer openWriter(Path file, boolean gzip) throws IOException {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE);
+        if (gzip) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private void printProgress(long rows, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Exported %d row(s) in %.1f s (%.0f rows/sec)",
+                rows, seconds, seconds == 0 ? 0.0 : rows / seconds));
+    }
+
+    private static void writeCsvLine(Writer out, int id, String title, String author, int qty)
+            throws IOException {
+        out.write(Integer.toString(id));
+        out.write(',');
+        writeCsvField(out, title);
+        out.write(',');
+        writeCsvField(out, author);
+        out.write(',');
+        out.write(Integer.toString(qty));
+        out.write('\n');
+    }
+
+    /**
+     * Writes a CSV field, quoting it only when it contains a comma, quote or line break.
+     */
+    private static void writeCsvField(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.write('"');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
+
+    private static void writeJsonLine(Writer out, int id, String title, String author, int qty)
+            throws IOException {
+        out.write("{\"id\":");
+        out.write(Integer.toString(id));
+        out.write(",\"title\":");
+        Json.writeString(out, title);
+        out.write(",\"author\":");
+        Json.writeString(out, author);
+        out.write(",\"qty\":");
+        out.write(Integer.toString(qty));
+        out.write("}\n");
+    }
+}
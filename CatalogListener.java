@@ -0,0 +1,27 @@
+/**
+ * Receives every change made to the books table by this process, after the change succeeded.
+ * In-memory structures derived from the catalog (cache, search index) implement this
+ * so that the write paths only need to notify one list of listeners.
+ */
+public interface CatalogListener {
+
+    /**
+     * Called after a book was inserted or updated.
+     * @param book The new state of the book.
+     */
+    void bookSaved(Book book);
+
+    /**
+     * Called after a book was deleted.
+     * @param id The id of the deleted book.
+     */
+    void bookDeleted(int id);
+
+    /**
+     * Called after the stock quantity of a book changed through a sale or restock.
+     * Only the quantity changed; title and author are as last saved.
+     * @param id  The id of the book.
+     * @param qty The new quantity.
+     */
+    void quantityChanged(int id, int qty);
+}
@@ -0,0 +1,351 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A binary copy of the catalog on local disk, so a restart does not have to read the whole
+ * books table to load the cache, the indexes, the id set and the reports.
+ *
+ * The file holds a header (magic, format, the incarnation of the database it was taken from and
+ * the catalog version the copy is current to), one record per book in id order (id, version, qty,
+ * then title and author as length-prefixed UTF-8), the number of books and a CRC32 of everything
+ * before it. It is written from a keyset-paged read of the books table on a connection of its own,
+ * so writing it holds no more than one page in memory, to a temporary file that is then moved
+ * into place; a crash while writing leaves the previous snapshot intact.
+ *
+ * On startup the file is memory-mapped and checked against its CRC, and the books are decoded
+ * straight from the mapping as each in-memory view is built from them; no copy of the catalog
+ * is made on the heap. The views themselves are still rebuilt book by book, on the background
+ * thread that loads the {@link CatalogViews} after the menu or server is up: what the snapshot
+ * saves is reading the table from the database. The {@link ChangeFeed} then pulls only the rows written and deleted after the
+ * snapshot's version. A snapshot that is damaged, of another format, of another incarnation of
+ * the database (which was recreated since), ahead of the database, or so old that tombstones
+ * after its version may have been deleted is ignored, and the catalog is read from the database.
+ */
+public class CatalogSnapshot implements AutoCloseable {
+
+    private static final int MAGIC = 0x45425343; // "EBSC"
+    private static final int FORMAT = 2;
+    // magic, format, incarnation, version
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+    // count, CRC32
+    private static final int TRAILER_BYTES = 4 + 8;
+    // Books read from the database per page while writing.
+    private static final int WRITE_CHUNK = 1000;
+
+    private static final OperationMetrics LOAD_METRICS = Metrics.operation("snapshot.load");
+    private static final OperationMetrics WRITE_METRICS = Metrics.operation("snapshot.write");
+
+    private final Path file;
+    private final long intervalSeconds;
+    private final ScheduledExecutorService writer;
+    private long version;
+    private int count;
+
+    /**
+     * @param file            Where the snapshot is kept.
+     * @param intervalSeconds How often {@link #start(Runnable)} runs the save task, 0 for only on exit.
+     */
+    public CatalogSnapshot(Path file, long intervalSeconds) {
+        this.file = file;
+        this.intervalSeconds = intervalSeconds;
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Creates the snapshot configured by -Debookstore.snapshot.file=PATH, saved again every
+     * -Debookstore.snapshot.intervalSeconds (default 0, only on exit), or returns null when no
+     * file is set.
+     */
+    public static CatalogSnapshot fromSystemProperties() {
+        String file = System.getProperty("ebookstore.snapshot.file");
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        return new CatalogSnapshot(Paths.get(file), Long.getLong("ebookstore.snapshot.intervalSeconds", 0L));
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns a name for the {@link ChangeFeed} of the instance using this snapshot, the same for
+     * every start on this host, so the registration that keeps the tombstones after the snapshot
+     * is taken over by the next start instead of lingering until it expires.
+     */
+    public String readerName() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        String where = host + "|" + file.toAbsolutePath().normalize();
+        return UUID.nameUUIDFromBytes(where.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * @return The catalog version of the last snapshot loaded or written.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The number of books in the last snapshot loaded or written.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Maps and checks the snapshot file.
+     * @param incarnation    The incarnation of the database; a snapshot of another one is ignored.
+     * @param currentVersion The latest committed catalog version; a snapshot past it does not
+     *                       belong to this database either.
+     * @param horizon        The newest version whose tombstones may be deleted; a snapshot
+     *                       before it cannot learn of the deletes since.
+     * @return The books of the snapshot in id order, decoded from the mapping each time they are
+     *         iterated, or null if there is no usable snapshot.
+     */
+    public synchronized Iterable<Book> load(long incarnation, long currentVersion, long horizon) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + TRAILER_BYTES || size > Integer.MAX_VALUE) {
+                return rejected(start, "has an unexpected size");
+            }
+            // The mapping stays valid after the channel is closed, until it is garbage collected.
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int end = (int) size - TRAILER_BYTES;
+            if (checksum(data, end + 4) != data.getLong(end + 4)) {
+                return rejected(start, "is damaged (checksum mismatch)");
+            }
+            if (data.getInt() != MAGIC || data.getInt() != FORMAT) {
+                return rejected(start, "is not a catalog snapshot of this version");
+            }
+            if (data.getLong() != incarnation) {
+                return rejected(start, "was taken from another database");
+            }
+            long snapshotVersion = data.getLong();
+            if (snapshotVersion > currentVersion) {
+                return rejected(start, "is newer than the database (version " + snapshotVersion
+                        + " > " + currentVersion + ")");
+            }
+            if (snapshotVersion < horizon) {
+                return rejected(start, "is older than the deletes kept in the database (version "
+                        + snapshotVersion + " < " + horizon + ")");
+            }
+            int books = data.getInt(end);
+            data.limit(end);
+            ByteBuffer records = data.slice();
+            if (!wellFormed(records.duplicate(), books)) {
+                return rejected(start, "has records that do not match its count");
+            }
+            version = snapshotVersion;
+            count = books;
+            LOAD_METRICS.record(System.nanoTime() - start, books);
+            return () -> new Iterator<Book>() {
+                private final ByteBuffer in = records.duplicate();
+                private int left = books;
+
+                @Override
+                public boolean hasNext() {
+                    return left > 0;
+                }
+
+                @Override
+                public Book next() {
+                    if (left == 0) {
+                        throw new NoSuchElementException();
+                    }
+                    left--;
+                    int id = in.getInt();
+                    long bookVersion = in.getLong();
+                    int qty = in.getInt();
+                    String title = readString(in);
+                    String author = readString(in);
+                    return new Book(id, title, author, qty, bookVersion);
+                }
+            };
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            LOAD_METRICS.error(System.nanoTime() - start);
+            System.out.println("Catalog snapshot " + file + " could not be read: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Walks the records without decoding them, so iterating them later cannot fail part way.
+     */
+    private static boolean wellFormed(ByteBuffer records, int books) {
+        if (books < 0) {
+            return false;
+        }
+        try {
+            for (int i = 0; i < books; i++) {
+                records.position(records.position() + 4 + 8 + 4);
+                skipString(records);
+                skipString(records);
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return !records.hasRemaining();
+    }
+
+    private static void skipString(ByteBuffer data) {
+        int length = data.getInt();
+        if (length > 0) {
+            data.position(data.position() + length);
+        }
+    }
+
+    /**
+     * Computes the CRC32 of the first length bytes, copied out of the mapping in chunks
+     * (CRC32.update(ByteBuffer) needs Java 9).
+     */
+    private static long checksum(ByteBuffer data, int length) {
+        ByteBuffer body = data.duplicate();
+        body.limit(length);
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[1 << 16];
+        while (body.hasRemaining()) {
+            int n = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    private Iterable<Book> rejected(long start, String reason) {
+        LOAD_METRICS.error(System.nanoTime() - start);
+        System.out.println("Catalog snapshot " + file + " " + reason + "; reading the catalog instead.");
+        return null;
+    }
+
+    private static String readString(ByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces the snapshot file with the books as they are in the database. The incarnation
+     * and version are read first, so rows changed while the books are paged through are pulled
+     * again by the next start rather than missed.
+     * @param statements Statements of a connection used only for writing snapshots.
+     * @throws IOException  If the file cannot be written; the previous snapshot is kept.
+     * @throws SQLException If the books cannot be read; the previous snapshot is kept.
+     */
+    public synchronized void write(BookStatements statements) throws IOException, SQLException {
+        long start = System.nanoTime();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            long incarnation = statements.incarnation();
+            long catalogVersion = statements.currentVersion();
+            int books = 0;
+            try (FileOutputStream raw = new FileOutputStream(temp.toFile())) {
+                CRC32 crc = new CRC32();
+                BufferedOutputStream buffered = new BufferedOutputStream(raw, 1 << 16);
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(incarnation);
+                out.writeLong(catalogVersion);
+                int fromId = Integer.MIN_VALUE;
+                while (true) {
+                    List<Book> chunk = statements.page(fromId, WRITE_CHUNK);
+                    for (Book book : chunk) {
+                        out.writeInt(book.getId());
+                        out.writeLong(book.getVersion());
+                        out.writeInt(book.getQty());
+                        writeString(out, book.getTitle());
+                        writeString(out, book.getAuthor());
+                    }
+                    books += chunk.size();
+                    if (chunk.size() < WRITE_CHUNK || chunk.get(chunk.size() - 1).getId() == Integer.MAX_VALUE) {
+                        break;
+                    }
+                    fromId = chunk.get(chunk.size() - 1).getId() + 1;
+                }
+                out.writeInt(books);
+                out.flush();
+                // The checksum is not part of what it checks.
+                new DataOutputStream(buffered).writeLong(crc.getValue());
+                buffered.flush();
+                raw.getFD().sync();
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            version = catalogVersion;
+            count = books;
+            WRITE_METRICS.record(System.nanoTime() - start, books);
+        } catch (IOException | SQLException e) {
+            WRITE_METRICS.error(System.nanoTime() - start);
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Runs the save task every intervalSeconds, if set, once the catalog is loaded.
+     */
+    public void start(Runnable save) {
+        if (intervalSeconds > 0) {
+            writer.scheduleWithFixedDelay(save, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic saves. The final snapshot is written by the owner before closing.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+    }
+}
@@ -0,0 +1,316 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The catalog version: one counter row in catalog_version, and the order in which
+ * {@link ChangeFeed} passes on changes.
+ *
+ * A book row carries two numbers. books.version is a random token written with every change of
+ * the row, which the conditional writes compare against (an HTTP ETag, say) and which callers
+ * get back from {@link BookRepository#lastVersion()}. books.stamp is the catalog version at which
+ * the change became visible to feeds, and book_tombstones.stamp the same for a delete.
+ *
+ * Single writes do not touch the counter: they write stamp 0, "pending", in one statement (or a
+ * short transaction when a tombstone goes with the row). {@link BookStatements#stampPending()},
+ * run by every feed refresh, advances the counter once and stamps the new version on every pending
+ * row and tombstone in one transaction. The counter row stays locked until that transaction
+ * commits, so stamps commit in counter order: once a version can be read as committed, every
+ * smaller one is committed too, which is what lets a feed pull "everything after version N"
+ * without missing a row. Writers therefore never queue on the counter, and a burst of writes
+ * costs the feeds one stamp per refresh rather than one counter update per write.
+ *
+ * Long batches (imports, scripts) would make a stamp wait for their rows until they commit, so
+ * they write a {@link #placeholder()} stamp instead and {@link #stamp(Connection, long)} their own
+ * rows with a real version right before committing.
+ *
+ * Tombstones are only needed by feeds that are behind, so they are kept only as long as someone
+ * may still ask for them. Every feed registers in catalog_readers with the oldest version it (or
+ * its instance's snapshot) still needs, and refreshes that row every minute or so;
+ * {@link #prune(Connection, long)} deletes the tombstones up to the oldest version of the
+ * readers seen within the retention period, and records that version as the horizon. A reader
+ * whose row expired, or a snapshot older than the horizon, may have missed deletes and has to
+ * read the catalog again.
+ *
+ * Every statement is plain SQL that MySQL and H2 both run: the counter is advanced with an
+ * UPDATE and read back with a SELECT in the same transaction.
+ */
+public final class CatalogVersion {
+
+    public static final String NEXT = "UPDATE catalog_version SET version = version + 1 WHERE name = 'books'";
+    public static final String CURRENT = "SELECT version FROM catalog_version WHERE name = 'books'";
+
+    // Records that the book with an id was deleted; stamped like a row write.
+    public static final String TOMBSTONE = "INSERT INTO book_tombstones (id, stamp) VALUES (?, 0)";
+    // The same for a batch of unconditional deletes, whose counts are only known afterwards: run
+    // before the DELETE, so only rows that exist get a tombstone.
+    public static final String TOMBSTONE_IF_EXISTS =
+            "INSERT INTO book_tombstones (id, stamp) SELECT id, ? FROM books WHERE id = ?";
+
+    // Whether any row or tombstone is waiting for a stamp.
+    public static final String PENDING = "SELECT CASE WHEN EXISTS (SELECT 1 FROM books WHERE stamp = 0)"
+            + " OR EXISTS (SELECT 1 FROM book_tombstones WHERE stamp = 0) THEN 1 ELSE 0 END";
+
+    // Replace the pending (0) or placeholder stamp of rows and tombstones with a version.
+    public static final String STAMP_BOOKS = "UPDATE books SET stamp = ? WHERE stamp = ?";
+    public static final String STAMP_TOMBSTONES = "UPDATE book_tombstones SET stamp = ? WHERE stamp = ?";
+
+    // The newest version whose tombstones may have been deleted, created on first use. Locked
+    // while registering and pruning, so the two never overlap.
+    public static final String HORIZON = "SELECT version FROM catalog_version WHERE name = 'horizon' FOR UPDATE";
+    public static final String NEW_HORIZON = "INSERT INTO catalog_version (name, version) VALUES ('horizon', 0)";
+    public static final String RAISE_HORIZON = "UPDATE catalog_version SET version = ? WHERE name = 'horizon'";
+
+    // The readers of the catalog, the oldest version each needs and when it last said so (millis).
+    public static final String READING = "UPDATE catalog_readers SET version = ?, seen = ? WHERE name = ?";
+    public static final String REGISTER = "INSERT INTO catalog_readers (name, version, seen) VALUES (?, ?, ?)";
+    public static final String UNREGISTER = "DELETE FROM catalog_readers WHERE name = ?";
+    public static final String OLDEST_READER = "SELECT MIN(version) FROM catalog_readers WHERE seen >= ?";
+    public static final String EXPIRE_READERS = "DELETE FROM catalog_readers WHERE seen < ?";
+    public static final String PRUNE = "DELETE FROM book_tombstones WHERE stamp > 0 AND stamp <= ?";
+
+    // A random id of this database, created on first use; a recreated database gets a new one.
+    public static final String INCARNATION = "SELECT version FROM catalog_version WHERE name = 'incarnation'";
+    public static final String NEW_INCARNATION =
+            "INSERT INTO catalog_version (name, version) VALUES ('incarnation', ?)";
+
+    private CatalogVersion() {
+    }
+
+    /**
+     * Returns the random id of this database, creating it if the database has none yet. Anything
+     * kept outside the database that refers to catalog versions (a {@link CatalogSnapshot}) is
+     * only valid for the incarnation it was taken from, since versions restart with the database.
+     */
+    public static long incarnation(Connection connection) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(INCARNATION)) {
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
+            try (PreparedStatement insert = connection.prepareStatement(NEW_INCARNATION)) {
+                insert.setLong(1, ThreadLocalRandom.current().nextLong());
+                insert.executeUpdate();
+            } catch (SQLException e) {
+                // Two instances may race here; the first id wins and both read it back.
+                if (!BookStatements.isDuplicateKey(e)) {
+                    throw e;
+                }
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("catalog_version has no incarnation row");
+                }
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * Returns a new random token for the rows of one write, positive so that it never matches
+     * the 0 of rows written by plain SQL.
+     */
+    public static long token() {
+        return ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns a stamp for the rows of a batch transaction until {@link #stamp(Connection, long)}.
+     * It is negative, so no feed ever takes it for a version and no pending stamp matches it,
+     * and random, so concurrent batches do not share one.
+     */
+    public static long placeholder() {
+        return -1 - ThreadLocalRandom.current().nextLong(Long.MAX_VALUE - 1);
+    }
+
+    /**
+     * Registers a reader of the catalog, pinned at the current horizon until it reports the
+     * version it needs with {@link #reading(Connection, String, long)}, so no tombstone after the
+     * horizon is deleted from then on.
+     * @param connection A connection in autocommit mode, which it is left in.
+     * @param reader     A name unique to the reader.
+     * @return The horizon: the reader may have missed deletes up to this version, not after it.
+     */
+    public static long register(Connection connection, String reader) throws SQLException {
+        return transaction(connection, () -> {
+            long horizon = lockHorizon(connection);
+            if (!reading(connection, reader, horizon)) {
+                try (PreparedStatement register = connection.prepareStatement(REGISTER)) {
+                    register.setString(1, reader);
+                    register.setLong(2, horizon);
+                    register.setLong(3, System.currentTimeMillis());
+                    register.executeUpdate();
+                }
+            }
+            return horizon;
+        });
+    }
+
+    /**
+     * Reports the oldest version a reader still needs the tombstones after.
+     * @return False if the reader is not registered, or its registration expired and was removed;
+     *         it then has to {@link #register(Connection, String)} again.
+     */
+    public static boolean reading(Connection connection, String reader, long version) throws SQLException {
+        try (PreparedStatement reading = connection.prepareStatement(READING)) {
+            reading.setLong(1, version);
+            reading.setLong(2, System.currentTimeMillis());
+            reading.setString(3, reader);
+            return reading.executeUpdate() > 0;
+        }
+    }
+
+    /**
+     * Removes a reader that needs no tombstones any more.
+     */
+    public static void unregister(Connection connection, String reader) throws SQLException {
+        try (PreparedStatement unregister = connection.prepareStatement(UNREGISTER)) {
+            unregister.setString(1, reader);
+            unregister.executeUpdate();
+        }
+    }
+
+    /**
+     * Removes the readers not seen within the retention period and deletes the tombstones up to
+     * the oldest version the others need (or up to the current version when there are none),
+     * raising the horizon to that version first.
+     * @param connection  A connection in autocommit mode, which it is left in.
+     * @param retentionMs How long a reader stays registered without reporting.
+     * @return The horizon afterwards.
+     */
+    public static long prune(Connection connection, long retentionMs) throws SQLException {
+        return transaction(connection, () -> {
+            long horizon = lockHorizon(connection);
+            long cutoff = System.currentTimeMillis() - retentionMs;
+            try (PreparedStatement expire = connection.prepareStatement(EXPIRE_READERS)) {
+                expire.setLong(1, cutoff);
+                expire.executeUpdate();
+            }
+            long oldest = current(connection);
+            try (PreparedStatement readers = connection.prepareStatement(OLDEST_READER)) {
+                readers.setLong(1, cutoff);
+                try (ResultSet rs = readers.executeQuery()) {
+                    if (rs.next() && rs.getObject(1) != null) {
+                        oldest = Math.min(oldest, rs.getLong(1));
+                    }
+                }
+            }
+            if (oldest <= horizon) {
+                return horizon;
+            }
+            try (PreparedStatement raise = connection.prepareStatement(RAISE_HORIZON);
+                 PreparedStatement prune = connection.prepareStatement(PRUNE)) {
+                raise.setLong(1, oldest);
+                raise.executeUpdate();
+                prune.setLong(1, oldest);
+                prune.executeUpdate();
+            }
+            return oldest;
+        });
+    }
+
+    /**
+     * Reads and locks the horizon, creating it if the database has none yet.
+     */
+    private static long lockHorizon(Connection connection) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(HORIZON)) {
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
+            try (PreparedStatement insert = connection.prepareStatement(NEW_HORIZON)) {
+                insert.executeUpdate();
+            } catch (SQLException e) {
+                if (!BookStatements.isDuplicateKey(e)) {
+                    throw e;
+                }
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("catalog_version has no horizon row");
+                }
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * Work that belongs in one transaction.
+     */
+    private interface Work<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Runs work in a transaction of its own on a connection in autocommit mode.
+     */
+    private static <T> T transaction(Connection connection, Work<T> work) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            T result = work.run();
+            connection.commit();
+            return result;
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException ignored) {
+                // The connection is probably broken; the original failure is what matters.
+            }
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Advances the catalog version and stamps it on the rows and tombstones that carry the given
+     * stamp: a batch's placeholder, or 0 for every pending one. Call right before committing.
+     * @return The version the rows now have.
+     */
+    public static long stamp(Connection connection, long placeholder) throws SQLException {
+        long version = next(connection);
+        try (PreparedStatement books = connection.prepareStatement(STAMP_BOOKS);
+             PreparedStatement tombstones = connection.prepareStatement(STAMP_TOMBSTONES)) {
+            books.setLong(1, version);
+            books.setLong(2, placeholder);
+            books.executeUpdate();
+            tombstones.setLong(1, version);
+            tombstones.setLong(2, placeholder);
+            tombstones.executeUpdate();
+        }
+        return version;
+    }
+
+    /**
+     * Advances the catalog version inside the connection's current transaction.
+     * @param connection A connection with autocommit off; the counter stays locked until it commits.
+     * @return The new version.
+     * @throws SQLException If the counter cannot be advanced, or its row is missing.
+     */
+    public static long next(Connection connection) throws SQLException {
+        try (PreparedStatement next = connection.prepareStatement(NEXT)) {
+            if (next.executeUpdate() == 0) {
+                throw new SQLException("catalog_version has no row for books; create it as in schema.sql");
+            }
+        }
+        return current(connection);
+    }
+
+    /**
+     * Returns the latest committed catalog version, or inside a transaction that advanced it,
+     * the version of that transaction.
+     */
+    public static long current(Connection connection) throws SQLException {
+        try (PreparedStatement current = connection.prepareStatement(CURRENT);
+             ResultSet rs = current.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("catalog_version has no row for books; create it as in schema.sql");
+            }
+            return rs.getLong(1);
+        }
+    }
+}
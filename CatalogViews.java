@@ -0,0 +1,270 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The in-memory views of the catalog (cache, search indexes, inventory reports and the set of
+ * taken ids), built after startup rather than before it, so the menu or the server is ready at
+ * once however large the catalog is.
+ *
+ * Until {@link #load} has finished, the accessors return null and callers read the database,
+ * as they do when a view is turned off; {@link #isTaken(int)} answers false and leaves the
+ * primary key to catch a taken id. Changes reported meanwhile are held back and applied in
+ * order once every view is built, so a write made while a view was being read is not lost
+ * whichever side of the read it fell on. {@link #reload} works the same way.
+ */
+public class CatalogViews implements CatalogListener {
+
+    private final BookCache cache;
+    private final SearchIndex searchIndex;
+    private final FuzzyIndex fuzzyIndex;
+    private final InventoryStats stats;
+    private final IdAllocator ids;
+
+    private final Object building = new Object();
+
+    // Changes reported while the views are being built, applied once they are.
+    private final List<Consumer<CatalogListener>> held = new ArrayList<>();
+    private boolean holding;
+    private volatile boolean loaded;
+
+    /**
+     * @param cache       Optional catalog cache, may be null.
+     * @param searchIndex Optional title/author index, may be null.
+     * @param fuzzyIndex  Optional typo-tolerant index, may be null.
+     * @param stats       Optional inventory reports, may be null.
+     * @param ids         Assigns ids to new books; usable before its ids are loaded.
+     */
+    public CatalogViews(BookCache cache, SearchIndex searchIndex, FuzzyIndex fuzzyIndex,
+                        InventoryStats stats, IdAllocator ids) {
+        this.cache = cache;
+        this.searchIndex = searchIndex;
+        this.fuzzyIndex = fuzzyIndex;
+        this.stats = stats;
+        this.ids = ids;
+    }
+
+    /**
+     * Creates the views turned on by the ebookstore.cache.size, ebookstore.searchIndex,
+     * ebookstore.fuzzy and ebookstore.reports properties.
+     * @param ids Assigns ids to new books.
+     */
+    public static CatalogViews fromSystemProperties(IdAllocator ids) {
+        return new CatalogViews(BookCache.fromSystemProperties(), SearchIndex.fromSystemProperties(),
+                FuzzyIndex.fromSystemProperties(), InventoryStats.fromSystemProperties(), ids);
+    }
+
+    /**
+     * Builds every view, from the given copy of the catalog if there is one and from the
+     * repository otherwise, then applies the changes held back meanwhile.
+     * @param repository Where the catalog is stored.
+     * @param catalog    Every book in the catalog, or null to read them from the repository.
+     * @throws SQLException If the catalog cannot be read; the views then stay unloaded and the
+     *                      changes held back are dropped.
+     */
+    public void load(BookRepository repository, Iterable<Book> catalog) throws SQLException {
+        // A reload asked for by the change feed waits for a load still running.
+        synchronized (building) {
+            hold();
+            try {
+                build(repository, catalog);
+            } catch (SQLException | RuntimeException e) {
+                abandon();
+                throw e;
+            }
+            release();
+        }
+    }
+
+    private void build(BookRepository repository, Iterable<Book> catalog) throws SQLException {
+        if (cache != null) {
+            if (catalog != null) {
+                cache.warm(catalog);
+            } else {
+                cache.warm(repository);
+            }
+        }
+        if (searchIndex != null || fuzzyIndex != null) {
+            // Reuse the cache if it holds the whole catalog, otherwise scan the catalog once.
+            if (catalog == null && cache != null) {
+                catalog = cache.snapshot();
+            }
+            if (catalog == null) {
+                catalog = SearchIndex.readCatalog(repository);
+            }
+            if (searchIndex != null) {
+                searchIndex.build(catalog);
+            }
+            if (fuzzyIndex != null) {
+                fuzzyIndex.build(catalog);
+            }
+        }
+        if (stats != null) {
+            // The reports keep no books, so they page through the catalog rather than copy it.
+            if (catalog != null) {
+                stats.build(catalog);
+            } else {
+                stats.build(repository);
+            }
+        }
+        if (catalog != null) {
+            ids.load(catalog);
+        } else {
+            // Reads only the ids, in keyset pages.
+            ids.load(repository);
+        }
+    }
+
+    /**
+     * Reads every view again from the repository, when changes may have been missed.
+     * The views answer null again until it is done.
+     * @param repository Where the catalog is stored.
+     * @throws SQLException If the catalog cannot be read.
+     */
+    public void reload(BookRepository repository) throws SQLException {
+        load(repository, null);
+    }
+
+    private synchronized void hold() {
+        loaded = false;
+        holding = true;
+    }
+
+    private synchronized void abandon() {
+        held.clear();
+        holding = false;
+    }
+
+    private synchronized void release() {
+        for (Consumer<CatalogListener> change : held) {
+            forward(change);
+        }
+        held.clear();
+        holding = false;
+        loaded = true;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return The catalog cache, or null if it is off or not loaded yet.
+     */
+    public BookCache cache() {
+        return loaded ? cache : null;
+    }
+
+    /**
+     * @return The title/author index, or null if it is off or not loaded yet.
+     */
+    public SearchIndex searchIndex() {
+        return loaded ? searchIndex : null;
+    }
+
+    /**
+     * @return The typo-tolerant index, or null if it is off or not loaded yet.
+     */
+    public FuzzyIndex fuzzyIndex() {
+        return loaded ? fuzzyIndex : null;
+    }
+
+    /**
+     * @return The inventory reports, or null if they are off or not loaded yet.
+     */
+    public InventoryStats stats() {
+        return loaded ? stats : null;
+    }
+
+    public boolean hasFuzzyIndex() {
+        return fuzzyIndex != null;
+    }
+
+    public boolean hasStats() {
+        return stats != null;
+    }
+
+    /**
+     * @return True if a book with this id exists as far as this process knows; false while the
+     *         ids are loading, when only the primary key can tell.
+     */
+    public boolean isTaken(int id) {
+        return loaded && ids.isTaken(id);
+    }
+
+    /**
+     * Returns an id for a new book; see {@link IdAllocator#next()}.
+     * @throws SQLException If a block cannot be leased, or no ids are left.
+     */
+    public int nextId() throws SQLException {
+        return ids.next();
+    }
+
+    /**
+     * Describes what was loaded, for the startup message.
+     */
+    public String summary() {
+        StringBuilder text = new StringBuilder();
+        if (cache != null) {
+            text.append("cache ").append(cache.size()).append(" book(s)")
+                    .append(cache.isComplete() ? "" : " (partial, catalog is larger than the cache)").append(", ");
+        }
+        if (searchIndex != null) {
+            text.append("search index ").append(searchIndex.size()).append(" book(s), ");
+        }
+        if (fuzzyIndex != null) {
+            text.append("fuzzy search index ").append(fuzzyIndex.size()).append(" book(s), ");
+        }
+        if (stats != null) {
+            text.append("reports ").append(stats.size()).append(" book(s), ");
+        }
+        return text.append(ids.size()).append(" book id(s)").toString();
+    }
+
+    @Override
+    public void bookSaved(Book book) {
+        apply(view -> view.bookSaved(book));
+    }
+
+    @Override
+    public void bookDeleted(int id) {
+        apply(view -> view.bookDeleted(id));
+    }
+
+    @Override
+    public void quantityChanged(int id, int qty) {
+        apply(view -> view.quantityChanged(id, qty));
+    }
+
+    private void apply(Consumer<CatalogListener> change) {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    // Views that failed to load are not kept current.
+                    if (holding) {
+                        held.add(change);
+                    }
+                    return;
+                }
+            }
+        }
+        forward(change);
+    }
+
+    private void forward(Consumer<CatalogListener> change) {
+        if (cache != null) {
+            change.accept(cache);
+        }
+        if (searchIndex != null) {
+            change.accept(searchIndex);
+        }
+        if (fuzzyIndex != null) {
+            change.accept(fuzzyIndex);
+        }
+        if (stats != null) {
+            change.accept(stats);
+        }
+        change.accept(ids);
+    }
+}
@@ -0,0 +1,272 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the in-memory views of this instance (cache, indexes, id set, stock ledger) current
+ * with writes made by other instances sharing the same books table.
+ *
+ * Every write marks its row pending, and every delete leaves a pending tombstone. A refresh
+ * first stamps whatever is pending, by any instance, with the next {@link CatalogVersion}, then
+ * reads the latest committed version and pulls only the tombstones and rows stamped after the
+ * last version it saw, up to that one, through the indexes on stamp. A refresh therefore costs
+ * two small queries when nothing changed and grows with the number of changes, never with the
+ * size of the table. The changes are passed to the {@link CatalogListener}s like writes of
+ * this instance: deletes first, then saved rows, which is also right when a book was deleted
+ * and entered again.
+ *
+ * The feed registers as a reader of the catalog and, every minute, reports the oldest version
+ * it still needs (its own, or an older one its instance's snapshot was taken at) and deletes the
+ * tombstones no reader needs any more. A reader that has not reported within
+ * -Debookstore.changes.retentionHours (default 168) is dropped; if that happens to this feed
+ * (the process was suspended, say), it may have missed deletes, so it hands the views to its
+ * {@link Reload} to be read again from the table.
+ *
+ * Refreshes run every intervalMs on a background thread, and callers about to act on a book
+ * (an update or delete in the console) call {@link #refresh()} first. Writes of this instance
+ * come back through the feed as well, which the listeners take as a repeated save.
+ */
+public class ChangeFeed implements AutoCloseable {
+
+    // Changed rows read per query.
+    private static final int PAGE = 1000;
+
+    // How often the feed reports the version it needs and prunes tombstones.
+    private static final long KEEP_INTERVAL_MS = 60_000L;
+
+    private static final OperationMetrics REFRESH_METRICS = Metrics.operation("changes.refresh");
+
+    /**
+     * Reads the in-memory views again from the table, for a feed that may have missed deletes.
+     */
+    public interface Reload {
+        /**
+         * @param catalog The feed's own statements, to read the catalog through.
+         */
+        void run(BookRepository catalog) throws SQLException;
+    }
+
+    private final BookStatements statements;
+    private final List<CatalogListener> listeners;
+    private final ScheduledExecutorService refresher;
+    private final long intervalMs;
+    private final long retentionMs;
+    private final String reader;
+    // The newest version whose tombstones may be gone when the feed registered.
+    private final long horizon;
+    private long version;
+    private LongSupplier retained = () -> Long.MAX_VALUE;
+    private Reload reload;
+    private long nextKeep;
+    private boolean closed = false;
+
+    /**
+     * Registers as a reader and starts following the catalog from its current version. Create
+     * the feed before loading the in-memory views, so nothing written while they load is missed.
+     * @param statements  Statements of a connection of the feed's own, closed with the feed.
+     * @param listeners   In-memory catalog views to pass the changes to.
+     * @param intervalMs  How often {@link #start()} makes the feed refresh, 0 for only on demand.
+     * @param retentionMs How long the registration of a reader that stopped reporting is kept.
+     * @param reader      The name to register under, null for a random one. A name that stays the
+     *                    same across restarts (see {@link CatalogSnapshot#readerName()}) takes over
+     *                    the registration of the previous run instead of leaving it to expire.
+     * @throws SQLException If the feed cannot register or read the current version.
+     */
+    public ChangeFeed(BookStatements statements, List<CatalogListener> listeners, long intervalMs,
+                      long retentionMs, String reader) throws SQLException {
+        this.statements = statements;
+        this.reader = reader != null ? reader : Long.toHexString(ThreadLocalRandom.current().nextLong());
+        this.listeners = listeners;
+        this.intervalMs = intervalMs;
+        this.retentionMs = retentionMs;
+        // Registered first, so no tombstone after the version read next can be deleted.
+        this.horizon = CatalogVersion.register(statements.getConnection(), this.reader);
+        this.version = statements.currentVersion();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "change-feed");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Creates a feed that will refresh every -Debookstore.changes.intervalMs milliseconds
+     * (default 1000, 0 to refresh only on demand) once started, and keeps tombstones for readers
+     * that stopped reporting for -Debookstore.changes.retentionHours (default 168).
+     */
+    public static ChangeFeed fromSystemProperties(BookStatements statements, List<CatalogListener> listeners,
+                                                  String reader) throws SQLException {
+        return new ChangeFeed(statements, listeners, Long.getLong("ebookstore.changes.intervalMs", 1000L),
+                TimeUnit.HOURS.toMillis(Long.getLong("ebookstore.changes.retentionHours", 168L)), reader);
+    }
+
+    /**
+     * @return The newest version whose tombstones may have been deleted when the feed registered;
+     *         the feed cannot start before it.
+     */
+    public long getHorizon() {
+        return horizon;
+    }
+
+    /**
+     * Moves the start back to an earlier version, for views loaded from a {@link CatalogSnapshot};
+     * the first {@link #refresh()} then passes on everything written since.
+     * @throws IllegalArgumentException If the version is before the horizon.
+     */
+    public synchronized void startFrom(long fromVersion) {
+        if (fromVersion < horizon) {
+            throw new IllegalArgumentException("Version " + fromVersion + " is before the horizon " + horizon);
+        }
+        version = Math.min(version, fromVersion);
+    }
+
+    /**
+     * Keeps the tombstones after a version the instance still needs besides the feed itself,
+     * such as the version of its snapshot, as long as the instance runs and for the retention
+     * period after it stops.
+     */
+    public synchronized void retain(LongSupplier oldestVersion) {
+        retained = oldestVersion;
+    }
+
+    /**
+     * Sets what reads the views again when the feed may have missed deletes.
+     */
+    public synchronized void onReload(Reload reload) {
+        this.reload = reload;
+    }
+
+    /**
+     * Starts the periodic refresh, once the listeners are loaded and registered.
+     */
+    public void start() {
+        if (intervalMs > 0) {
+            refresher.scheduleWithFixedDelay(this::refreshQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return The last catalog version whose changes were passed on.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Passes on every change committed since the last refresh.
+     * @return The number of deleted and saved books passed on.
+     * @throws SQLException If the changes cannot be read; the next refresh starts from the same version.
+     */
+    public synchronized int refresh() throws SQLException {
+        if (closed) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        try {
+            statements.stampPending();
+            if (System.currentTimeMillis() >= nextKeep) {
+                keep();
+            }
+            long upTo = statements.currentVersion();
+            if (upTo <= version) {
+                REFRESH_METRICS.record(System.nanoTime() - start, 0);
+                return 0;
+            }
+            int changes = 0;
+            for (int id : statements.deleted(version, upTo)) {
+                for (CatalogListener listener : listeners) {
+                    listener.bookDeleted(id);
+                }
+                changes++;
+            }
+            // Everything after (version, MAX_VALUE) is everything written after version.
+            long afterVersion = version;
+            int afterId = Integer.MAX_VALUE;
+            while (true) {
+                List<Book> page = statements.changes(afterVersion, afterId, upTo, PAGE);
+                for (Book book : page) {
+                    for (CatalogListener listener : listeners) {
+                        listener.bookSaved(book);
+                    }
+                }
+                changes += page.size();
+                if (page.size() < PAGE) {
+                    break;
+                }
+                afterVersion = statements.lastChangeStamp();
+                afterId = page.get(page.size() - 1).getId();
+            }
+            version = upTo;
+            REFRESH_METRICS.record(System.nanoTime() - start, changes);
+            return changes;
+        } catch (SQLException e) {
+            REFRESH_METRICS.error(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Reports the version this instance still needs and prunes the tombstones nobody needs. If
+     * the registration of the feed expired, the feed registers again, and when deletes it has
+     * not seen yet may be gone, it has the views read again and continues from there.
+     */
+    private void keep() throws SQLException {
+        if (!CatalogVersion.reading(statements.getConnection(), reader, oldestNeeded())) {
+            long newHorizon = CatalogVersion.register(statements.getConnection(), reader);
+            if (version < newHorizon) {
+                long current = statements.currentVersion();
+                if (reload != null) {
+                    System.out.println("The catalog changed too long ago to catch up with; reading it again.");
+                    reload.run(statements);
+                } else {
+                    System.out.println("The catalog changed too long ago to catch up with; deletes up to version "
+                            + newHorizon + " may have been missed.");
+                }
+                version = current;
+            }
+            CatalogVersion.reading(statements.getConnection(), reader, oldestNeeded());
+        }
+        CatalogVersion.prune(statements.getConnection(), retentionMs);
+        nextKeep = System.currentTimeMillis() + KEEP_INTERVAL_MS;
+    }
+
+    private long oldestNeeded() {
+        return Math.min(version, retained.getAsLong());
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (SQLException e) {
+            System.out.println("Catalog refresh failed, retrying later: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the periodic refresh and closes the feed's connection. The registration is removed,
+     * unless something retained an older version (a snapshot), which the next start may then
+     * catch up from within the retention period.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        refresher.shutdown();
+        try {
+            if (retained.getAsLong() == Long.MAX_VALUE) {
+                CatalogVersion.unregister(statements.getConnection(), reader);
+            } else {
+                CatalogVersion.reading(statements.getConnection(), reader, oldestNeeded());
+            }
+        } catch (SQLException e) {
+            // The registration expires on its own.
+        }
+        statements.close();
+    }
+}
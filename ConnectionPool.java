@@ -0,0 +1,121 @@
+import java.sql.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small, bounded pool of JDBC connections.
+ *
+ * At most maxSize connections are open at once. Connections are opened lazily and reused;
+ * a caller that cannot get one within its timeout receives an SQLTransientConnectionException,
+ * which lets the server shed load instead of queueing without bound.
+ *
+ * Each pooled connection travels with its {@link BookStatements}, so its prepared statements
+ * are created once per connection and reused by every request that borrows it.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private static final OperationMetrics ACQUIRE_METRICS = Metrics.operation("pool.acquire");
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int queryTimeoutSeconds;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<BookStatements> idle = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param url      JDBC URL of the database.
+     * @param username Database user.
+     * @param password Database password.
+     * @param maxSize  Maximum number of open connections.
+     * @param queryTimeoutSeconds Timeout for every statement run on a pooled connection, 0 for none.
+     */
+    public ConnectionPool(String url, String username, String password, int maxSize, int queryTimeoutSeconds) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+        this.permits = new Semaphore(Math.max(1, maxSize), true);
+    }
+
+    /**
+     * Borrows a connection, waiting at most timeoutMillis for one to become free.
+     * Every successful call must be paired with {@link #release(BookStatements)}.
+     * @param timeoutMillis How long to wait when all connections are in use.
+     * @return The statements of an open connection in autocommit mode.
+     * @throws SQLTransientConnectionException If no connection became free in time.
+     * @throws SQLException If a new connection cannot be opened.
+     */
+    public BookStatements acquire(long timeoutMillis) throws SQLException {
+        if (closed) {
+            throw new SQLNonTransientConnectionException("Connection pool is closed");
+        }
+        // Time spent waiting for a permit plus opening a connection when no idle one is left.
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                ACQUIRE_METRICS.error(System.nanoTime() - start);
+                throw new SQLTransientConnectionException("Connection pool exhausted");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ACQUIRE_METRICS.error(System.nanoTime() - start);
+            throw new SQLTransientConnectionException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            BookStatements statements;
+            while ((statements = idle.poll()) != null) {
+                if (!statements.getConnection().isClosed()) {
+                    ACQUIRE_METRICS.record(System.nanoTime() - start, 0);
+                    return statements;
+                }
+            }
+            statements = new BookStatements(DriverManager.getConnection(url, username, password), queryTimeoutSeconds);
+            ACQUIRE_METRICS.record(System.nanoTime() - start, 0);
+            return statements;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            ACQUIRE_METRICS.error(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. Broken or closed connections are dropped.
+     * @param statements The statements obtained from {@link #acquire(long)}.
+     */
+    public void release(BookStatements statements) {
+        try {
+            Connection connection = statements.getConnection();
+            if (closed || connection.isClosed() || !connection.getAutoCommit()) {
+                // A connection left inside a transaction is not safe to hand to the next caller.
+                closeQuietly(statements);
+            } else {
+                idle.offer(statements);
+            }
+        } catch (SQLException e) {
+            closeQuietly(statements);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes all idle connections; connections still borrowed are closed when released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        BookStatements statements;
+        while ((statements = idle.poll()) != null) {
+            closeQuietly(statements);
+        }
+    }
+
+    private static void closeQuietly(BookStatements statements) {
+        // Closes the statements and their connection.
+        statements.close();
+    }
+}
@@ -1,5 +1,17 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class represents an eBook store management system, providing a command-line
@@ -8,14 +20,82 @@ import java.util.Scanner;
  */
 public class EbookStore {
 
-    private static final String DATABASE_URL = "jdbc:mysql://localhost:3306/ebookstore?useSSL=false";
-    private static final String USERNAME = "YourChosenUsername";
-    private static final String PASSWORD = "YourChosenPassword";
-    
+    // rewriteBatchedStatements lets the MySQL driver send a JDBC batch as multi-row INSERTs.
+    // Each setting can be overridden with a system property, e.g. to run against an embedded database.
+    private static final String DATABASE_URL = System.getProperty("ebookstore.db.url",
+            "jdbc:mysql://localhost:3306/ebookstore?useSSL=false&rewriteBatchedStatements=true");
+    private static final String USERNAME = System.getProperty("ebookstore.db.user", "YourChosenUsername");
+    private static final String PASSWORD = System.getProperty("ebookstore.db.password", "YourChosenPassword");
+
+    // With -Debookstore.pager=true, catalog and search pages hold as many books as fit on the
+    // terminal next to the lines printed around them, so a redraw never scrolls the screen.
+    private static final boolean PAGER = Boolean.getBoolean("ebookstore.pager");
+    // Lines around a catalog page: title, column headers, footer, the menu and its prompt.
+    private static final int LISTING_LINES = 17;
+    // Lines around a search page: the found message, column headers and the "Show more?" prompt.
+    private static final int SEARCH_LINES = 5;
+
+    // Number of books shown per catalog page; override with -Debookstore.pageSize=N.
+    private static final int PAGE_SIZE = Math.max(1, PAGER ? TableRenderer.screenRows() - LISTING_LINES
+            : Integer.getInteger("ebookstore.pageSize", 20));
+
+    // Renders catalog and search pages to standard output.
+    private static final TableRenderer table = TableRenderer.forConsole(System.out);
+
+    // Keyset cursor for the catalog listing. The current page starts at pageFirstId (inclusive),
+    // so moving between pages is an index seek on the primary key rather than an OFFSET scan.
+    private static int pageFirstId = Integer.MIN_VALUE;
+    private static int pageLastId = Integer.MIN_VALUE;
+    private static boolean hasNextPage = false;
+
+    // Cache, search indexes, reports and taken ids, loaded in the background; set up in main.
+    private static CatalogViews views;
+
+    // Hands out ids for new books and knows which ids are taken; set up in main.
+    private static IdAllocator ids;
+
+    // Pulls the writes of other instances into the in-memory views; null with embedded storage.
+    private static ChangeFeed changes;
+
+    // Copy of the catalog on disk for a fast restart (-Debookstore.snapshot.file); null when off.
+    private static CatalogSnapshot snapshot;
+    // Reads the books for the snapshot on a connection of its own; null when snapshots are off.
+    private static BookStatements snapshotStatements;
+
+    // In-memory views of the catalog that must see every successful write.
+    // Registered from main and read by the console, the server, the change feed and the ledger.
+    private static final List<CatalogListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Time spent getting the current page (from the cache or the database), formatting output,
+    // and getting each page of search results. Statements are timed inside BookStatements.
+    private static final OperationMetrics LIST_METRICS = Metrics.operation("console.list");
+    private static final OperationMetrics RENDER_METRICS = Metrics.operation("console.render");
+    private static final OperationMetrics SEARCH_METRICS = Metrics.operation("console.search");
+
+    // Search results shown per page (-Debookstore.search.limit=N), and whether the number of
+    // matches is counted before the first page is shown (-Debookstore.search.count=true).
+    private static final int SEARCH_LIMIT = Math.max(1, PAGER ? TableRenderer.screenRows() - SEARCH_LINES
+            : Integer.getInteger("ebookstore.search.limit", 20));
+    private static final boolean SEARCH_COUNT = Boolean.getBoolean("ebookstore.search.count");
+
+    // Applies sales and restocks in memory and writes them to the database in batches.
+    private static StockLedger stock;
+    // Storage the ledger flushes through: a connection of its own with JDBC, else the store itself.
+    private static BookRepository stockRepository;
+
+    // The catalog storage opened by main, the HTTP server in server mode (else null), and whether
+    // shutdown() has run; see shutdown().
+    private static BookRepository store;
+    private static StoreServer httpServer;
+    private static volatile boolean shutDown;
+
     /**
      * The main method that drives the program, establishing a connection to the database
      * and allowing the user to choose various operations via a menu.
-     * @param args Command-line arguments passed to the program (not used).
+     * @param args Command-line arguments: "--import FILE" loads a CSV/TSV file and exits,
+     *             "--export FILE" writes the catalog to a CSV/JSONL file and exits,
+     *             "--server [PORT]" serves the store over HTTP instead of the console menu,
+     *             "--batch FILE|-" runs a script of JSON commands (- reads standard input) and exits.
      */
     /**
      * Establishes a connection to the database and handles the main program flow.
@@ -25,32 +105,135 @@ public class EbookStore {
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
         Connection connection = null;
+        BookRepository repository = null;
+        boolean batch = args.length >= 2 && "--batch".equals(args[0]);
+        // In batch mode standard output carries only the JSON results, so messages go to stderr.
+        PrintStream results = System.out;
+        if (batch) {
+            System.setOut(System.err);
+        }
 
         try {
-        	// Connect to the database using the specified URL, username, and password.
-            // The useSSL=false parameter is used to avoid SSL issues.
-            connection = DriverManager.getConnection(DATABASE_URL, USERNAME, PASSWORD);
-            System.out.println("Connection to the bookstore database successful!\n");
+            if ("mapped".equals(System.getProperty("ebookstore.storage", "jdbc"))) {
+                // Embedded storage: the whole catalog lives in a local file, no database server needed.
+                repository = MappedBookRepository.fromSystemProperties();
+                store = repository;
+                System.out.println("Opened the embedded bookstore file successfully!\n");
+            } else {
+            	// Connect to the database using the specified URL, username, and password.
+                // The useSSL=false parameter is used to avoid SSL issues.
+                connection = openConnection();
+                System.out.println("Connection to the bookstore database successful!\n");
+                // Prepared once for the whole session and reused by every menu operation.
+                repository = new BookStatements(connection, 0);
+                store = repository;
+            }
+            // One hook for Ctrl+C and the end of server mode, so everything closes in order.
+            Runtime.getRuntime().addShutdownHook(new Thread(EbookStore::shutdown));
+            if (batch) {
+                // A batch script runs before the cache and indexes are loaded, so it needs no listeners.
+                if (connection == null) {
+                    System.out.println(args[0] + " needs the database; run without -Debookstore.storage=mapped.");
+                } else {
+                    runBatch((BookStatements) repository, args[1], results);
+                }
+                return;
+            }
+            boolean server = args.length >= 1 && "--server".equals(args[0]);
+            if (connection == null && (server || (args.length >= 2
+                    && ("--import".equals(args[0]) || "--export".equals(args[0]))))) {
+                System.out.println(args[0] + " needs the database; run without -Debookstore.storage=mapped.");
+                return;
+            }
+            // Like a batch script, an import or export exits once done, so it loads no in-memory views.
+            if (args.length >= 2 && "--import".equals(args[0])) {
+                importBooks(connection, args[1]);
+                return;
+            }
+            if (args.length >= 2 && "--export".equals(args[0])) {
+                exportBooks(connection, args[1]);
+                return;
+            }
+            // Blocks of ids are leased from the database on a connection of their own, since the
+            // server assigns ids from request threads.
+            ids = IdAllocator.fromSystemProperties(connection != null ? openConnection() : null);
+            ids.startAfterHighest(repository);
+            views = CatalogViews.fromSystemProperties(ids);
+            listeners.add(views);
+            if (connection != null) {
+                snapshot = CatalogSnapshot.fromSystemProperties();
+                // Created before anything is loaded, so writes made meanwhile are pulled later.
+                changes = ChangeFeed.fromSystemProperties(new BookStatements(openConnection(), 0), listeners,
+                        snapshot != null ? snapshot.readerName() : null);
+                changes.onReload(views::reload);
+                if (snapshot != null) {
+                    snapshotStatements = new BookStatements(openConnection(), 0);
+                }
+            }
+            // The flusher writes from its own thread, so with JDBC it gets its own connection.
+            // The embedded file is safe to share between threads.
+            stockRepository = connection != null
+                    ? new BookStatements(openConnection(), 0) : repository;
+            // No cache: it may still be loading, so a book's quantity is read when it is first sold.
+            stock = StockLedger.fromSystemProperties(null, listeners, stockRepository);
+            listeners.add(stock);
+            // The menu and the server read the database until the views are loaded.
+            loadViews(connection != null ? null : repository);
+            // A summary line of all latencies every N seconds: off by default in the console,
+            // where it would interleave with the menu, and every minute in server mode.
+            Metrics.startReporter(Integer.getInteger("ebookstore.metrics.logIntervalSeconds", server ? 60 : 0));
+            if (server) {
+                startServer(args.length >= 2 ? Integer.parseInt(args[1]) : 8080);
+                return;
+            }
 
             int option;
             do {
-                printBooks(connection); // Display current books
+                printBooks(repository); // Display current books
                 printMenu();
                 System.out.print("Choose an option: ");
                 option = scanner.nextInt();
                 scanner.nextLine();
                 switch (option) {
                     case 1:
-                        enterBook(scanner, connection);
+                        enterBook(scanner, repository);
                         break;
                     case 2:
-                        updateBook(scanner, connection);
+                        updateBook(scanner, repository);
                         break;
                     case 3:
-                        deleteBook(scanner, connection);
+                        deleteBook(scanner, repository);
                         break;
                     case 4:
-                        searchBooks(scanner, connection);
+                        searchBooks(scanner, repository);
+                        break;
+                    case 5:
+                        nextPage();
+                        break;
+                    case 6:
+                        previousPage(repository);
+                        break;
+                    case 7:
+                        if (connection == null) {
+                            System.out.println("Importing needs the database; run without -Debookstore.storage=mapped.");
+                            break;
+                        }
+                        System.out.print("File to import (CSV or TSV: id, title, author, qty): ");
+                        importBooks(connection, scanner.nextLine().trim());
+                        break;
+                    case 8:
+                        if (connection == null) {
+                            System.out.println("Exporting needs the database; run without -Debookstore.storage=mapped.");
+                            break;
+                        }
+                        System.out.print("File to export to (.csv or .jsonl, add .gz to compress): ");
+                        exportBooks(connection, scanner.nextLine().trim());
+                        break;
+                    case 9:
+                        adjustStock(scanner);
+                        break;
+                    case 10:
+                        showReports(scanner, repository);
                         break;
                     case 0: // Exit the program
                         System.out.println("Exiting the program.");
@@ -61,21 +244,166 @@ public class EbookStore {
             } while (option != 0);
 
         } catch (SQLException e) {
-            System.out.println("Connection to the database failed!");
+            System.out.println(connection == null && repository == null
+                    ? "Opening the bookstore failed!" : "Connection to the database failed!");
             e.printStackTrace();
         } finally {
-            try {
-                if (connection != null && !connection.isClosed()) {
-                    connection.close();
-                    System.out.println("Connection closed.");
+            // A running server keeps the process alive; the shutdown hook closes everything then.
+            if (httpServer == null) {
+                shutdown();
+                if (repository == null && connection != null) {
+                    try {
+                        connection.close();
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
                 }
-            } catch (SQLException e) {
-                e.printStackTrace();
             }
         }
+        BookCache cache = views != null ? views.cache() : null;
+        if (cache != null) {
+            System.out.println(cache.stats());
+        }
+        System.out.println(Metrics.summary());
         scanner.close();
     }
     
+    /**
+     * Opens a connection to the bookstore database using the configured URL and credentials.
+     * @return A new connection in autocommit mode.
+     * @throws SQLException If the database cannot be reached.
+     */
+    static Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(DATABASE_URL, USERNAME, PASSWORD);
+    }
+
+    /**
+     * Loads the catalog snapshot, if there is a usable one, and the in-memory views on a thread
+     * of their own, then starts the change feed and the snapshot schedule. The views answer null
+     * until they are loaded, so the menu and the server are up at once and read the database
+     * meanwhile; changes made in the meantime are applied once the views are built.
+     * @param repository The embedded store, safe to share between threads; null with JDBC, where
+     *                   the loader reads the catalog on a connection of its own.
+     */
+    private static void loadViews(BookRepository repository) {
+        Thread loader = new Thread(() -> {
+            long start = System.nanoTime();
+            BookStatements statements = null;
+            Iterable<Book> catalog = null;
+            try {
+                if (repository == null) {
+                    statements = new BookStatements(openConnection(), 0);
+                }
+                if (snapshot != null) {
+                    catalog = snapshot.load(statements.incarnation(), changes.getVersion(), changes.getHorizon());
+                    // Deletes after the snapshot on disk are kept for its next start; its version
+                    // is 0 until one is loaded or written.
+                    changes.retain(() -> snapshot.getVersion() > 0 ? snapshot.getVersion() : Long.MAX_VALUE);
+                }
+                if (catalog != null) {
+                    // The feed catches up from the snapshot's version once everything is loaded.
+                    changes.startFrom(snapshot.getVersion());
+                    System.out.println("Catalog snapshot loaded with " + snapshot.getCount()
+                            + " book(s) at version " + snapshot.getVersion() + ".");
+                }
+                views.load(statements != null ? statements : repository, catalog);
+                System.out.println("Catalog views loaded in " + (System.nanoTime() - start) / 1_000_000
+                        + " ms: " + views.summary() + ".");
+            } catch (SQLException | RuntimeException e) {
+                if (!shutDown) {
+                    System.out.println("Could not load the catalog views, reading the database instead: "
+                            + e.getMessage());
+                }
+            } finally {
+                if (statements != null) {
+                    statements.close();
+                }
+            }
+            startFeed(catalog != null);
+        }, "catalog-views");
+        // Never keeps the process alive; shutdown() closes what it reads from.
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Starts the change feed and the snapshot schedule, once the views are loaded, unless
+     * shutdown() has run meanwhile.
+     * @param fromSnapshot Whether the views were loaded from the snapshot, so the feed has the
+     *                     changes since it to catch up with.
+     */
+    private static synchronized void startFeed(boolean fromSnapshot) {
+        if (shutDown) {
+            return;
+        }
+        if (changes != null) {
+            if (fromSnapshot) {
+                try {
+                    System.out.println("Caught up with " + changes.refresh() + " change(s) since the snapshot.");
+                } catch (SQLException e) {
+                    System.out.println("Could not catch up with the changes since the snapshot: " + e.getMessage());
+                }
+            }
+            changes.start();
+        }
+        if (snapshot != null) {
+            snapshot.start(EbookStore::saveSnapshot);
+        }
+    }
+
+    /**
+     * Closes everything main opened, once and in order: the HTTP server first, so no request is
+     * left selling or writing; then the stock ledger, whose final flush needs the repositories;
+     * then the snapshot (saved after that flush), the change feed, the id leases and last the
+     * repositories. Runs when the menu exits, when main fails, and from the shutdown hook on
+     * Ctrl+C or at the end of server mode, whichever comes first.
+     */
+    private static synchronized void shutdown() {
+        if (shutDown) {
+            return;
+        }
+        shutDown = true;
+        if (httpServer != null) {
+            httpServer.stop(2);
+        }
+        // Stock changes accepted but not yet flushed must survive Ctrl+C as well as a normal exit.
+        if (stock != null) {
+            stock.close();
+        }
+        if (snapshot != null) {
+            snapshot.close();
+            saveSnapshot();
+            snapshotStatements.close();
+        }
+        if (changes != null) {
+            changes.close();
+        }
+        if (ids != null) {
+            ids.close();
+        }
+        if (stockRepository != null && stockRepository != store) {
+            stockRepository.close();
+        }
+        if (store != null) {
+            // Closes the connection, or unmaps the embedded file.
+            store.close();
+            System.out.println(store instanceof BookStatements ? "Connection closed." : "Store closed.");
+        }
+    }
+
+    /**
+     * Writes the catalog snapshot from the books table. Pending stock changes are flushed first,
+     * so the snapshot has the quantities sold and restocked in this process.
+     */
+    private static void saveSnapshot() {
+        try {
+            stock.flush();
+            snapshot.write(snapshotStatements);
+        } catch (SQLException | IOException e) {
+            System.out.println("Could not save the catalog snapshot: " + e.getMessage());
+        }
+    }
+
     /**
      * Prints the menu for the bookstore management system.
      */
@@ -85,55 +413,229 @@ public class EbookStore {
         System.out.println("2. Update book");
         System.out.println("3. Delete book");
         System.out.println("4. Search books");
+        System.out.println("5. Next page");
+        System.out.println("6. Previous page");
+        System.out.println("7. Import books from file");
+        System.out.println("8. Export books to file");
+        System.out.println("9. Sell or restock a book");
+        System.out.println("10. Inventory reports");
         System.out.println("0. Exit");
     }
 
     /**
-     * Fetches and prints a list of all books from the database.
-     * @param connection The established SQL connection.
+     * Fetches and prints the current page of books from the database.
+     * Only PAGE_SIZE + 1 rows are read (the extra row tells us whether a next page exists),
+     * so the cost of a redraw does not depend on the size of the catalog.
+     * @param repository Where the catalog is stored.
      */
-    private static void printBooks(Connection connection) {
-        String sql = "SELECT id, title, author, qty FROM books ORDER BY id";
-        try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            System.out.println("\nCurrent Books:");
-            System.out.println(String.format("%-5s %-50s %-30s %-4s", "ID", "Title", "Author", "Qty"));
-            while (rs.next()) {
-                int id = rs.getInt("id");
-                String title = rs.getString("title");
-                String author = rs.getString("author");
-                int qty = rs.getInt("qty");
-                System.out.println(String.format("%-5d %-50s %-30s %-4d", id, title, author, qty));
+    private static void printBooks(BookRepository repository) {
+        long start = System.nanoTime();
+        BookCache cache = views.cache();
+        List<Book> page = cache != null ? cache.page(pageFirstId, PAGE_SIZE + 1) : null;
+        if (page == null) {
+            page = fetchPage(repository);
+            if (page == null) {
+                LIST_METRICS.error(System.nanoTime() - start);
+                return;
             }
+        }
+        LIST_METRICS.record(System.nanoTime() - start, page.size());
+        if (page.isEmpty() && pageFirstId != Integer.MIN_VALUE) {
+            // Everything on this page was deleted; start again from the first page.
+            pageFirstId = Integer.MIN_VALUE;
+            printBooks(repository);
+            return;
+        }
+        // One row past the page means there is more to show, but it belongs to the next page.
+        hasNextPage = page.size() > PAGE_SIZE;
+        if (hasNextPage) {
+            page = page.subList(0, PAGE_SIZE);
+        }
+        if (!page.isEmpty()) {
+            pageLastId = page.get(page.size() - 1).getId();
+        }
+        start = System.nanoTime();
+        table.table("\nCurrent Books:", page,
+                hasNextPage ? "(more books: choose 5 for the next page)" : "(end of catalog)");
+        RENDER_METRICS.record(System.nanoTime() - start, page.size());
+    }
+
+    /**
+     * Reads the current page of books, plus one extra row, from the database.
+     * @param repository Where the catalog is stored.
+     * @return The books starting at pageFirstId, or null if the query failed.
+     */
+    private static List<Book> fetchPage(BookRepository repository) {
+        try {
+            return repository.page(pageFirstId, PAGE_SIZE + 1);
         } catch (SQLException e) {
             System.out.println("Error occurred while fetching books.");
             e.printStackTrace();
+            return null;
         }
     }
 
     /**
-     * Handles the user input for entering a new book into the database.
-     * @param scanner The scanner instance for user input.
+     * Moves the catalog listing to the page after the one currently shown.
+     */
+    private static void nextPage() {
+        if (!hasNextPage) {
+            System.out.println("Already at the last page.");
+            return;
+        }
+        // hasNextPage guarantees a larger id exists, so pageLastId + 1 cannot overflow.
+        pageFirstId = pageLastId + 1;
+    }
+
+    /**
+     * Moves the catalog listing to the page before the one currently shown.
+     * Seeks backwards from the first id on screen and only reads the ids of the previous page.
+     * @param repository Where the catalog is stored.
+     */
+    private static void previousPage(BookRepository repository) {
+        if (pageFirstId == Integer.MIN_VALUE) {
+            System.out.println("Already at the first page.");
+            return;
+        }
+        try {
+            BookCache cache = views.cache();
+            List<Integer> ids = cache != null ? cache.idsBefore(pageFirstId, PAGE_SIZE) : null;
+            if (ids == null) {
+                ids = repository.idsBefore(pageFirstId, PAGE_SIZE);
+            }
+            if (ids.isEmpty()) {
+                System.out.println("Already at the first page.");
+                pageFirstId = Integer.MIN_VALUE;
+            } else {
+                // Ids arrive in descending order, so the last one starts the previous page.
+                pageFirstId = ids.get(ids.size() - 1);
+            }
+        } catch (SQLException e) {
+            System.out.println("Error occurred while fetching books.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts the HTTP/JSON front end. The server keeps running after main returns and is
+     * stopped by a shutdown hook (Ctrl+C). It uses its own connection pool, configured with
+     * ebookstore.server.poolSize (default 20), ebookstore.server.acquireTimeoutMs (default 1000),
+     * ebookstore.server.queryTimeoutSeconds (default 5) and ebookstore.server.maxConcurrent
+     * (default 10000).
+     * @param port The TCP port to listen on.
+     */
+    private static void startServer(int port) {
+        ConnectionPool pool = new ConnectionPool(DATABASE_URL, USERNAME, PASSWORD,
+                Integer.getInteger("ebookstore.server.poolSize", 20),
+                Integer.getInteger("ebookstore.server.queryTimeoutSeconds", 5));
+        try {
+            StoreServer server = new StoreServer(port, pool,
+                    Long.getLong("ebookstore.server.acquireTimeoutMs", 1000L),
+                    Integer.getInteger("ebookstore.server.maxConcurrent", 10000),
+                    views, listeners, stock);
+            server.start();
+            // Stopped first by shutdown(), before the ledger it sells through.
+            httpServer = server;
+            System.out.println("Bookstore server listening on port " + server.getPort() + ".");
+        } catch (IOException e) {
+            pool.close();
+            System.out.println("Could not start the server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads books from a CSV or TSV file using JDBC batches and reports the throughput.
+     * Batch size, commit interval, parser threads and duplicate handling are configured
+     * with the ebookstore.import.* system properties (see BulkImporter).
+     * @param connection The established SQL connection.
+     * @param path The file to import.
+     */
+    private static void importBooks(Connection connection, String path) {
+        BulkImporter importer = BulkImporter.fromSystemProperties(connection, listeners);
+        try {
+            BulkImporter.Result result = importer.importFile(Paths.get(path));
+            System.out.println("Import finished: " + result);
+        } catch (IOException e) {
+            System.out.println("Could not read import file: " + e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Import failed, the current batch was rolled back.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs a script of enter, update, delete and search commands in grouped JDBC batches and
+     * transactions, writing one JSON result line per command (see BatchRunner). Batch size and
+     * commit interval are configured with the ebookstore.batch.* system properties.
+     * @param statements The statements of the established SQL connection.
+     * @param path The script file, or "-" to read standard input.
+     * @param results Where the JSON results are written.
+     */
+    private static void runBatch(BookStatements statements, String path, PrintStream results) {
+        BatchRunner runner = BatchRunner.fromSystemProperties(statements);
+        try (BufferedReader script = "-".equals(path)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(results, StandardCharsets.UTF_8));
+            BatchRunner.Result result = runner.run(script, out);
+            System.out.println("Batch finished: " + result);
+        } catch (IOException e) {
+            System.out.println("Could not run batch script: " + e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Batch stopped, the current transaction was rolled back.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Streams the whole books table to a CSV or JSON Lines file, optionally gzip compressed.
+     * A progress line is printed every -Debookstore.export.progressInterval rows (default 100000).
      * @param connection The established SQL connection.
+     * @param path The file to write.
      */
+    private static void exportBooks(Connection connection, String path) {
+        CatalogExporter exporter = new CatalogExporter(connection,
+                Long.getLong("ebookstore.export.progressInterval", 100000L));
+        try {
+            long rows = exporter.export(Paths.get(path));
+            System.out.println("Export finished: " + rows + " book(s) written to " + path);
+        } catch (IOException e) {
+            System.out.println("Could not write export file: " + e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Error occurred while exporting books.");
+            e.printStackTrace();
+        }
+    }
+
     /**
-     * Inserts a new book into the database after ensuring the ID is unique, improving data integrity.
+     * Handles the user input for entering a new book into the database.
+     * A blank ID assigns the next free one from the id allocator, without asking the database.
+     * An ID typed in is checked against the ids known to be taken, also without a round trip.
+     * The primary key still has the last word: the INSERT itself reports an ID taken by another
+     * client, and then an assigned ID is replaced by the next one, a typed one asked for again.
      * Consumes the newline character left over from nextInt() to prevent input skipping.
+     * @param scanner The scanner instance for user input.
+     * @param repository Where the catalog is stored.
      */
-    private static void enterBook(Scanner scanner, Connection connection) {
+    private static void enterBook(Scanner scanner, BookRepository repository) {
         System.out.println("\nEnter details of the book:");
 
-        int id;
-        while (true) {
-            System.out.print("ID: ");
-            id = scanner.nextInt();
-            scanner.nextLine(); // consume the leftover newline
-
-          // Check if the ID already exists to enforce the uniqueness constraint on book IDs.
-            if (checkIfIdExists(id, connection)) {
+        System.out.print("ID (leave blank to assign one): ");
+        String idText = scanner.nextLine().trim();
+        boolean assigned = idText.isEmpty();
+        int id = 0;
+        if (!assigned) {
+            try {
+                id = Integer.parseInt(idText);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid book ID format.");
+                return;
+            }
+            while (views.isTaken(id)) {
                 System.out.println("ID already in use. Try another.");
-            } else {
-                break; // Exit loop if ID is unique
+                System.out.print("ID: ");
+                id = scanner.nextInt();
+                scanner.nextLine(); // consume the leftover newline
             }
         }
 
@@ -145,51 +647,37 @@ public class EbookStore {
 
         System.out.print("Quantity: ");
         int qty = scanner.nextInt();
-        
-        String sql = "INSERT INTO books (id, title, author, qty) VALUES (?, ?, ?, ?)";
-        
-        try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
-            preparedStatement.setInt(1, id);
-            preparedStatement.setString(2, title);
-            preparedStatement.setString(3, author);
-            preparedStatement.setInt(4, qty);
-            int rowsAffected = preparedStatement.executeUpdate();
-            System.out.println(rowsAffected + " book(s) entered.");
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
+        scanner.nextLine(); // consume the leftover newline
 
-    /**
-     * Checks if the book ID already exists in the database.
-     * @param id The book ID to check.
-     * @param connection The established SQL connection.
-     * @return boolean True if the ID exists, false otherwise.
-     */
-    // Method to check if a book ID already exists in the database to ensure each book has a unique identifier, this helps with data integrity.
-    private static boolean checkIfIdExists(int id, Connection connection) {
-        String sql = "SELECT COUNT(*) FROM books WHERE id = ?";
-        try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
-            preparedStatement.setInt(1, id);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-            	// true if count > 0, meaning ID exists
-                return resultSet.getInt(1) > 0; 
+        try {
+            Book book = new Book(assigned ? views.nextId() : id, title, author, qty);
+            while (!repository.insert(book)) {
+                if (assigned) {
+                    book = book.withId(views.nextId());
+                    continue;
+                }
+                System.out.println("ID already in use. Try another.");
+                System.out.print("ID: ");
+                book = book.withId(scanner.nextInt());
+                scanner.nextLine(); // consume the leftover newline
             }
+            notifySaved(book.withVersion(repository.lastVersion()));
+            System.out.println("1 book(s) entered" + (assigned ? " with ID " + book.getId() + "." : "."));
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return false;
     }
 
     /**
      * Updates details for an existing book in the database.
      * Users can search for the book by ID or name and choose to update the title, author, quantity, or ID.
+     * The update only applies if the book still holds the details shown to the user, so a change
+     * made by someone else in the meantime is never silently overwritten.
      *
      * @param scanner    Scanner to read user input.
-     * @param connection Connection object to the database.
+     * @param repository Where the catalog is stored.
      */
-    private static void updateBook(Scanner scanner, Connection connection) {
+    private static void updateBook(Scanner scanner, BookRepository repository) {
     	// Get user choice for search method
     	String methodChoice;
         while (true) {
@@ -205,19 +693,16 @@ public class EbookStore {
             System.out.println("Invalid choice. Please enter '1' or '2'.");
         }
 
-        String sqlQuery = "";
         int bookId = 0;
         String bookTitle = "";
-        
-       // Prepare the SQL query based on the search method
+
+       // Read the search key based on the search method
         if (methodChoice.equals("1")) {
             System.out.print("Enter the Book ID: ");
             try {
             	// Read the book ID from the user
                 bookId = Integer.parseInt(scanner.nextLine());
-                sqlQuery = "SELECT * FROM books WHERE id = ?";            
             } catch (NumberFormatException e) {
-            	// SQL query to select a book by ID
                 System.out.println("Invalid book ID format.");
                 return;
             }
@@ -225,41 +710,26 @@ public class EbookStore {
         	System.out.print("Enter the Book Title: ");
             // Read the book name from the user
             bookTitle = scanner.nextLine();
-            // SQL query to select a book by name, ignoring case and special characters
-            sqlQuery = "SELECT * FROM books WHERE LOWER(REPLACE(REPLACE(title, '''', ''), ',', '')) LIKE ?";
-
         }
-        // Execute the prepared statement and process the ResultSet
-        try (PreparedStatement preparedStatement = connection.prepareStatement(sqlQuery)) {
-            if (methodChoice.equals("1")) {
-                preparedStatement.setInt(1, bookId);
-            } else {
-                preparedStatement.setString(1, "%" + bookTitle.toLowerCase().replace("'", "").replace(",", "") + "%");
-                // Set the book name in the SQL query, formatted for the LIKE clause
-            }
-            ResultSet resultSet = preparedStatement.executeQuery();
 
-            if (!resultSet.next()) {
-                System.out.println("Book not found.");
-                return;
-            } else {
-            	// Book found, retrieve details from ResultSet
-                bookId = resultSet.getInt("id"); 
-                String title = resultSet.getString("title");
-                String author = resultSet.getString("author");
-                int quantity = resultSet.getInt("qty");
-                
-                // Display current book details before updating
-                System.out.println("Current Book Details:");
-                System.out.println("ID: " + bookId);
-                System.out.println("Title: " + title);
-                System.out.println("Author: " + author);
-                System.out.println("Quantity: " + quantity);
-            }
+        Book current;
+        try {
+            current = findBook(repository, methodChoice.equals("1"), bookId, bookTitle);
         } catch (SQLException e) {
             e.printStackTrace();
             return;
         }
+        if (current == null) {
+            System.out.println("Book not found.");
+            return;
+        }
+        // Book found, display current book details before updating
+        bookId = current.getId();
+        System.out.println("Current Book Details:");
+        System.out.println("ID: " + bookId);
+        System.out.println("Title: " + current.getTitle());
+        System.out.println("Author: " + current.getAuthor());
+        System.out.println("Quantity: " + current.getQty());
 
         String updateChoice;
         while (true) {
@@ -298,31 +768,243 @@ public class EbookStore {
         System.out.print("Enter new " + updateField + ": ");
         String newValue = scanner.nextLine();
 
-        String updateSql = "UPDATE books SET " + updateField + " = ? WHERE id = ?";
-        try (PreparedStatement updateStmt = connection.prepareStatement(updateSql)) {
-            if (updateField.equals("qty") || updateField.equals("id")) {
-                updateStmt.setInt(1, Integer.parseInt(newValue));
+        Book updated;
+        try {
+            updated = applyUpdate(current, updateField, newValue);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid " + updateField + ": please enter a whole number.");
+            return;
+        }
+        try {
+            if (!repository.updateIfUnchanged(current, updated)) {
+                System.out.println("This book was changed or deleted by someone else. Nothing was updated.");
+                return;
+            }
+            if (updated.getId() != bookId) {
+                // The id itself changed, so the old entry has to go.
+                notifyDeleted(bookId);
+            }
+            notifySaved(updated.withVersion(repository.lastVersion()));
+            System.out.println("1 book(s) updated.");
+        } catch (SQLException e) {
+            if (BookStatements.isDuplicateKey(e)) {
+                System.out.println("ID already in use. Nothing was updated.");
             } else {
-                updateStmt.setString(1, newValue);
+                e.printStackTrace();
             }
-            updateStmt.setInt(2, bookId);
+        }
+    }
+
+    /**
+     * Returns a copy of the book with one field replaced.
+     * @param book The book before the update.
+     * @param field The updated column: id, title, author or qty.
+     * @param newValue The new value as entered by the user.
+     * @return The book after the update.
+     * @throws NumberFormatException If a new id or quantity is not a number.
+     */
+    private static Book applyUpdate(Book book, String field, String newValue) {
+        switch (field) {
+            case "id":
+                return book.withId(Integer.parseInt(newValue));
+            case "title":
+                return book.withTitle(newValue);
+            case "author":
+                return book.withAuthor(newValue);
+            default:
+                return book.withQty(Integer.parseInt(newValue));
+        }
+    }
+
+    /**
+     * Finds the book the user wants to update or delete, by exact ID or by partial title.
+     * The title match ignores case, apostrophes and commas.
+     *
+     * @param repository Where the catalog is stored.
+     * @param byId       True to look up by ID, false to look up by title.
+     * @param bookId     The book ID, used when byId is true.
+     * @param bookTitle  The (partial) title, used when byId is false.
+     * @return The first matching book, or null if none was found.
+     * @throws SQLException If the lookup query fails.
+     */
+    private static Book findBook(BookRepository repository, boolean byId, int bookId, String bookTitle)
+            throws SQLException {
+        // Write pending sales first and pull what other instances changed, so the book read here
+        // has the version a conditional update or delete compares against.
+        stock.flush();
+        if (changes != null) {
+            changes.refresh();
+        }
+        if (byId) {
+            return findBookById(repository, bookId);
+        }
+        SearchIndex searchIndex = views.searchIndex();
+        List<Book> found = searchIndex != null ? searchIndex.searchTitle(bookTitle, Integer.MIN_VALUE, 1) : null;
+        if (found == null) {
+            found = repository.searchTitle(bookTitle, Integer.MIN_VALUE, 1);
+        }
+        return found.isEmpty() ? null : found.get(0);
+    }
 
-            int rowsAffected = updateStmt.executeUpdate();
-            System.out.println(rowsAffected + " book(s) updated.");
+    /**
+     * Sells or restocks a book by a relative quantity. The change is applied in memory at once,
+     * refused if it would leave a negative quantity, and written to the database shortly after.
+     * @param scanner Scanner to read user input.
+     */
+    private static void adjustStock(Scanner scanner) {
+        System.out.print("Enter the Book ID: ");
+        int id = scanner.nextInt();
+        System.out.print("Quantity change (negative to sell, positive to restock): ");
+        int delta = scanner.nextInt();
+        scanner.nextLine(); // consume the leftover newline
+
+        try {
+            int qty = stock.adjust(id, delta);
+            if (qty == StockLedger.NOT_FOUND) {
+                System.out.println("No book found with ID " + id + ".");
+            } else if (qty == StockLedger.INSUFFICIENT_STOCK) {
+                System.out.println("Not enough stock. Available: " + stock.available(id) + ".");
+            } else {
+                System.out.println("Quantity of book " + id + " is now " + qty + ".");
+            }
         } catch (SQLException e) {
+            System.out.println("Could not change the stock.");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Shows one of the inventory reports. They are read from the in-memory aggregates; the
+     * database is only read to refill the low-stock or top-titles ranking by id.
+     * @param scanner    Scanner to read user input.
+     * @param repository Where to read books by id.
+     */
+    private static void showReports(Scanner scanner, BookRepository repository) {
+        InventoryStats stats = views.stats();
+        if (stats == null) {
+            System.out.println(views.hasStats() ? "Inventory reports are still loading; try again shortly."
+                    : "Inventory reports are off; start with -Debookstore.reports=true.");
+            return;
+        }
+        System.out.println("\nReports:");
+        System.out.println("1. Low stock");
+        System.out.println("2. Titles and stock by author");
+        System.out.println("3. Top authors by stock");
+        System.out.println("4. Top titles by stock");
+        System.out.print("Enter report: ");
+        int report = scanner.nextInt();
+        scanner.nextLine(); // consume the leftover newline
+
+        switch (report) {
+            case 1:
+                System.out.print("Below quantity (Enter for " + stats.getLowStockThreshold() + "): ");
+                String threshold = scanner.nextLine().trim();
+                int below;
+                try {
+                    below = threshold.isEmpty() ? stats.getLowStockThreshold() : Integer.parseInt(threshold);
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid quantity.");
+                    return;
+                }
+                List<Book> low;
+                try {
+                    low = stats.lowStock(repository, below, PAGE_SIZE);
+                } catch (SQLException e) {
+                    System.out.println("Could not read the report.");
+                    e.printStackTrace();
+                    return;
+                }
+                table.table("\nBooks with less than " + below + " in stock:", low,
+                        low.isEmpty() ? "None." : null);
+                break;
+            case 2:
+                printAuthors(scanner, stats);
+                break;
+            case 3:
+                System.out.println("\nTop authors by stock:");
+                printAuthorTotals(stats.topAuthors(PAGE_SIZE));
+                break;
+            case 4:
+                try {
+                    table.table("\nTop titles by stock:", stats.topTitles(repository, PAGE_SIZE), null);
+                } catch (SQLException e) {
+                    System.out.println("Could not read the report.");
+                    e.printStackTrace();
+                    return;
+                }
+                break;
+            default:
+                System.out.println("Invalid report.");
+                return;
+        }
+        System.out.println(stats.size() + " book(s) by " + stats.authorCount() + " author(s), "
+                + stats.totalStock() + " in stock.");
+    }
+
+    /**
+     * Lists the title count and stock of every author in name order, a page at a time.
+     */
+    private static void printAuthors(Scanner scanner, InventoryStats stats) {
+        String after = null;
+        while (true) {
+            // One author past the page tells whether there is more to show.
+            List<InventoryStats.AuthorTotal> page = stats.authors(after, PAGE_SIZE + 1);
+            boolean more = page.size() > PAGE_SIZE;
+            if (more) {
+                page = page.subList(0, PAGE_SIZE);
+            }
+            printAuthorTotals(page);
+            if (!more) {
+                return;
+            }
+            System.out.print("Press Enter for more, or type q to stop: ");
+            if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                return;
+            }
+            after = page.get(page.size() - 1).getAuthor();
+        }
+    }
+
+    private static void printAuthorTotals(List<InventoryStats.AuthorTotal> totals) {
+        System.out.println(String.format("%-50s %-6s %-10s", "Author", "Titles", "Stock"));
+        for (InventoryStats.AuthorTotal total : totals) {
+            System.out.println(String.format("%-50s %-6d %-10d",
+                    total.getAuthor(), total.getTitles(), total.getStock()));
+        }
+    }
+
+    /**
+     * Looks up a book by ID, from the catalog cache when possible and from the database otherwise.
+     * @param repository Where the catalog is stored.
+     * @param id         The book ID.
+     * @return The book, or null if no book has this ID.
+     * @throws SQLException If the lookup query fails.
+     */
+    private static Book findBookById(BookRepository repository, int id) throws SQLException {
+        BookCache cache = views.cache();
+        if (cache != null) {
+            Book cached = cache.get(id);
+            if (cached != null || cache.isComplete()) {
+                return cached;
+            }
+        }
+        Book book = repository.findById(id);
+        if (book != null && cache != null) {
+            cache.put(book);
+        }
+        return book;
+    }
+
 
     /**
      * Deletes a book from the database.
      * Users can search for the book by ID or name and then confirm before deletion.
+     * The book is only deleted if it still holds the details the user confirmed.
      *
      * @param scanner    Scanner to read user input.
-     * @param connection Connection object to the database.
+     * @param repository Where the catalog is stored.
      */
-    private static void deleteBook(Scanner scanner, Connection connection) {
+    private static void deleteBook(Scanner scanner, BookRepository repository) {
     	// Get user choice for search method
     	String methodChoice;
         while (true) {
@@ -338,47 +1020,32 @@ public class EbookStore {
             System.out.println("Invalid choice. Please enter '1' or '2'.");
         }
 
-        String sqlQuery;
         int bookId = 0;
-        String bookTitle = ""; 
+        String bookTitle = "";
 
         if ("1".equals(methodChoice)) {
             System.out.print("Enter the Book ID: ");
             bookId = scanner.nextInt();
            // consume the newline
-            scanner.nextLine(); 
-            sqlQuery = "SELECT * FROM books WHERE id = ?";
+            scanner.nextLine();
         } else {
         	System.out.print("Enter the Book Title: ");
             bookTitle = scanner.nextLine();
-            sqlQuery = "SELECT * FROM books WHERE LOWER(REPLACE(REPLACE(title, '''', ''), ',', '')) LIKE ?";
         }
-        // Execute the prepared statement and process the ResultSet
-        try (PreparedStatement preparedStatement = connection.prepareStatement(sqlQuery)) {
-        	// Validate user choice
-        	if ("1".equals(methodChoice)) {
-                preparedStatement.setInt(1, bookId);
-            } else {
-            	preparedStatement.setString(1, "%" + bookTitle.toLowerCase().replace("'", "").replace(",", "") + "%"); 
-            }
-            ResultSet resultSet = preparedStatement.executeQuery();
-
-            if (!resultSet.next()) {
+        try {
+            Book book = findBook(repository, "1".equals(methodChoice), bookId, bookTitle);
+            if (book == null) {
                 System.out.println("Book not found.");
                 return;
             }
-            // Book found, retrieve details from ResultSet
-            bookId = resultSet.getInt("id");
-            String title = resultSet.getString("title");
-            String author = resultSet.getString("author");
-            int quantity = resultSet.getInt("qty");
+            bookId = book.getId();
 
             // Display book details to confirm deletion
             System.out.println("Book Details:");
             System.out.println("ID: " + bookId);
-            System.out.println("Title: " + title);
-            System.out.println("Author: " + author);
-            System.out.println("Quantity: " + quantity);
+            System.out.println("Title: " + book.getTitle());
+            System.out.println("Author: " + book.getAuthor());
+            System.out.println("Quantity: " + book.getQty());
 
             // Confirm deletion with the user
             String confirmation;
@@ -394,12 +1061,12 @@ public class EbookStore {
             }
 
             if ("y".equals(confirmation)) {
-                // SQL query to delete a book by ID
-                sqlQuery = "DELETE FROM books WHERE id = ?";
-                try (PreparedStatement deleteStmt = connection.prepareStatement(sqlQuery)) {
-                    deleteStmt.setInt(1, bookId);
-                    int rowsAffected = deleteStmt.executeUpdate();
-                    System.out.println(rowsAffected + " book(s) deleted.");
+                // Delete by ID, provided nobody changed the book since it was shown
+                if (repository.deleteIfUnchanged(book)) {
+                    notifyDeleted(bookId);
+                    System.out.println("1 book(s) deleted.");
+                } else {
+                    System.out.println("This book was changed or deleted by someone else. Nothing was deleted.");
                 }
             } else {
             	// Deletion cancelled by the user
@@ -413,13 +1080,15 @@ public class EbookStore {
     /**
      * Handles the user input for searching books in the database based on ID, title, or author.
      * @param scanner The scanner instance for user input.
-     * @param connection The established SQL connection.
+     * @param repository Where the catalog is stored.
      */
     /**
-     * Searches books based on ID, title, or author using a dynamic SQL query.
-     * The use of LIKE and wildcards enables partial matching, giving users flexibility in searching.
+     * Searches books based on ID, title, or author.
+     * Title and author searches match partially (LIKE with wildcards in SQL), giving users flexibility in searching.
+     * When nothing matches and the fuzzy index is enabled, the closest titles or authors are shown instead,
+     * so a typo like "Tolkein" still finds the book.
      */
-    private static void searchBooks(Scanner scanner, Connection connection) {
+    private static void searchBooks(Scanner scanner, BookRepository repository) {
         System.out.println("\nSearch by:");
         System.out.println("1. ID");
         System.out.println("2. Title");
@@ -428,70 +1097,188 @@ public class EbookStore {
         int searchType = scanner.nextInt();
         scanner.nextLine(); // consume the leftover newline
 
-        String sql = "";
+        int id = 0;
         String userInput = "";
-        // Choose the SQL query based on the type of search. Using LIKE allows for a more flexible search by partial matching.
         switch (searchType) {
             case 1:
                 System.out.print("Enter ID number: ");
-                int id = scanner.nextInt();
-                sql = "SELECT * FROM books WHERE id = ?";
-                userInput = String.valueOf(id);
+                id = scanner.nextInt();
                 break;
             case 2:
                 System.out.print("Enter title: ");
                 userInput = scanner.nextLine();
-                // When searching, use LIKE to allow partial matches, enabling more flexible searches.
-                sql = "SELECT * FROM books WHERE LOWER(REPLACE(REPLACE(title, '''', ''), ',', '')) LIKE ?";
-
-                // Wildcards used for partial match
-                userInput = "%" + userInput + "%";
                 break;
             case 3:
                 System.out.print("Enter author: ");
                 userInput = scanner.nextLine();
-                sql = "SELECT * FROM books WHERE author LIKE ?";
-                userInput = "%" + userInput + "%";
                 break;
             default:
                 System.out.println("Invalid search type.");
                 return;
         }
 
-        try {
-            PreparedStatement preparedStatement = connection.prepareStatement(sql, 
-                ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            preparedStatement.setString(1, userInput);
-            ResultSet resultSet = preparedStatement.executeQuery();
-         // Move to the last row of resultSet to determine the number of rows and thus the existence of any search results.
-            if (resultSet.last()) { 
-            	// Get the number of rows/books found
-                int rowCount = resultSet.getRow(); 
-                if (rowCount > 0) {
-                    System.out.println("\nYay! We have " + rowCount + " book(s) from this Search!\n");
-                   // Reset the cursor to the beginning to iterate over the results
-                    resultSet.beforeFirst(); 
-
-                    while (resultSet.next()) {
-                        int bookId = resultSet.getInt("id");
-                        String title = resultSet.getString("title");
-                        String author = resultSet.getString("author");
-                        int qty = resultSet.getInt("qty");
-                        System.out.println("ID: " + bookId);
-                        System.out.println("Title: " + title);
-                        System.out.println("Author: " + author);
-                        System.out.println("Quantity: " + qty + " available in stock!\n");
-                    }
+        if (searchType == 1) {
+            long start = System.nanoTime();
+            try {
+                Book book = findBookById(repository, id);
+                SEARCH_METRICS.record(System.nanoTime() - start, book == null ? 0 : 1);
+                if (book == null) {
+                    System.out.println("Sorry, this book is not available.");
                 } else {
+                    System.out.println("\nYay! We have 1 book(s) from this Search!\n");
+                    printBookDetails(book);
+                }
+            } catch (SQLException e) {
+                SEARCH_METRICS.error(System.nanoTime() - start);
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        boolean byTitle = searchType == 2;
+        String text = userInput;
+        // Pages are read as they are shown, from the in-memory index when it can answer the query.
+        SearchIndex searchIndex = views.searchIndex();
+        boolean indexed = searchIndex != null && SearchIndex.hasWords(text);
+        SearchPages pages;
+        if (indexed) {
+            pages = byTitle ? (fromId, limit) -> searchIndex.searchTitle(text, fromId, limit)
+                    : (fromId, limit) -> searchIndex.searchAuthor(text, fromId, limit);
+        } else if (byTitle) {
+            pages = (fromId, limit) -> repository.searchTitle(text, fromId, limit);
+        } else {
+            pages = (fromId, limit) -> repository.searchAuthor(text, fromId, limit);
+        }
+        try {
+            Integer total = null;
+            if (SEARCH_COUNT && indexed) {
+                total = byTitle ? searchIndex.countTitle(text) : searchIndex.countAuthor(text);
+            } else if (SEARCH_COUNT) {
+                total = byTitle ? repository.countTitle(text) : repository.countAuthor(text);
+            }
+            if (showSearchPages(scanner, pages, total) == 0) {
+                FuzzyIndex fuzzyIndex = views.fuzzyIndex();
+                if (fuzzyIndex == null) {
                     System.out.println("Sorry, this book is not available.");
+                    return;
                 }
-            } else {
-                System.out.println("Sorry, this book is not available.");
+                long start = System.nanoTime();
+                List<Book> closest = byTitle
+                        ? fuzzyIndex.searchTitle(text, fuzzyIndex.getK())
+                        : fuzzyIndex.searchAuthor(text, fuzzyIndex.getK());
+                SEARCH_METRICS.record(System.nanoTime() - start, closest.size());
+                printClosestMatches(closest);
             }
-         // Close the prepared statement
-            preparedStatement.close(); 
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Reads one page of search results: up to limit matching books from fromId on, in id order.
+     */
+    private interface SearchPages {
+        List<Book> fetch(int fromId, int limit) throws SQLException;
+    }
+
+    /**
+     * Shows search results one page of SEARCH_LIMIT books at a time, asking before each next page.
+     * Only one page is held in memory, and each page continues after the last id shown (keyset),
+     * so the first results appear as quickly for author "a" as for an exact title.
+     * @param scanner Scanner to read user input.
+     * @param pages   Where the pages come from.
+     * @param total   The number of matches if known beforehand, or null.
+     * @return The number of books shown; 0 if nothing matched.
+     * @throws SQLException If reading a page fails.
+     */
+    private static int showSearchPages(Scanner scanner, SearchPages pages, Integer total) throws SQLException {
+        int shown = 0;
+        int fromId = Integer.MIN_VALUE;
+        while (true) {
+            long start = System.nanoTime();
+            List<Book> page;
+            try {
+                // One extra row tells whether there is more to show.
+                page = pages.fetch(fromId, SEARCH_LIMIT + 1);
+            } catch (SQLException e) {
+                SEARCH_METRICS.error(System.nanoTime() - start);
+                throw e;
+            }
+            SEARCH_METRICS.record(System.nanoTime() - start, page.size());
+            boolean more = page.size() > SEARCH_LIMIT;
+            if (more) {
+                page = page.subList(0, SEARCH_LIMIT);
+            }
+            if (page.isEmpty()) {
+                break;
+            }
+            if (shown == 0) {
+                System.out.println(total != null
+                        ? "\nYay! We have " + total + " book(s) from this Search!\n"
+                        : "\nYay! We have books from this Search!\n");
+            }
+            start = System.nanoTime();
+            table.table(null, page, null);
+            RENDER_METRICS.record(System.nanoTime() - start, page.size());
+            shown += page.size();
+            if (!more) {
+                break;
+            }
+            System.out.print("Showing " + shown + (total != null ? " of " + total : "") + " book(s). Show more? (y/n): ");
+            if (!"y".equalsIgnoreCase(scanner.nextLine().trim())) {
+                return shown;
+            }
+            // A further match exists, so the last id shown is not Integer.MAX_VALUE.
+            fromId = page.get(page.size() - 1).getId() + 1;
+        }
+        if (shown > 0) {
+            System.out.println(shown + " book(s) found.");
+        }
+        return shown;
+    }
+
+    /**
+     * Prints the results of a fuzzy search, closest match first.
+     * @param books The closest books, best first.
+     */
+    private static void printClosestMatches(List<Book> books) {
+        if (books.isEmpty()) {
+            System.out.println("Sorry, this book is not available.");
+            return;
+        }
+        long start = System.nanoTime();
+        table.table("\nNo exact match. Did you mean one of these " + books.size() + " book(s)?\n", books, null);
+        RENDER_METRICS.record(System.nanoTime() - start, books.size());
+    }
+
+    /**
+     * Notifies the in-memory catalog views that a book was inserted or updated.
+     * @param book The new state of the book.
+     */
+    private static void notifySaved(Book book) {
+        for (CatalogListener listener : listeners) {
+            listener.bookSaved(book);
+        }
+    }
+
+    /**
+     * Notifies the in-memory catalog views that a book was deleted.
+     * @param id The id of the deleted book.
+     */
+    private static void notifyDeleted(int id) {
+        for (CatalogListener listener : listeners) {
+            listener.bookDeleted(id);
+        }
+    }
+
+    /**
+     * Prints the details of one book found by a search.
+     * @param book The book to print.
+     */
+    private static void printBookDetails(Book book) {
+        System.out.println("ID: " + book.getId());
+        System.out.println("Title: " + book.getTitle());
+        System.out.println("Author: " + book.getAuthor());
+        System.out.println("Quantity: " + book.getQty() + " available in stock!\n");
+    }
 }
\ No newline at end of file
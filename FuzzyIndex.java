@@ -0,0 +1,616 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A typo-tolerant index over book titles and authors, for the searches a substring match
+ * cannot answer, such as "Tolkein" or "Harry Poter".
+ *
+ * Every distinct word (normalized like {@link SearchIndex#normalize(String)}) is indexed once by
+ * its trigrams, taken from the word padded with a boundary marker: "$tolkien$" gives "$to",
+ * "tol", ..., "en$". A query word only looks at the vocabulary words that share enough trigrams
+ * with it and checks those with an edit distance that counts a swap of two neighbouring letters
+ * as one typo. How many typos a word may have grows with its length (none up to 2 letters, one
+ * up to 5, two up to 8, three beyond, but never more than maxDistance). A book matches when
+ * every query word is close to one of its words.
+ *
+ * Matches are ranked by the total number of typos, then by how close the length of the title
+ * (or author) is to the query, then by id, and only the best k are kept. The cost of a search
+ * follows the vocabulary around the query words and the postings of the words they match,
+ * never the number of books. The index is built once at startup and kept current through
+ * {@link CatalogListener}.
+ */
+public class FuzzyIndex implements CatalogListener {
+
+    private static final int[] NO_DOCS = new int[0];
+
+    // Orders candidates from best to worst match.
+    private static final Comparator<Candidate> RANK = (a, b) -> {
+        if (a.distance != b.distance) {
+            return Integer.compare(a.distance, b.distance);
+        }
+        if (a.lengthGap != b.lengthGap) {
+            return Integer.compare(a.lengthGap, b.lengthGap);
+        }
+        return Integer.compare(a.id, b.id);
+    };
+
+    private final int k;
+    private final int maxDistance;
+
+    // Books are numbered densely (doc numbers), so the books matching a word fit in a BitSet.
+    // Numbers of deleted books are reused.
+    private final Map<Integer, Integer> docOf = new HashMap<>();
+    private Book[] docs = new Book[1024];
+    // Id and title/author lengths per doc number, so ranking does not have to load the books.
+    private int[] docIds = new int[1024];
+    private int[] titleLengths = new int[1024];
+    private int[] authorLengths = new int[1024];
+    private int docCount;
+    private final SearchIndex.IntList freeDocs = new SearchIndex.IntList();
+
+    private final Field titles = new Field();
+    private final Field authors = new Field();
+
+    /**
+     * @param k           Number of results returned when the caller does not ask for a number.
+     * @param maxDistance Upper bound on the typos allowed in one word, whatever its length.
+     */
+    public FuzzyIndex(int k, int maxDistance) {
+        this.k = k;
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Creates the index if enabled with -Debookstore.fuzzy=true, or returns null otherwise.
+     * The number of results is set with ebookstore.fuzzy.k (default 10) and the typos allowed
+     * per word with ebookstore.fuzzy.maxDistance (default 2).
+     */
+    public static FuzzyIndex fromSystemProperties() {
+        if (!Boolean.getBoolean("ebookstore.fuzzy")) {
+            return null;
+        }
+        return new FuzzyIndex(Math.max(1, Integer.getInteger("ebookstore.fuzzy.k", 10)),
+                Math.max(0, Integer.getInteger("ebookstore.fuzzy.maxDistance", 2)));
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * Replaces the contents of the index with the given books.
+     * @param catalog Every book in the catalog.
+     */
+    public synchronized void build(Iterable<Book> catalog) {
+        docOf.clear();
+        docs = new Book[1024];
+        docIds = new int[1024];
+        titleLengths = new int[1024];
+        authorLengths = new int[1024];
+        docCount = 0;
+        freeDocs.clear();
+        titles.clear();
+        authors.clear();
+        List<SearchIndex.IntList> titleDocs = new ArrayList<>();
+        List<SearchIndex.IntList> authorDocs = new ArrayList<>();
+        for (Book book : catalog) {
+            // Doc numbers are handed out in increasing order, so every list stays sorted.
+            int doc = newDoc(book);
+            for (String word : SearchIndex.words(book.getTitle())) {
+                add(titleDocs, titles.wordId(word), doc);
+            }
+            for (String word : SearchIndex.words(book.getAuthor())) {
+                add(authorDocs, authors.wordId(word), doc);
+            }
+        }
+        titles.setPostings(titleDocs);
+        authors.setPostings(authorDocs);
+    }
+
+    private static void add(List<SearchIndex.IntList> lists, int wordId, int doc) {
+        while (lists.size() <= wordId) {
+            lists.add(new SearchIndex.IntList());
+        }
+        lists.get(wordId).add(doc);
+    }
+
+    /**
+     * Builds the index from one pass over the catalog, read in keyset pages.
+     * @param repository Where the catalog is stored.
+     * @throws SQLException If the catalog cannot be read.
+     */
+    public void build(BookRepository repository) throws SQLException {
+        build(SearchIndex.readCatalog(repository));
+    }
+
+    public synchronized int size() {
+        return docOf.size();
+    }
+
+    private int newDoc(Book book) {
+        int doc;
+        if (freeDocs.size() > 0) {
+            doc = freeDocs.removeLast();
+        } else {
+            if (docCount == docs.length) {
+                docs = Arrays.copyOf(docs, docCount * 2);
+                docIds = Arrays.copyOf(docIds, docCount * 2);
+                titleLengths = Arrays.copyOf(titleLengths, docCount * 2);
+                authorLengths = Arrays.copyOf(authorLengths, docCount * 2);
+            }
+            doc = docCount++;
+        }
+        docs[doc] = book;
+        docIds[doc] = book.getId();
+        titleLengths[doc] = book.getTitle() == null ? 0 : book.getTitle().length();
+        authorLengths[doc] = book.getAuthor() == null ? 0 : book.getAuthor().length();
+        docOf.put(book.getId(), doc);
+        return doc;
+    }
+
+    @Override
+    public synchronized void bookSaved(Book book) {
+        removeBook(book.getId());
+        int doc = newDoc(book);
+        for (String word : SearchIndex.words(book.getTitle())) {
+            titles.addDoc(word, doc);
+        }
+        for (String word : SearchIndex.words(book.getAuthor())) {
+            authors.addDoc(word, doc);
+        }
+    }
+
+    @Override
+    public synchronized void bookDeleted(int id) {
+        removeBook(id);
+    }
+
+    @Override
+    public synchronized void quantityChanged(int id, int qty) {
+        // No indexed words change; only the stored book shown in results does.
+        Integer doc = docOf.get(id);
+        if (doc != null) {
+            docs[doc] = docs[doc].withQty(qty);
+        }
+    }
+
+    private void removeBook(int id) {
+        Integer doc = docOf.remove(id);
+        if (doc == null) {
+            return;
+        }
+        Book old = docs[doc];
+        for (String word : SearchIndex.words(old.getTitle())) {
+            titles.removeDoc(word, doc);
+        }
+        for (String word : SearchIndex.words(old.getAuthor())) {
+            authors.removeDoc(word, doc);
+        }
+        docs[doc] = null;
+        freeDocs.add(doc);
+    }
+
+    /**
+     * Finds the books whose title is closest to the query, allowing typos in every word.
+     * @param query The title search text.
+     * @param limit The number of results to return, at most.
+     * @return The best matches, best first; empty if no book is close enough.
+     */
+    public synchronized List<Book> searchTitle(String query, int limit) {
+        return search(titles, query, limit, true);
+    }
+
+    /**
+     * Finds the books whose author is closest to the query, allowing typos in every word.
+     * @param query The author search text.
+     * @param limit The number of results to return, at most.
+     * @return The best matches, best first; empty if no book is close enough.
+     */
+    public synchronized List<Book> searchAuthor(String query, int limit) {
+        return search(authors, query, limit, false);
+    }
+
+    private List<Book> search(Field field, String query, int limit, boolean title) {
+        String[] terms = SearchIndex.words(query);
+        if (terms.length == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        Term[] matched = new Term[terms.length];
+        int pivot = 0;
+        for (int i = 0; i < terms.length; i++) {
+            matched[i] = new Term(field.match(terms[i], allowedDistance(terms[i].length())));
+            if (matched[i].size == 0) {
+                return Collections.emptyList();
+            }
+            // Candidates come from the most selective term; the others are only checked.
+            if (matched[i].size < matched[pivot].size) {
+                pivot = i;
+            }
+        }
+        for (int i = 0; i < terms.length; i++) {
+            if (i != pivot) {
+                matched[i].prepare(matched[pivot].size, docCount);
+            }
+        }
+
+        int queryLength = query.trim().length();
+        int[] lengths = title ? titleLengths : authorLengths;
+        PriorityQueue<Candidate> best = new PriorityQueue<>(limit + 1, RANK.reversed());
+        BitSet seen = new BitSet(docCount);
+        List<List<SearchIndex.IntList>> pivotLevels = matched[pivot].byDistance;
+        for (int d = 0; d < pivotLevels.size(); d++) {
+            // Every later candidate has at least d typos, so a full list whose worst has fewer is
+            // final. One with exactly d could still lose a tie on length or id to a later one.
+            if (best.size() == limit && best.peek().distance < d) {
+                break;
+            }
+            for (SearchIndex.IntList postings : pivotLevels.get(d)) {
+                for (int p = 0; p < postings.size(); p++) {
+                    int doc = postings.get(p);
+                    if (seen.get(doc)) {
+                        continue; // already counted, with as few or fewer typos
+                    }
+                    seen.set(doc);
+                    int distance = d;
+                    for (int i = 0; i < terms.length && distance >= 0; i++) {
+                        if (i != pivot) {
+                            int termDistance = matched[i].distanceOf(doc);
+                            distance = termDistance < 0 ? -1 : distance + termDistance;
+                        }
+                    }
+                    if (distance < 0) {
+                        continue;
+                    }
+                    int lengthGap = Math.abs(lengths[doc] - queryLength);
+                    if (best.size() < limit) {
+                        best.add(new Candidate(doc, docIds[doc], distance, lengthGap));
+                    } else if (ranksBefore(distance, lengthGap, docIds[doc], best.peek())) {
+                        best.poll();
+                        best.add(new Candidate(doc, docIds[doc], distance, lengthGap));
+                    }
+                }
+            }
+        }
+        List<Candidate> ranked = new ArrayList<>(best);
+        ranked.sort(RANK);
+        List<Book> result = new ArrayList<>(ranked.size());
+        for (Candidate candidate : ranked) {
+            result.add(docs[candidate.doc]);
+        }
+        return result;
+    }
+
+    private static boolean ranksBefore(int distance, int lengthGap, int id, Candidate other) {
+        if (distance != other.distance) {
+            return distance < other.distance;
+        }
+        if (lengthGap != other.lengthGap) {
+            return lengthGap < other.lengthGap;
+        }
+        return id < other.id;
+    }
+
+    /**
+     * Returns the typos allowed in a query word of the given length.
+     */
+    int allowedDistance(int length) {
+        int byLength = length <= 2 ? 0 : length <= 5 ? 1 : length <= 8 ? 2 : 3;
+        return Math.min(maxDistance, byLength);
+    }
+
+    /**
+     * Edit distance between two words where an insertion, a deletion, a substitution or a swap
+     * of two neighbouring letters each count as one (the optimal string alignment distance).
+     * Stops early once the distance is known to exceed max.
+     * @return The distance, or max + 1 if it is larger than max.
+     */
+    static int distance(String a, String b, int max) {
+        int n = a.length();
+        int m = b.length();
+        if (Math.abs(n - m) > max) {
+            return max + 1;
+        }
+        int[] before = new int[m + 1];
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= n; i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= m; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    value = Math.min(value, before[j - 2] + 1);
+                }
+                current[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] recycled = before;
+            before = previous;
+            previous = current;
+            current = recycled;
+        }
+        return Math.min(previous[m], max + 1);
+    }
+
+    /**
+     * Returns the distinct trigrams of "$word$", each packed into a long.
+     */
+    static long[] trigrams(String word) {
+        String padded = "$" + word + "$";
+        long[] grams = new long[padded.length() - 2];
+        int n = 0;
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            long gram = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+            boolean repeated = false;
+            for (int j = 0; j < n && !repeated; j++) {
+                repeated = grams[j] == gram;
+            }
+            if (!repeated) {
+                grams[n++] = gram;
+            }
+        }
+        return n == grams.length ? grams : Arrays.copyOf(grams, n);
+    }
+
+    /**
+     * Returns the set of characters in a word as bits: one per letter and digit, and one
+     * shared by every other character.
+     */
+    static long letters(String word) {
+        long set = 0;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                set |= 1L << (c - 'a');
+            } else if (c >= '0' && c <= '9') {
+                set |= 1L << (26 + c - '0');
+            } else {
+                set |= 1L << 63;
+            }
+        }
+        return set;
+    }
+
+    /**
+     * The vocabulary of one field (titles or authors): every distinct word, the books using it
+     * and its trigrams. Words stay in the vocabulary when their last book is deleted; they
+     * simply match nothing.
+     */
+    private static final class Field {
+        private final Map<String, Integer> wordIds = new HashMap<>();
+        private final List<String> vocabulary = new ArrayList<>();
+        // Sorted doc numbers per word id.
+        private final List<SearchIndex.IntList> postings = new ArrayList<>();
+        // Word ids per trigram, and per word length, in increasing order since ids are only appended.
+        private final Map<Long, SearchIndex.IntList> trigramWords = new HashMap<>();
+        private final List<SearchIndex.IntList> lengthWords = new ArrayList<>();
+        // The letters each word contains, see letters(String).
+        private long[] letterSets = new long[1024];
+        // Shared-trigram count per word id; always all zero between searches.
+        private int[] counts = NO_DOCS;
+
+        void clear() {
+            wordIds.clear();
+            vocabulary.clear();
+            postings.clear();
+            trigramWords.clear();
+            lengthWords.clear();
+        }
+
+        int wordId(String word) {
+            Integer id = wordIds.get(word);
+            if (id != null) {
+                return id;
+            }
+            int newId = vocabulary.size();
+            wordIds.put(word, newId);
+            vocabulary.add(word);
+            postings.add(new SearchIndex.IntList());
+            for (long gram : trigrams(word)) {
+                trigramWords.computeIfAbsent(gram, g -> new SearchIndex.IntList()).add(newId);
+            }
+            while (lengthWords.size() <= word.length()) {
+                lengthWords.add(new SearchIndex.IntList());
+            }
+            lengthWords.get(word.length()).add(newId);
+            if (newId == letterSets.length) {
+                letterSets = Arrays.copyOf(letterSets, newId * 2);
+            }
+            letterSets[newId] = letters(word);
+            return newId;
+        }
+
+        void setPostings(List<SearchIndex.IntList> lists) {
+            for (int i = 0; i < lists.size(); i++) {
+                SearchIndex.IntList docs = lists.get(i);
+                docs.sort();
+                postings.set(i, docs);
+            }
+        }
+
+        void addDoc(String word, int doc) {
+            int id = wordId(word);
+            postings.get(id).insert(doc);
+        }
+
+        void removeDoc(String word, int doc) {
+            Integer id = wordIds.get(word);
+            if (id != null) {
+                postings.get(id).delete(doc);
+            }
+        }
+
+        /**
+         * Finds the vocabulary words within allowed typos of the term.
+         * One typo changes at most 4 trigrams (a swap of two letters), so a word with d typos
+         * still shares at least (trigrams of the term - 4d) of them with the term and only words
+         * reaching that count are compared. Short terms, where that bound is zero, are compared
+         * with the words of similar length instead. Either way, a word is only compared when
+         * its set of letters differs from the term's by at most 2 per typo.
+         * @return The postings of the matching words, grouped by their distance to the term.
+         */
+        List<List<SearchIndex.IntList>> match(String term, int allowed) {
+            long termLetters = letters(term);
+            List<List<SearchIndex.IntList>> byDistance = new ArrayList<>();
+            for (int d = 0; d <= allowed; d++) {
+                byDistance.add(new ArrayList<>());
+            }
+            if (allowed == 0) {
+                Integer id = wordIds.get(term);
+                if (id != null) {
+                    byDistance.get(0).add(postings.get(id));
+                }
+                return byDistance;
+            }
+            long[] grams = trigrams(term);
+            int needed = grams.length - 4 * allowed;
+            if (needed <= 0) {
+                int maxLength = Math.min(lengthWords.size() - 1, term.length() + allowed);
+                for (int length = Math.max(0, term.length() - allowed); length <= maxLength; length++) {
+                    SearchIndex.IntList words = lengthWords.get(length);
+                    for (int i = 0; i < words.size(); i++) {
+                        compare(term, termLetters, words.get(i), allowed, byDistance);
+                    }
+                }
+                return byDistance;
+            }
+            if (counts.length < vocabulary.size()) {
+                counts = new int[Math.max(vocabulary.size(), counts.length * 2)];
+            }
+            SearchIndex.IntList touched = new SearchIndex.IntList();
+            for (long gram : grams) {
+                SearchIndex.IntList words = trigramWords.get(gram);
+                if (words == null) {
+                    continue;
+                }
+                for (int i = 0; i < words.size(); i++) {
+                    int word = words.get(i);
+                    if (counts[word]++ == 0) {
+                        touched.add(word);
+                    }
+                }
+            }
+            for (int i = 0; i < touched.size(); i++) {
+                int word = touched.get(i);
+                int shared = counts[word];
+                counts[word] = 0;
+                if (shared >= needed) {
+                    compare(term, termLetters, word, allowed, byDistance);
+                }
+            }
+            return byDistance;
+        }
+
+        private void compare(String term, long termLetters, int word, int allowed, List<List<SearchIndex.IntList>> byDistance) {
+            // Inserting, deleting or replacing a letter changes at most two letters of the set.
+            if (Long.bitCount(termLetters ^ letterSets[word]) > 2 * allowed) {
+                return;
+            }
+            SearchIndex.IntList docs = postings.get(word);
+            if (docs.size() == 0) {
+                return;
+            }
+            int d = distance(term, vocabulary.get(word), allowed);
+            if (d <= allowed) {
+                byDistance.get(d).add(docs);
+            }
+        }
+    }
+
+    /**
+     * The words matched by one query word, as postings grouped by distance.
+     * Whether a candidate book contains one of them is answered either by binary searches in
+     * the postings or, when there are too many candidates for that, by one BitSet per distance.
+     */
+    private static final class Term {
+        final List<List<SearchIndex.IntList>> byDistance;
+        final long size;
+        private BitSet[] levels;
+
+        Term(List<List<SearchIndex.IntList>> byDistance) {
+            this.byDistance = byDistance;
+            long total = 0;
+            for (List<SearchIndex.IntList> level : byDistance) {
+                for (SearchIndex.IntList postings : level) {
+                    total += postings.size();
+                }
+            }
+            this.size = total;
+        }
+
+        /**
+         * Chooses how membership is checked: a binary search per matched word costs about 20
+         * steps per candidate, filling the BitSets one step per posting.
+         */
+        void prepare(long candidates, int docCount) {
+            int lists = 0;
+            for (List<SearchIndex.IntList> level : byDistance) {
+                lists += level.size();
+            }
+            if (candidates * lists * 20 < size) {
+                return;
+            }
+            levels = new BitSet[byDistance.size()];
+            for (int d = 0; d < levels.length; d++) {
+                levels[d] = new BitSet(docCount);
+                for (SearchIndex.IntList postings : byDistance.get(d)) {
+                    for (int i = 0; i < postings.size(); i++) {
+                        levels[d].set(postings.get(i));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the fewest typos with which a word of the book matches, or -1.
+         */
+        int distanceOf(int doc) {
+            for (int d = 0; d < byDistance.size(); d++) {
+                if (levels != null) {
+                    if (levels[d].get(doc)) {
+                        return d;
+                    }
+                    continue;
+                }
+                for (SearchIndex.IntList postings : byDistance.get(d)) {
+                    if (postings.contains(doc)) {
+                        return d;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A matching book with what it is ranked by.
+     */
+    private static final class Candidate {
+        final int doc;
+        final int id;
+        final int distance;
+        final int lengthGap;
+
+        Candidate(int doc, int id, int distance, int lengthGap) {
+            this.doc = doc;
+            this.id = id;
+            this.distance = distance;
+            this.lengthGap = lengthGap;
+        }
+    }
+}
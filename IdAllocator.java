@@ -0,0 +1,246 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Assigns ids to new books and answers whether an id is taken, without a database round trip
+ * in the common case.
+ *
+ * Ids are handed out from blocks of consecutive ids (hi/lo). A block is leased from the
+ * id_blocks table by advancing its next_id with a compare-and-set UPDATE, so every running
+ * instance gets blocks no other instance will hand out, without locks or long transactions.
+ * Only one query pair per blockSize books goes to the database. The first lease starts the
+ * sequence after the highest id in the books table.
+ *
+ * The ids already in the catalog are kept in an {@link IdSet}, loaded in the background after
+ * startup (see {@link CatalogViews}) and kept current through {@link CatalogListener}.
+ * {@link #isTaken(int)} answers from it, and {@link #next()} skips ids in it, so ids entered by
+ * hand inside a leased block are never handed out again. The set only knows the writes of this process: the primary key still has
+ * the last word, and a caller whose INSERT finds the id taken simply asks for the next one.
+ *
+ * With embedded storage there is no table to lease from; the file is locked to one process,
+ * so blocks simply start after the highest known id.
+ */
+public class IdAllocator implements CatalogListener, AutoCloseable {
+
+    private static final String SEQUENCE = "books";
+    private static final String SELECT_NEXT = "SELECT next_id FROM id_blocks WHERE name = ?";
+    private static final String SELECT_MAX = "SELECT COALESCE(MAX(id), 0) + 1 FROM books";
+    private static final String INSERT_NEXT = "INSERT INTO id_blocks (name, next_id) VALUES (?, ?)";
+    private static final String ADVANCE = "UPDATE id_blocks SET next_id = ? WHERE name = ? AND next_id = ?";
+
+    // Ids read per query while loading the set.
+    private static final int LOAD_CHUNK = 10000;
+
+    private static final OperationMetrics LEASE_METRICS = Metrics.operation("ids.lease");
+
+    private IdSet ids = new IdSet();
+    private final Connection connection;
+    private final int blockSize;
+
+    // The current block: ids from next (inclusive) to limit (exclusive) are ours to hand out.
+    private long next;
+    private long limit;
+
+    /**
+     * @param connection A connection of the allocator's own in autocommit mode, closed with the
+     *                   allocator; null for embedded storage, where blocks are leased locally.
+     * @param blockSize  Ids leased per round trip.
+     */
+    public IdAllocator(Connection connection, int blockSize) {
+        this.connection = connection;
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    /**
+     * Creates an allocator leasing -Debookstore.ids.blockSize ids at a time (default 100).
+     */
+    public static IdAllocator fromSystemProperties(Connection connection) {
+        return new IdAllocator(connection, Integer.getInteger("ebookstore.ids.blockSize", 100));
+    }
+
+    /**
+     * Loads every id of the catalog, reading ids only, in descending keyset pages.
+     * The set is filled off the lock and swapped in, so ids can be handed out meanwhile.
+     * Call before registering the allocator as a listener.
+     * @param repository Where the catalog is stored.
+     * @throws SQLException If the ids cannot be read.
+     */
+    public void load(BookRepository repository) throws SQLException {
+        IdSet loaded = new IdSet();
+        // idsBefore excludes its bound, so the one id it can never return is checked on its own.
+        if (repository.findById(Integer.MAX_VALUE) != null) {
+            loaded.add(Integer.MAX_VALUE);
+        }
+        int beforeId = Integer.MAX_VALUE;
+        while (true) {
+            List<Integer> chunk = repository.idsBefore(beforeId, LOAD_CHUNK);
+            for (int id : chunk) {
+                loaded.add(id);
+            }
+            if (chunk.size() < LOAD_CHUNK) {
+                break;
+            }
+            beforeId = chunk.get(chunk.size() - 1);
+        }
+        replace(loaded);
+    }
+
+    /**
+     * Loads the ids of an in-memory copy of the catalog, when one was read anyway.
+     * Call before registering the allocator as a listener.
+     * @param catalog Every book in the catalog.
+     */
+    public void load(Iterable<Book> catalog) {
+        IdSet loaded = new IdSet();
+        for (Book book : catalog) {
+            loaded.add(book.getId());
+        }
+        replace(loaded);
+    }
+
+    private synchronized void replace(IdSet loaded) {
+        ids = loaded;
+    }
+
+    /**
+     * With embedded storage, starts handing out ids after the highest id of the catalog, read
+     * with one keyset query, so ids can be assigned before {@link #load} has read them all.
+     * With JDBC the id_blocks table already knows where to start, and this does nothing.
+     * @param repository Where the catalog is stored.
+     * @throws SQLException If the highest id cannot be read.
+     */
+    public void startAfterHighest(BookRepository repository) throws SQLException {
+        if (connection != null) {
+            return;
+        }
+        List<Integer> highest = repository.findById(Integer.MAX_VALUE) != null
+                ? Collections.singletonList(Integer.MAX_VALUE) : repository.idsBefore(Integer.MAX_VALUE, 1);
+        if (!highest.isEmpty()) {
+            synchronized (this) {
+                ids.add(highest.get(0));
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    /**
+     * @return True if a book with this id exists, as far as this process knows.
+     */
+    public synchronized boolean isTaken(int id) {
+        return ids.contains(id);
+    }
+
+    /**
+     * Returns an id for a new book that no other instance will be given and that no book known
+     * to this process uses. Leases a new block when the current one is used up.
+     * @throws SQLException If a block cannot be leased, or no ids are left.
+     */
+    public synchronized int next() throws SQLException {
+        while (true) {
+            if (next >= limit) {
+                lease();
+            }
+            int id = (int) next++;
+            if (!ids.contains(id)) {
+                return id;
+            }
+        }
+    }
+
+    private void lease() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            long first = connection == null ? Math.max(limit, ids.max() + 1L) : leaseFromDatabase();
+            if (first > Integer.MAX_VALUE) {
+                throw new SQLException("No book ids left to assign");
+            }
+            next = Math.max(first, 1);
+            limit = Math.min(first + blockSize, Integer.MAX_VALUE + 1L);
+            LEASE_METRICS.record(System.nanoTime() - start, limit - next);
+        } catch (SQLException e) {
+            LEASE_METRICS.error(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Advances next_id by one block and returns where the block starts. Another instance
+     * leasing at the same moment makes the UPDATE match no row, and the lease is retried.
+     */
+    private long leaseFromDatabase() throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(SELECT_NEXT);
+             PreparedStatement advance = connection.prepareStatement(ADVANCE)) {
+            select.setString(1, SEQUENCE);
+            advance.setString(2, SEQUENCE);
+            while (true) {
+                long first;
+                try (ResultSet rs = select.executeQuery()) {
+                    first = rs.next() ? rs.getLong(1) : -1;
+                }
+                if (first < 0) {
+                    // No sequence yet: it starts after the highest id in the table, and the block
+                    // is ours if we are the instance that creates the row.
+                    first = startOfSequence();
+                    try (PreparedStatement insert = connection.prepareStatement(INSERT_NEXT)) {
+                        insert.setString(1, SEQUENCE);
+                        insert.setLong(2, first + blockSize);
+                        insert.executeUpdate();
+                        return first;
+                    } catch (SQLException e) {
+                        if (BookStatements.isDuplicateKey(e)) {
+                            continue;
+                        }
+                        throw e;
+                    }
+                }
+                advance.setLong(1, first + blockSize);
+                advance.setLong(3, first);
+                if (advance.executeUpdate() == 1) {
+                    return first;
+                }
+            }
+        }
+    }
+
+    private long startOfSequence() throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(SELECT_MAX);
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Override
+    public synchronized void bookSaved(Book book) {
+        ids.add(book.getId());
+    }
+
+    @Override
+    public synchronized void bookDeleted(int id) {
+        ids.remove(id);
+    }
+
+    @Override
+    public void quantityChanged(int id, int qty) {
+        // The id is unchanged.
+    }
+
+    @Override
+    public void close() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
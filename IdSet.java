@@ -0,0 +1,190 @@
+import java.util.Arrays;
+
+/**
+ * A compact set of ints, laid out like a roaring bitmap.
+ *
+ * Ids are split into chunks of 65536 by their upper 16 bits. A chunk with few ids stores them
+ * as a sorted char array (2 bytes per id); once it holds more than 4096 ids it switches to a
+ * 65536-bit bitmap (8 KB), which is smaller from that point on. A dense catalog of a million
+ * consecutive ids takes about 128 KB, and a lookup is an array index plus a bit test or a
+ * binary search over at most 4096 values.
+ *
+ * Not thread safe; {@link IdAllocator} guards its set.
+ */
+public class IdSet {
+
+    // Above this many ids a sorted array is larger than a bitmap.
+    private static final int ARRAY_MAX = 4096;
+
+    /**
+     * The ids of one chunk: either values (sorted low 16 bits) or bits, never both.
+     */
+    private static final class Chunk {
+        char[] values = new char[4];
+        long[] bits;
+        int size;
+
+        boolean contains(char low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+
+        boolean add(char low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) != 0) {
+                    return false;
+                }
+                bits[low >>> 6] |= mask;
+                size++;
+                return true;
+            }
+            int pos = Arrays.binarySearch(values, 0, size, low);
+            if (pos >= 0) {
+                return false;
+            }
+            if (size == ARRAY_MAX) {
+                toBitmap();
+                return add(low);
+            }
+            pos = -pos - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+            }
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+            values[pos] = low;
+            size++;
+            return true;
+        }
+
+        boolean remove(char low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) == 0) {
+                    return false;
+                }
+                bits[low >>> 6] &= ~mask;
+                size--;
+                if (size <= ARRAY_MAX / 2) {
+                    // Switching back only well below the limit avoids flipping on every add/remove.
+                    toArray();
+                }
+                return true;
+            }
+            int pos = Arrays.binarySearch(values, 0, size, low);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+            size--;
+            return true;
+        }
+
+        /**
+         * @return The largest low 16 bits in the chunk; the chunk must not be empty.
+         */
+        int max() {
+            if (bits == null) {
+                return values[size - 1];
+            }
+            for (int word = bits.length - 1; ; word--) {
+                if (bits[word] != 0) {
+                    return word * 64 + 63 - Long.numberOfLeadingZeros(bits[word]);
+                }
+            }
+        }
+
+        private void toBitmap() {
+            bits = new long[1024];
+            for (int i = 0; i < size; i++) {
+                bits[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+        }
+
+        private void toArray() {
+            values = new char[size];
+            int n = 0;
+            for (int word = 0; word < bits.length; word++) {
+                long w = bits[word];
+                while (w != 0) {
+                    values[n++] = (char) (word * 64 + Long.numberOfTrailingZeros(w));
+                    w &= w - 1;
+                }
+            }
+            bits = null;
+        }
+    }
+
+    // Indexed by the upper 16 bits of the id plus 32768, so chunk order is id order.
+    private final Chunk[] chunks = new Chunk[65536];
+    private int size;
+
+    private static int chunkIndex(int id) {
+        return (id >> 16) + 32768;
+    }
+
+    public boolean contains(int id) {
+        Chunk chunk = chunks[chunkIndex(id)];
+        return chunk != null && chunk.contains((char) id);
+    }
+
+    /**
+     * @return True if the id was not in the set yet.
+     */
+    public boolean add(int id) {
+        int index = chunkIndex(id);
+        Chunk chunk = chunks[index];
+        if (chunk == null) {
+            chunk = chunks[index] = new Chunk();
+        }
+        if (!chunk.add((char) id)) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * @return True if the id was in the set.
+     */
+    public boolean remove(int id) {
+        int index = chunkIndex(id);
+        Chunk chunk = chunks[index];
+        if (chunk == null || !chunk.remove((char) id)) {
+            return false;
+        }
+        if (chunk.size == 0) {
+            chunks[index] = null;
+        }
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The largest id in the set, or Integer.MIN_VALUE if it is empty.
+     */
+    public int max() {
+        for (int index = chunks.length - 1; index >= 0; index--) {
+            if (chunks[index] != null) {
+                return ((index - 32768) << 16) | chunks[index].max();
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    public void clear() {
+        Arrays.fill(chunks, null);
+        size = 0;
+    }
+}
@@ -0,0 +1,548 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Inventory reports kept up to date in memory: books low on stock, title counts and stock
+ * totals per author, and the authors and titles with the most stock. Off unless enabled, since
+ * they cost memory in proportion to the catalog.
+ *
+ * The aggregates are built by one keyset-paged pass over the catalog at startup and then
+ * adjusted through {@link CatalogListener} by the change of every write, so a report reads a few
+ * entries of an ordered set instead of running SUM(qty) or GROUP BY author over the books table.
+ * No book is kept in full: per book only its author (as the index of the author's totals) and its
+ * quantity are kept, packed into one long of an open-addressed table, which is what a write needs
+ * to take the book's old values off its author's totals. Authors are kept by name (for listing)
+ * and by stock (for the top authors).
+ *
+ * The low-stock and top-titles reports read two bounded rankings of at most maxRows books, the
+ * lowest and the highest quantities. Each holds a prefix of its order: every book outside it
+ * ranks after its last entry. A write keeps that true by dropping a book that moves past the
+ * last entry, so a ranking can run short; the next report that needs more books than it holds
+ * refills it from the quantities in the table and reads the titles of those books by id.
+ *
+ * Authors are grouped case-insensitively, like GROUP BY author under MySQL's default
+ * collation, and shown with the spelling of their most recently saved book.
+ */
+public class InventoryStats implements CatalogListener {
+
+    // Books read per page when building from the repository.
+    private static final int BUILD_CHUNK = 1000;
+
+    // Lowest quantity first, then by id.
+    private static final Comparator<Book> LOWEST = (a, b) -> a.getQty() != b.getQty()
+            ? Integer.compare(a.getQty(), b.getQty()) : Integer.compare(a.getId(), b.getId());
+    // Highest quantity first, then by id, highest first.
+    private static final Comparator<Book> HIGHEST = LOWEST.reversed();
+
+    /**
+     * The totals of one author at the time of a report.
+     */
+    public static final class AuthorTotal {
+        private final String author;
+        private final int titles;
+        private final long stock;
+
+        AuthorTotal(String author, int titles, long stock) {
+            this.author = author;
+            this.titles = titles;
+            this.stock = stock;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public int getTitles() {
+            return titles;
+        }
+
+        public long getStock() {
+            return stock;
+        }
+    }
+
+    /**
+     * The running totals of one author. Part of authorsByStock, so the stock only changes
+     * while the entry is out of that set.
+     */
+    private static final class Totals {
+        final String key;
+        final int index;
+        String author;
+        int titles;
+        long stock;
+
+        Totals(String key, int index, String author) {
+            this.key = key;
+            this.index = index;
+            this.author = author;
+        }
+    }
+
+    /**
+     * The first books of an order, at most capacity of them, such that every other book ranks
+     * after the last one.
+     */
+    private static final class Ranking {
+        final Comparator<Book> order;
+        final TreeSet<Book> books;
+        final Map<Integer, Book> byId = new HashMap<>();
+        final int capacity;
+
+        Ranking(Comparator<Book> order, int capacity) {
+            this.order = order;
+            this.books = new TreeSet<>(order);
+            this.capacity = capacity;
+        }
+
+        void clear() {
+            books.clear();
+            byId.clear();
+        }
+
+        void remove(int id) {
+            Book book = byId.remove(id);
+            if (book != null) {
+                books.remove(book);
+            }
+        }
+
+        /**
+         * Takes in a saved book, already removed.
+         * @param others The number of books in the catalog besides this one.
+         */
+        void offer(Book book, int others) {
+            // Without every other book at hand, only a book ranking before the last one is known
+            // to belong to the prefix.
+            if (books.size() == others || (!books.isEmpty() && order.compare(book, books.last()) < 0)) {
+                books.add(book);
+                byId.put(book.getId(), book);
+                if (books.size() > capacity) {
+                    byId.remove(books.pollLast().getId());
+                }
+            }
+        }
+
+        /**
+         * Replaces the quantity of a book if it is held, and drops it if it moved past the last
+         * one. A book not held that moved before the last one cannot be added without its title,
+         * so the books that now rank after it are dropped instead.
+         */
+        void quantityChanged(int id, int qty, int others) {
+            Book book = byId.get(id);
+            if (book != null) {
+                remove(id);
+                offer(book.withQty(qty), others);
+                return;
+            }
+            Book moved = new Book(id, null, null, qty);
+            while (!books.isEmpty() && order.compare(books.last(), moved) > 0) {
+                byId.remove(books.pollLast().getId());
+            }
+        }
+    }
+
+    /**
+     * Book ids mapped to their author's index and quantity, packed as (index + 1) << 32 | qty so
+     * that 0 marks a free slot. Open addressing with linear probing, at most half full.
+     */
+    private static final class BookTable {
+        int[] keys = new int[16];
+        long[] values = new long[16];
+        int size;
+
+        static long pack(int author, int qty) {
+            return ((long) (author + 1) << 32) | (qty & 0xFFFFFFFFL);
+        }
+
+        static int author(long value) {
+            return (int) (value >>> 32) - 1;
+        }
+
+        static int qty(long value) {
+            return (int) value;
+        }
+
+        private int slot(int id) {
+            int h = id * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (keys.length - 1);
+        }
+
+        long get(int id) {
+            for (int i = slot(id); values[i] != 0; i = (i + 1) & (keys.length - 1)) {
+                if (keys[i] == id) {
+                    return values[i];
+                }
+            }
+            return 0;
+        }
+
+        void put(int id, long value) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int i = slot(id);
+            while (values[i] != 0) {
+                if (keys[i] == id) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & (keys.length - 1);
+            }
+            keys[i] = id;
+            values[i] = value;
+            size++;
+        }
+
+        /**
+         * @return The value the id had, or 0 if it had none.
+         */
+        long remove(int id) {
+            int mask = keys.length - 1;
+            int i = slot(id);
+            while (values[i] != 0 && keys[i] != id) {
+                i = (i + 1) & mask;
+            }
+            long old = values[i];
+            if (old == 0) {
+                return 0;
+            }
+            values[i] = 0;
+            size--;
+            // Move back the entries of the probe run that can no longer be reached past the gap.
+            for (int j = (i + 1) & mask; values[j] != 0; j = (j + 1) & mask) {
+                if (((j - slot(keys[j])) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    values[j] = 0;
+                    i = j;
+                }
+            }
+            return old;
+        }
+
+        void clear() {
+            keys = new int[16];
+            values = new long[16];
+            size = 0;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+
+    private final BookTable books = new BookTable();
+    // Totals by index; a null slot is free for the next new author.
+    private final List<Totals> byIndex = new ArrayList<>();
+    private final List<Integer> freeIndexes = new ArrayList<>();
+    // Most stock first, then by name.
+    private final TreeSet<Totals> authorsByStock = new TreeSet<>((a, b) -> a.stock != b.stock
+            ? Long.compare(b.stock, a.stock) : a.key.compareTo(b.key));
+    private final TreeMap<String, Totals> authors = new TreeMap<>();
+    private final Ranking lowest;
+    private final Ranking highest;
+    private final int lowStockThreshold;
+    private final int maxRows;
+    private long totalStock;
+
+    /**
+     * @param lowStockThreshold Books with less stock than this are reported as low on stock
+     *                          unless a report asks for another threshold.
+     * @param maxRows           The most books a low-stock or top-titles report returns.
+     */
+    public InventoryStats(int lowStockThreshold, int maxRows) {
+        this.lowStockThreshold = lowStockThreshold;
+        this.maxRows = Math.max(1, maxRows);
+        this.lowest = new Ranking(LOWEST, this.maxRows);
+        this.highest = new Ranking(HIGHEST, this.maxRows);
+    }
+
+    /**
+     * Creates the reports if -Debookstore.reports=true, with the low-stock threshold of
+     * -Debookstore.reports.lowStock (default 5) and at most -Debookstore.reports.maxRows books
+     * per report (default 100), or returns null.
+     */
+    public static InventoryStats fromSystemProperties() {
+        if (!Boolean.getBoolean("ebookstore.reports")) {
+            return null;
+        }
+        return new InventoryStats(Integer.getInteger("ebookstore.reports.lowStock", 5),
+                Integer.getInteger("ebookstore.reports.maxRows", 100));
+    }
+
+    /**
+     * Groups author names case-insensitively.
+     */
+    static String authorKey(String author) {
+        return author == null ? "" : author.trim().toLowerCase();
+    }
+
+    /**
+     * Replaces the totals with those of the given books.
+     * @param catalog Every book in the catalog.
+     */
+    public synchronized void build(Iterable<Book> catalog) {
+        clear();
+        for (Book book : catalog) {
+            add(book);
+        }
+    }
+
+    /**
+     * Replaces the totals with those of the catalog, read in keyset pages.
+     * @param repository Where the catalog is stored.
+     * @throws SQLException If the catalog cannot be read.
+     */
+    public synchronized void build(BookRepository repository) throws SQLException {
+        clear();
+        int fromId = Integer.MIN_VALUE;
+        while (true) {
+            List<Book> chunk = repository.page(fromId, BUILD_CHUNK);
+            for (Book book : chunk) {
+                add(book);
+            }
+            if (chunk.size() < BUILD_CHUNK || chunk.get(chunk.size() - 1).getId() == Integer.MAX_VALUE) {
+                break;
+            }
+            fromId = chunk.get(chunk.size() - 1).getId() + 1;
+        }
+    }
+
+    private void clear() {
+        books.clear();
+        byIndex.clear();
+        freeIndexes.clear();
+        authors.clear();
+        authorsByStock.clear();
+        lowest.clear();
+        highest.clear();
+        totalStock = 0;
+    }
+
+    public int getLowStockThreshold() {
+        return lowStockThreshold;
+    }
+
+    public synchronized int size() {
+        return books.size;
+    }
+
+    public synchronized int authorCount() {
+        return authors.size();
+    }
+
+    public synchronized long totalStock() {
+        return totalStock;
+    }
+
+    /**
+     * Returns the books with less stock than the threshold, lowest first.
+     * @param repository Where to read books by id if the ranking has to be refilled.
+     * @param threshold  Books with a quantity below this are listed.
+     * @param limit      The maximum number of books to return, at most maxRows.
+     */
+    public synchronized List<Book> lowStock(BookRepository repository, int threshold, int limit)
+            throws SQLException {
+        limit = Math.min(limit, maxRows);
+        refillIfShort(repository, lowest, limit);
+        List<Book> low = new ArrayList<>();
+        for (Book book : lowest.books) {
+            if (book.getQty() >= threshold || low.size() >= limit) {
+                break;
+            }
+            low.add(book);
+        }
+        return low;
+    }
+
+    /**
+     * Returns the books with the most stock, most first.
+     * @param repository Where to read books by id if the ranking has to be refilled.
+     * @param limit      The maximum number of books to return, at most maxRows.
+     */
+    public synchronized List<Book> topTitles(BookRepository repository, int limit) throws SQLException {
+        limit = Math.min(limit, maxRows);
+        refillIfShort(repository, highest, limit);
+        List<Book> top = new ArrayList<>(Math.min(limit, highest.books.size()));
+        for (Book book : highest.books) {
+            if (top.size() >= limit) {
+                break;
+            }
+            top.add(book);
+        }
+        return top;
+    }
+
+    /**
+     * Returns the title count and stock of authors in name order, a page at a time.
+     * @param after The name of the last author of the previous page, or null for the first page.
+     * @param limit The maximum number of authors to return.
+     */
+    public synchronized List<AuthorTotal> authors(String after, int limit) {
+        Map<String, Totals> page = after == null ? authors : authors.tailMap(authorKey(after), false);
+        List<AuthorTotal> totals = new ArrayList<>(Math.min(limit, page.size()));
+        for (Totals author : page.values()) {
+            if (totals.size() >= limit) {
+                break;
+            }
+            totals.add(snapshot(author));
+        }
+        return totals;
+    }
+
+    /**
+     * Returns the authors with the most stock, most first.
+     */
+    public synchronized List<AuthorTotal> topAuthors(int limit) {
+        List<AuthorTotal> top = new ArrayList<>(Math.min(limit, authorsByStock.size()));
+        for (Totals author : authorsByStock) {
+            if (top.size() >= limit) {
+                break;
+            }
+            top.add(snapshot(author));
+        }
+        return top;
+    }
+
+    private static AuthorTotal snapshot(Totals author) {
+        return new AuthorTotal(author.author, author.titles, author.stock);
+    }
+
+    /**
+     * Refills a ranking that holds fewer books than a report needs and than there are: picks
+     * the first maxRows books of its order from the quantities in the table, then reads those
+     * books by id. A book the repository no longer has is left out until the delete arrives.
+     */
+    private void refillIfShort(BookRepository repository, Ranking ranking, int limit) throws SQLException {
+        if (ranking.books.size() >= Math.min(limit, books.size)) {
+            return;
+        }
+        // The candidates are compared by quantity and id only, so they need no title yet.
+        Comparator<Book> order = ranking.order;
+        PriorityQueue<Book> first = new PriorityQueue<>(maxRows + 1, order.reversed());
+        for (int i = 0; i < books.keys.length; i++) {
+            long value = books.values[i];
+            if (value == 0) {
+                continue;
+            }
+            Book candidate = new Book(books.keys[i], null, null, BookTable.qty(value));
+            if (first.size() < maxRows) {
+                first.add(candidate);
+            } else if (order.compare(candidate, first.peek()) < 0) {
+                first.poll();
+                first.add(candidate);
+            }
+        }
+        Book[] picked = first.toArray(new Book[0]);
+        Arrays.sort(picked, order);
+        ranking.clear();
+        for (Book candidate : picked) {
+            Book book = repository.findById(candidate.getId());
+            if (book == null) {
+                // Everything after it might rank after a book the ranking lacks; stop here.
+                break;
+            }
+            // The quantity in the table includes changes the repository may not have yet.
+            book = book.withQty(candidate.getQty());
+            ranking.books.add(book);
+            ranking.byId.put(book.getId(), book);
+        }
+    }
+
+    @Override
+    public synchronized void bookSaved(Book book) {
+        remove(book.getId());
+        add(book);
+    }
+
+    @Override
+    public synchronized void bookDeleted(int id) {
+        remove(id);
+    }
+
+    @Override
+    public synchronized void quantityChanged(int id, int qty) {
+        long value = books.get(id);
+        if (value == 0 || BookTable.qty(value) == qty) {
+            return;
+        }
+        int old = BookTable.qty(value);
+        Totals author = byIndex.get(BookTable.author(value));
+        authorsByStock.remove(author);
+        author.stock += qty - old;
+        authorsByStock.add(author);
+        totalStock += qty - old;
+        books.put(id, BookTable.pack(author.index, qty));
+        int others = books.size - 1;
+        lowest.quantityChanged(id, qty, others);
+        highest.quantityChanged(id, qty, others);
+    }
+
+    private void add(Book book) {
+        String key = authorKey(book.getAuthor());
+        Totals author = authors.get(key);
+        if (author == null) {
+            int index;
+            if (freeIndexes.isEmpty()) {
+                index = byIndex.size();
+                byIndex.add(null);
+            } else {
+                index = freeIndexes.remove(freeIndexes.size() - 1);
+            }
+            author = new Totals(key, index, book.getAuthor());
+            byIndex.set(index, author);
+            authors.put(key, author);
+        } else {
+            authorsByStock.remove(author);
+            author.author = book.getAuthor();
+        }
+        author.titles++;
+        author.stock += book.getQty();
+        authorsByStock.add(author);
+        totalStock += book.getQty();
+        int others = books.size;
+        books.put(book.getId(), BookTable.pack(author.index, book.getQty()));
+        lowest.offer(book, others);
+        highest.offer(book, others);
+    }
+
+    private void remove(int id) {
+        long value = books.remove(id);
+        if (value == 0) {
+            return;
+        }
+        lowest.remove(id);
+        highest.remove(id);
+        int qty = BookTable.qty(value);
+        Totals author = byIndex.get(BookTable.author(value));
+        authorsByStock.remove(author);
+        author.titles--;
+        author.stock -= qty;
+        if (author.titles == 0) {
+            authors.remove(author.key);
+            byIndex.set(author.index, null);
+            freeIndexes.add(author.index);
+        } else {
+            authorsByStock.add(author);
+        }
+        totalStock -= qty;
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for the flat objects exchanged by the export and the HTTP server.
+ * Only what those need is implemented: writing strings and books, and parsing a single
+ * object whose values are strings, numbers, booleans or null.
+ */
+public final class Json {
+
+    private Json() {
+    }
+
+    /**
+     * Appends a JSON string literal, or null.
+     */
+    public static void writeString(Appendable out, String value) throws IOException {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Appends a book as a JSON object, with the version a conditional write expects.
+     */
+    public static void writeBook(Appendable out, Book book) throws IOException {
+        out.append("{\"id\":").append(Integer.toString(book.getId()));
+        out.append(",\"title\":");
+        writeString(out, book.getTitle());
+        out.append(",\"author\":");
+        writeString(out, book.getAuthor());
+        out.append(",\"qty\":").append(Integer.toString(book.getQty()));
+        out.append(",\"version\":").append(Long.toString(book.getVersion())).append('}');
+    }
+
+    /**
+     * Returns a book as a JSON object.
+     */
+    public static String book(Book book) {
+        StringBuilder out = new StringBuilder(128);
+        try {
+            writeBook(out, book);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns a list of books as a JSON array.
+     */
+    public static String books(List<Book> books) {
+        StringBuilder out = new StringBuilder(16 + books.size() * 96);
+        out.append('[');
+        try {
+            for (int i = 0; i < books.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                writeBook(out, books.get(i));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.append(']').toString();
+    }
+
+    /**
+     * Returns the totals of authors as a JSON array of {"author","titles","stock"} objects.
+     */
+    public static String authorTotals(List<InventoryStats.AuthorTotal> totals) {
+        StringBuilder out = new StringBuilder(16 + totals.size() * 64);
+        out.append('[');
+        try {
+            for (int i = 0; i < totals.size(); i++) {
+                InventoryStats.AuthorTotal total = totals.get(i);
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append("{\"author\":");
+                writeString(out, total.getAuthor());
+                out.append(",\"titles\":").append(Integer.toString(total.getTitles()));
+                out.append(",\"stock\":").append(Long.toString(total.getStock())).append('}');
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.append(']').toString();
+    }
+
+    /**
+     * Returns {"error": message}.
+     */
+    public static String error(String message) {
+        StringBuilder out = new StringBuilder("{\"error\":");
+        try {
+            writeString(out, message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.append('}').toString();
+    }
+
+    /**
+     * Parses a flat JSON object. Numbers become Long or Double.
+     * @param text The JSON text.
+     * @return The object's members in document order.
+     * @throws IllegalArgumentException If the text is not a flat JSON object.
+     */
+    public static Map<String, Object> parseObject(String text) {
+        Parser parser = new Parser(text);
+        Map<String, Object> object = parser.object();
+        parser.skipWhitespace();
+        if (parser.pos != text.length()) {
+            throw new IllegalArgumentException("Unexpected content after JSON object");
+        }
+        return object;
+    }
+
+    private static final class Parser {
+        private final String text;
+        private int pos;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Map<String, Object> object() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = string();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                object.put(key, value());
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    return object;
+                }
+                if (c != ',') {
+                    throw new IllegalArgumentException("Expected ',' or '}' at " + (pos - 1));
+                }
+            }
+        }
+
+        Object value() {
+            char c = peek();
+            if (c == '"') {
+                return string();
+            }
+            if (text.startsWith("true", pos)) {
+                pos += 4;
+                return Boolean.TRUE;
+            }
+            if (text.startsWith("false", pos)) {
+                pos += 5;
+                return Boolean.FALSE;
+            }
+            if (text.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            }
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String number = text.substring(start, pos);
+            try {
+                if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0) {
+                    return Double.parseDouble(number);
+                }
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid JSON value at " + start);
+            }
+        }
+
+        String string() {
+            expect('"');
+            StringBuilder out = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return out.toString();
+                }
+                if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                char escaped = next();
+                switch (escaped) {
+                    case 'n':
+                        out.append('\n');
+                        break;
+                    case 'r':
+                        out.append('\r');
+                        break;
+                    case 't':
+                        out.append('\t');
+                        break;
+                    case 'b':
+                        out.append('\b');
+                        break;
+                    case 'f':
+                        out.append('\f');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw new IllegalArgumentException("Truncated unicode escape");
+                        }
+                        out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default:
+                        out.append(escaped);
+                }
+            }
+        }
+
+        void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        char peek() {
+            if (pos >= text.length()) {
+                throw new IllegalArgumentException("Unexpected end of JSON");
+            }
+            return text.charAt(pos);
+        }
+
+        char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        void expect(char c) {
+            if (next() != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at " + (pos - 1));
+            }
+        }
+    }
+}
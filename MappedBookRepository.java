@@ -0,0 +1,1079 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLNonTransientException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded {@link BookRepository} that keeps the catalog in one memory-mapped file, for
+ * installations without a MySQL server (kiosks, test rigs).
+ *
+ * <pre>
+ * header   64 bytes    magic, version, slot capacity/count, heap capacity/end
+ * slots    32 bytes    flags, id, qty, title offset/length, author offset/length (fixed width)
+ * heap                 UTF-8 strings referenced by the slots
+ * </pre>
+ *
+ * Opening the store maps the file; only the id of each slot is read, into an off-heap
+ * id-to-slot hash table and a sorted id array, and books are decoded when they are asked for.
+ * Point reads are a hash lookup and a few reads from the mapping, without a network hop.
+ *
+ * Every write is first appended to a write-ahead log (FILE.wal) as one checksummed entry and,
+ * unless -Debookstore.storage.syncWrites=false, forced to disk, then applied to the mapping.
+ * Log operations are idempotent upserts and deletes, so after a crash replaying the log over the
+ * file restores every acknowledged write; a torn last entry fails its checksum and is dropped.
+ * When the log passes ebookstore.storage.checkpointBytes (default 8 MB) and on close, the mapping
+ * is forced to disk and the log emptied. Pages of the mapping may reach the disk in any order
+ * between checkpoints, so opening the store does not trust the slot count and heap end in the
+ * header: it recomputes them from the live slots, and the replay writes every string to new
+ * heap space rather than over bytes a half-written slot may still point to. When the slots or
+ * the heap are full, the file is rewritten with doubled capacities, leaving out deleted slots
+ * and replaced strings.
+ *
+ * The file is limited to 2 GB (one mapping). All methods are synchronized; one process at a
+ * time may open the store.
+ */
+public class MappedBookRepository implements BookRepository {
+
+    private static final long MAGIC = 0x45424F4F4B444231L; // "EBOOKDB1"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_SLOT_CAPACITY = 12;
+    private static final int H_SLOT_COUNT = 16;
+    private static final int H_HEAP_CAPACITY = 20;
+    private static final int H_HEAP_END = 24;
+
+    private static final int SLOT_SIZE = 32;
+    private static final int S_FLAGS = 0;
+    private static final int S_ID = 4;
+    private static final int S_QTY = 8;
+    private static final int S_TITLE_OFFSET = 12;
+    private static final int S_TITLE_LENGTH = 16;
+    private static final int S_AUTHOR_OFFSET = 20;
+    private static final int S_AUTHOR_LENGTH = 24;
+    private static final int LIVE = 1;
+
+    private static final int MIN_SLOTS = 1024;
+    private static final int MIN_HEAP = 64 * 1024;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    private static final OperationMetrics WAL_METRICS = Metrics.operation("mapped.walAppend");
+    private static final OperationMetrics CHECKPOINT_METRICS = Metrics.operation("mapped.checkpoint");
+
+    private final Path file;
+    private final Path tempFile;
+    private final boolean syncWrites;
+    private final long checkpointBytes;
+
+    private final FileChannel wal;
+    private final FileLock lock;
+
+    private FileChannel dataChannel;
+    private MappedByteBuffer data;
+    private int slotCapacity;
+    private int slotCount;
+    private int heapStart;
+    private int heapCapacity;
+    private int heapEnd;
+
+    private final IdIndex index = new IdIndex();
+    private int[] sortedIds = new int[MIN_SLOTS];
+    private int size;
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+
+    private boolean closed = false;
+    // Set while the log is replayed; strings are then never written in place.
+    private boolean replaying = false;
+    // Set when a write was logged but could not be applied; the store must be reopened.
+    private boolean failed = false;
+
+    /**
+     * Opens the store, creating the file if needed and replaying the write-ahead log.
+     * @param file            The data file; the log is kept next to it as FILE.wal.
+     * @param syncWrites      Whether every write forces the log to disk before returning.
+     * @param checkpointBytes Log size after which the mapping is flushed and the log emptied.
+     * @throws SQLException If the file cannot be opened, is not a store, or is in use by another process.
+     */
+    public MappedBookRepository(Path file, boolean syncWrites, long checkpointBytes) throws SQLException {
+        this.file = file;
+        this.tempFile = Paths.get(file + ".tmp");
+        this.syncWrites = syncWrites;
+        this.checkpointBytes = checkpointBytes;
+        FileChannel walChannel = null;
+        try {
+            walChannel = FileChannel.open(Paths.get(file + ".wal"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileLock acquired;
+            try {
+                acquired = walChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                acquired = null; // already open in this JVM
+            }
+            this.lock = acquired;
+            if (lock == null) {
+                throw new SQLNonTransientException("Store " + file + " is in use by another process");
+            }
+            this.wal = walChannel;
+            recoverGrow();
+            if (!Files.exists(file)) {
+                create(file, MIN_SLOTS, MIN_HEAP);
+            }
+            map();
+            load();
+            replay();
+            checkpoint();
+        } catch (IOException e) {
+            closeQuietly(walChannel);
+            throw new SQLException("Cannot open store " + file + ": " + e.getMessage(), e);
+        } catch (SQLException | RuntimeException e) {
+            closeQuietly(walChannel);
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the store configured by -Debookstore.storage.file (default books.db),
+     * ebookstore.storage.syncWrites (default true) and ebookstore.storage.checkpointBytes.
+     */
+    public static MappedBookRepository fromSystemProperties() throws SQLException {
+        String syncWrites = System.getProperty("ebookstore.storage.syncWrites", "true");
+        return new MappedBookRepository(Paths.get(System.getProperty("ebookstore.storage.file", "books.db")),
+                Boolean.parseBoolean(syncWrites),
+                Long.getLong("ebookstore.storage.checkpointBytes", 8L * 1024 * 1024));
+    }
+
+    private static void create(Path path, int slots, int heap) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.setLength(HEADER_SIZE + (long) slots * SLOT_SIZE + heap);
+            raf.writeLong(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(slots);
+            raf.writeInt(0);
+            raf.writeInt(heap);
+            raf.writeInt(0);
+            raf.getFD().sync();
+        }
+    }
+
+    private void map() throws IOException, SQLException {
+        dataChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = dataChannel.size();
+        if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+            throw new SQLNonTransientException(file + " is not a book store");
+        }
+        data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        if (data.getLong(H_MAGIC) != MAGIC || data.getInt(H_VERSION) != VERSION) {
+            throw new SQLNonTransientException(file + " is not a book store (or has an unsupported version)");
+        }
+        slotCapacity = data.getInt(H_SLOT_CAPACITY);
+        slotCount = data.getInt(H_SLOT_COUNT);
+        heapCapacity = data.getInt(H_HEAP_CAPACITY);
+        heapEnd = data.getInt(H_HEAP_END);
+        heapStart = HEADER_SIZE + slotCapacity * SLOT_SIZE;
+        if (slotCount < 0 || slotCount > slotCapacity || heapEnd < 0 || heapEnd > heapCapacity
+                || (long) heapStart + heapCapacity > length) {
+            throw new SQLNonTransientException(file + " has a corrupt header");
+        }
+    }
+
+    /**
+     * Builds the id index and the sorted id array from the slot ids, without reading any strings.
+     * Every slot up to the capacity is looked at, since the header may predate slots written
+     * after the last checkpoint, and the slot count and heap end are taken from the live slots.
+     */
+    private void load() {
+        index.clear();
+        size = 0;
+        freeCount = 0;
+        int used = 0;
+        long end = 0;
+        for (int slot = 0; slot < slotCapacity; slot++) {
+            int base = slotBase(slot);
+            if (data.getInt(base + S_FLAGS) != LIVE) {
+                continue;
+            }
+            int id = data.getInt(base + S_ID);
+            // Slots written after the last checkpoint may be half written after a crash; the log
+            // replay rewrites every book they held, so anything doubtful is dropped here.
+            if (!validStrings(base) || index.get(id) >= 0) {
+                data.putInt(base + S_FLAGS, 0);
+                continue;
+            }
+            index.put(id, slot);
+            if (size == sortedIds.length) {
+                sortedIds = Arrays.copyOf(sortedIds, size * 2);
+            }
+            sortedIds[size++] = id;
+            used = slot + 1;
+            end = Math.max(end, stringEnd(base + S_TITLE_OFFSET));
+            end = Math.max(end, stringEnd(base + S_AUTHOR_OFFSET));
+        }
+        Arrays.sort(sortedIds, 0, size);
+        slotCount = used;
+        heapEnd = (int) end;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (data.getInt(slotBase(slot) + S_FLAGS) != LIVE) {
+                pushFree(slot);
+            }
+        }
+    }
+
+    /**
+     * @param offsetField Position of a string's offset field, followed by its length field.
+     * @return The heap offset just past the string, or 0 for null.
+     */
+    private long stringEnd(int offsetField) {
+        int length = data.getInt(offsetField + 4);
+        return length < 0 ? 0 : (long) data.getInt(offsetField) + length;
+    }
+
+    private boolean validStrings(int base) {
+        return validString(data.getInt(base + S_TITLE_OFFSET), data.getInt(base + S_TITLE_LENGTH))
+                && validString(data.getInt(base + S_AUTHOR_OFFSET), data.getInt(base + S_AUTHOR_LENGTH));
+    }
+
+    private boolean validString(int offset, int length) {
+        return length == -1 || (offset >= 0 && length >= 0 && (long) offset + length <= heapCapacity);
+    }
+
+    private int slotBase(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private Book readBook(int slot) {
+        int base = slotBase(slot);
+        return new Book(data.getInt(base + S_ID),
+                readString(data.getInt(base + S_TITLE_OFFSET), data.getInt(base + S_TITLE_LENGTH)),
+                readString(data.getInt(base + S_AUTHOR_OFFSET), data.getInt(base + S_AUTHOR_LENGTH)),
+                data.getInt(base + S_QTY));
+    }
+
+    private String readString(int offset, int length) {
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.position(heapStart + offset);
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized Book findById(int id) throws SQLException {
+        checkOpen();
+        int slot = index.get(id);
+        return slot < 0 ? null : readBook(slot);
+    }
+
+    @Override
+    public synchronized List<Book> page(int fromId, int limit) throws SQLException {
+        checkOpen();
+        List<Book> books = new ArrayList<>(Math.min(limit, 1000));
+        for (int i = lowerBound(fromId); i < size && books.size() < limit; i++) {
+            books.add(readBook(index.get(sortedIds[i])));
+        }
+        return books;
+    }
+
+    @Override
+    public synchronized List<Integer> idsBefore(int beforeId, int limit) throws SQLException {
+        checkOpen();
+        List<Integer> ids = new ArrayList<>(Math.min(limit, 1000));
+        for (int i = lowerBound(beforeId) - 1; i >= 0 && ids.size() < limit; i--) {
+            ids.add(sortedIds[i]);
+        }
+        return ids;
+    }
+
+    @Override
+    public synchronized List<Book> searchTitle(String title, int fromId, int limit) throws SQLException {
+        checkOpen();
+        String needle = SearchIndex.normalize(title);
+        List<Book> books = new ArrayList<>();
+        for (int i = lowerBound(fromId); i < size && books.size() < limit; i++) {
+            if (titleContains(i, needle)) {
+                books.add(readBook(index.get(sortedIds[i])));
+            }
+        }
+        return books;
+    }
+
+    @Override
+    public synchronized List<Book> searchAuthor(String author, int fromId, int limit) throws SQLException {
+        checkOpen();
+        String needle = author.toLowerCase(Locale.ROOT);
+        List<Book> books = new ArrayList<>();
+        for (int i = lowerBound(fromId); i < size && books.size() < limit; i++) {
+            if (authorContains(i, needle)) {
+                books.add(readBook(index.get(sortedIds[i])));
+            }
+        }
+        return books;
+    }
+
+    @Override
+    public synchronized int countTitle(String title) throws SQLException {
+        checkOpen();
+        String needle = SearchIndex.normalize(title);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (titleContains(i, needle)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized int countAuthor(String author) throws SQLException {
+        checkOpen();
+        String needle = author.toLowerCase(Locale.ROOT);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (authorContains(i, needle)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param position  Position of the book in sortedIds.
+     * @param needle    Normalized search text.
+     */
+    private boolean titleContains(int position, String needle) {
+        int base = slotBase(index.get(sortedIds[position]));
+        String value = readString(data.getInt(base + S_TITLE_OFFSET), data.getInt(base + S_TITLE_LENGTH));
+        return value != null && SearchIndex.normalize(value).contains(needle);
+    }
+
+    /**
+     * Like "author LIKE '%...%'" under MySQL's default case-insensitive collation.
+     * @param position  Position of the book in sortedIds.
+     * @param needle    Lowercase search text.
+     */
+    private boolean authorContains(int position, String needle) {
+        int base = slotBase(index.get(sortedIds[position]));
+        String value = readString(data.getInt(base + S_AUTHOR_OFFSET), data.getInt(base + S_AUTHOR_LENGTH));
+        return value != null && value.toLowerCase(Locale.ROOT).contains(needle);
+    }
+
+    /**
+     * @return The position of the first id greater than or equal to id in sortedIds.
+     */
+    private int lowerBound(int id) {
+        int pos = Arrays.binarySearch(sortedIds, 0, size, id);
+        return pos >= 0 ? pos : -pos - 1;
+    }
+
+    @Override
+    public synchronized boolean insert(Book book) throws SQLException {
+        checkWritable();
+        if (index.get(book.getId()) >= 0) {
+            return false;
+        }
+        write(Collections.singletonList(putOp(book)));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean update(Book book) throws SQLException {
+        checkWritable();
+        if (index.get(book.getId()) < 0) {
+            return false;
+        }
+        write(Collections.singletonList(putOp(book)));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean updateIfUnchanged(Book expected, Book updated) throws SQLException {
+        checkWritable();
+        Book current = findById(expected.getId());
+        if (current == null || !matches(current, expected)) {
+            return false;
+        }
+        List<Op> ops = new ArrayList<>(2);
+        if (updated.getId() != expected.getId()) {
+            if (index.get(updated.getId()) >= 0) {
+                throw new SQLIntegrityConstraintViolationException(
+                        "Duplicate entry '" + updated.getId() + "' for key 'PRIMARY'", "23000");
+            }
+            ops.add(deleteOp(expected.getId()));
+        }
+        ops.add(putOp(updated));
+        write(ops);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean delete(int id) throws SQLException {
+        checkWritable();
+        if (index.get(id) < 0) {
+            return false;
+        }
+        write(Collections.singletonList(deleteOp(id)));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean deleteIfUnchanged(Book expected) throws SQLException {
+        checkWritable();
+        Book current = findById(expected.getId());
+        if (current == null || !matches(current, expected)) {
+            return false;
+        }
+        write(Collections.singletonList(deleteOp(expected.getId())));
+        return true;
+    }
+
+    @Override
+    public synchronized int[] addToQty(List<Integer> ids, List<Integer> deltas) throws SQLException {
+        checkWritable();
+        int[] counts = new int[ids.size()];
+        // Later changes to the same id apply on top of earlier ones, as in the JDBC batch.
+        Map<Integer, Book> changed = new HashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            Book book = changed.containsKey(id) ? changed.get(id) : findById(id);
+            if (book != null && (long) book.getQty() + deltas.get(i) >= 0) {
+                changed.put(id, book.withQty(book.getQty() + deltas.get(i)));
+                counts[i] = 1;
+            }
+        }
+        List<Op> ops = new ArrayList<>(changed.size());
+        for (Book book : changed.values()) {
+            ops.add(putOp(book));
+        }
+        if (!ops.isEmpty()) {
+            write(ops);
+        }
+        return counts;
+    }
+
+    private static boolean matches(Book current, Book expected) {
+        return emptyIfNull(current.getTitle()).equals(emptyIfNull(expected.getTitle()))
+                && emptyIfNull(current.getAuthor()).equals(emptyIfNull(expected.getAuthor()))
+                && current.getQty() == expected.getQty();
+    }
+
+    private static String emptyIfNull(String value) {
+        return value == null ? "" : value;
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLNonTransientException("Store " + file + " is closed");
+        }
+    }
+
+    private void checkWritable() throws SQLException {
+        checkOpen();
+        if (failed) {
+            throw new SQLNonTransientException("Store " + file + " failed a write and must be reopened");
+        }
+    }
+
+    /**
+     * One logged change: a full book to store (PUT) or an id to remove (DELETE).
+     */
+    private static final class Op {
+        final byte type;
+        final int id;
+        final int qty;
+        final byte[] title;
+        final byte[] author;
+
+        Op(byte type, int id, int qty, byte[] title, byte[] author) {
+            this.type = type;
+            this.id = id;
+            this.qty = qty;
+            this.title = title;
+            this.author = author;
+        }
+    }
+
+    private static Op putOp(Book book) {
+        return new Op(OP_PUT, book.getId(), book.getQty(), utf8(book.getTitle()), utf8(book.getAuthor()));
+    }
+
+    private static Op deleteOp(int id) {
+        return new Op(OP_DELETE, id, 0, null, null);
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Logs the operations as one entry, then applies them to the mapping.
+     */
+    private void write(List<Op> ops) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            appendToLog(ops);
+        } catch (IOException e) {
+            WAL_METRICS.error(System.nanoTime() - start);
+            throw new SQLException("Cannot write to the log of " + file + ": " + e.getMessage(), e);
+        }
+        WAL_METRICS.record(System.nanoTime() - start, ops.size());
+        try {
+            for (Op op : ops) {
+                apply(op);
+            }
+            if (wal.position() >= checkpointBytes) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            // The entry is in the log, so it is applied when the store is reopened.
+            failed = true;
+            throw new SQLException("Cannot apply a write to " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void appendToLog(List<Op> ops) throws IOException {
+        int length = 4;
+        for (Op op : ops) {
+            length += op.type == OP_PUT ? 1 + 4 + 4 + stringSize(op.title) + stringSize(op.author) : 1 + 4;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(8 + length);
+        entry.putInt(length);
+        entry.putInt(0); // checksum, filled in below
+        entry.putInt(ops.size());
+        for (Op op : ops) {
+            entry.put(op.type);
+            entry.putInt(op.id);
+            if (op.type == OP_PUT) {
+                entry.putInt(op.qty);
+                putString(entry, op.title);
+                putString(entry, op.author);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), 8, length);
+        entry.putInt(4, (int) crc.getValue());
+        entry.flip();
+        while (entry.hasRemaining()) {
+            wal.write(entry);
+        }
+        if (syncWrites) {
+            wal.force(false);
+        }
+    }
+
+    private static int stringSize(byte[] value) {
+        return 4 + (value == null ? 0 : value.length);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putInt(value == null ? -1 : value.length);
+        if (value != null) {
+            buffer.put(value);
+        }
+    }
+
+    private static byte[] getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return value;
+    }
+
+    /**
+     * Applies every complete entry of the log, in order, and cuts off a torn or corrupt tail.
+     */
+    private void replay() throws IOException {
+        long walSize = wal.size();
+        if (walSize == 0) {
+            return;
+        }
+        replaying = true;
+        try {
+            replay(walSize);
+        } finally {
+            replaying = false;
+        }
+    }
+
+    private void replay(long walSize) throws IOException {
+        ByteBuffer log = ByteBuffer.allocate((int) Math.min(walSize, Integer.MAX_VALUE));
+        wal.position(0);
+        while (log.hasRemaining() && wal.read(log) > 0) {
+            // Keep reading until the whole log is in memory.
+        }
+        log.flip();
+        int applied = 0;
+        while (log.remaining() >= 8) {
+            int start = log.position();
+            int length = log.getInt();
+            int checksum = log.getInt();
+            if (length < 4 || length > log.remaining()) {
+                log.position(start);
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(log.array(), log.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                log.position(start);
+                break;
+            }
+            int count = log.getInt();
+            for (int i = 0; i < count; i++) {
+                byte type = log.get();
+                int id = log.getInt();
+                if (type == OP_PUT) {
+                    int qty = log.getInt();
+                    byte[] title = getString(log);
+                    byte[] author = getString(log);
+                    apply(new Op(OP_PUT, id, qty, title, author));
+                } else {
+                    apply(deleteOp(id));
+                }
+            }
+            applied++;
+        }
+        if (log.position() < walSize) {
+            System.out.println("Dropped an incomplete entry at the end of the log of " + file + ".");
+        }
+        if (applied > 0) {
+            System.out.println("Replayed " + applied + " logged write(s) into " + file + ".");
+        }
+    }
+
+    /**
+     * Forces the mapping to disk, then empties the log.
+     */
+    private void checkpoint() throws IOException {
+        long start = System.nanoTime();
+        data.putInt(H_SLOT_COUNT, slotCount);
+        data.putInt(H_HEAP_END, heapEnd);
+        data.force();
+        wal.truncate(0);
+        wal.position(0);
+        wal.force(true);
+        CHECKPOINT_METRICS.record(System.nanoTime() - start, size);
+    }
+
+    private void apply(Op op) throws IOException {
+        if (op.type == OP_DELETE) {
+            applyDelete(op.id);
+        } else {
+            applyPut(op);
+        }
+        data.putInt(H_SLOT_COUNT, slotCount);
+        data.putInt(H_HEAP_END, heapEnd);
+    }
+
+    private void applyPut(Op op) throws IOException {
+        int slot = index.get(op.id);
+        int titleLength = op.title == null ? 0 : op.title.length;
+        int authorLength = op.author == null ? 0 : op.author.length;
+        boolean newSlot = slot < 0;
+        if (heapEnd + (long) titleLength + authorLength > heapCapacity
+                || (newSlot && freeCount == 0 && slotCount == slotCapacity)) {
+            grow(newSlot ? 1 : 0, titleLength + authorLength);
+            slot = index.get(op.id);
+        }
+        if (slot < 0) {
+            slot = freeCount > 0 ? freeSlots[--freeCount] : slotCount++;
+        }
+        int base = slotBase(slot);
+        int titleOffset = writeString(base + S_TITLE_OFFSET, base + S_TITLE_LENGTH, op.title, newSlot);
+        int authorOffset = writeString(base + S_AUTHOR_OFFSET, base + S_AUTHOR_LENGTH, op.author, newSlot);
+        data.putInt(base + S_ID, op.id);
+        data.putInt(base + S_QTY, op.qty);
+        data.putInt(base + S_TITLE_OFFSET, titleOffset);
+        data.putInt(base + S_TITLE_LENGTH, op.title == null ? -1 : op.title.length);
+        data.putInt(base + S_AUTHOR_OFFSET, authorOffset);
+        data.putInt(base + S_AUTHOR_LENGTH, op.author == null ? -1 : op.author.length);
+        // Marked live last, so a slot is never live before its fields are written.
+        data.putInt(base + S_FLAGS, LIVE);
+        if (newSlot) {
+            index.put(op.id, slot);
+            int pos = lowerBound(op.id);
+            if (size == sortedIds.length) {
+                sortedIds = Arrays.copyOf(sortedIds, size * 2);
+            }
+            System.arraycopy(sortedIds, pos, sortedIds, pos + 1, size - pos);
+            sortedIds[pos] = op.id;
+            size++;
+        }
+    }
+
+    /**
+     * Stores a string in the heap, reusing the old string's space when the new one fits, except
+     * during the replay, where the old offset may come from a half-written slot.
+     * @return The heap offset of the string (0 for null).
+     */
+    private int writeString(int offsetField, int lengthField, byte[] value, boolean newSlot) {
+        if (value == null) {
+            return 0;
+        }
+        int offset;
+        if (!newSlot && !replaying && data.getInt(lengthField) >= value.length) {
+            offset = data.getInt(offsetField);
+        } else {
+            offset = heapEnd;
+            heapEnd += value.length;
+        }
+        data.position(heapStart + offset);
+        data.put(value);
+        return offset;
+    }
+
+    private void applyDelete(int id) {
+        int slot = index.get(id);
+        if (slot < 0) {
+            return;
+        }
+        data.putInt(slotBase(slot) + S_FLAGS, 0);
+        index.remove(id);
+        int pos = lowerBound(id);
+        System.arraycopy(sortedIds, pos + 1, sortedIds, pos, size - pos - 1);
+        size--;
+        pushFree(slot);
+    }
+
+    private void pushFree(int slot) {
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Rewrites the file with room for at least the extra slots and heap bytes, keeping only live
+     * books in id order. The new image is first written to FILE.tmp through plain file writes,
+     * with its header last, and forced; only then is it copied over the data file, which keeps
+     * its name and is mapped again at the new size. The data file is never replaced or shrunk
+     * while mapped. A crash before the image is complete leaves the old file as it was; a crash
+     * during the copy is finished by {@link #recoverGrow()} on the next open. The log applies to
+     * both.
+     */
+    private void grow(int extraSlots, int extraHeap) throws IOException {
+        long liveHeap = 0;
+        for (int i = 0; i < size; i++) {
+            int base = slotBase(index.get(sortedIds[i]));
+            liveHeap += Math.max(0, data.getInt(base + S_TITLE_LENGTH)) + Math.max(0, data.getInt(base + S_AUTHOR_LENGTH));
+        }
+        // Never smaller than now, so the copy only ever extends the mapped file.
+        long newSlots = Math.max(Math.max(MIN_SLOTS, slotCapacity), 2L * (size + extraSlots));
+        long newHeap = Math.max(Math.max(MIN_HEAP, heapCapacity), 2L * (liveHeap + extraHeap));
+        if (HEADER_SIZE + newSlots * SLOT_SIZE + newHeap > Integer.MAX_VALUE) {
+            throw new IOException("The store would grow past 2 GB");
+        }
+        long heapBase = HEADER_SIZE + newSlots * SLOT_SIZE;
+        try (FileChannel target = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer slots = ByteBuffer.allocate(SLOT_SIZE * 2048);
+            ByteBuffer heap = ByteBuffer.allocate(1 << 20);
+            long slotPosition = HEADER_SIZE;
+            long heapPosition = heapBase;
+            int targetHeapEnd = 0;
+            for (int i = 0; i < size; i++) {
+                int base = slotBase(index.get(sortedIds[i]));
+                byte[] title = stringBytes(base + S_TITLE_OFFSET);
+                byte[] author = stringBytes(base + S_AUTHOR_OFFSET);
+                if (slots.remaining() < SLOT_SIZE) {
+                    slotPosition += drain(target, slots, slotPosition);
+                }
+                int slot = slots.position();
+                slots.putInt(slot + S_FLAGS, LIVE);
+                slots.putInt(slot + S_ID, data.getInt(base + S_ID));
+                slots.putInt(slot + S_QTY, data.getInt(base + S_QTY));
+                slots.putInt(slot + S_TITLE_OFFSET, targetHeapEnd);
+                slots.putInt(slot + S_TITLE_LENGTH, data.getInt(base + S_TITLE_LENGTH));
+                targetHeapEnd += title.length;
+                slots.putInt(slot + S_AUTHOR_OFFSET, targetHeapEnd);
+                slots.putInt(slot + S_AUTHOR_LENGTH, data.getInt(base + S_AUTHOR_LENGTH));
+                targetHeapEnd += author.length;
+                slots.position(slot + SLOT_SIZE);
+                for (byte[] value : new byte[][] {title, author}) {
+                    if (heap.remaining() < value.length) {
+                        heapPosition += drain(target, heap, heapPosition);
+                    }
+                    if (value.length > heap.capacity()) {
+                        heapPosition += writeAt(target, ByteBuffer.wrap(value), heapPosition);
+                    } else {
+                        heap.put(value);
+                    }
+                }
+            }
+            drain(target, slots, slotPosition);
+            drain(target, heap, heapPosition);
+            // Sizes the file (the rest reads as zeros), then makes it valid with the header.
+            target.write(ByteBuffer.allocate(1), heapBase + newHeap - 1);
+            target.force(true);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(H_MAGIC, MAGIC);
+            header.putInt(H_VERSION, VERSION);
+            header.putInt(H_SLOT_CAPACITY, (int) newSlots);
+            header.putInt(H_SLOT_COUNT, size);
+            header.putInt(H_HEAP_CAPACITY, (int) newHeap);
+            header.putInt(H_HEAP_END, targetHeapEnd);
+            writeAt(target, header, 0);
+            target.force(true);
+        }
+        install();
+        dataChannel.close();
+        try {
+            map();
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        load();
+    }
+
+    /**
+     * Writes what was put into the buffer at the given file position and empties the buffer.
+     * @return The number of bytes written.
+     */
+    private static int drain(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int written = writeAt(channel, buffer, position);
+        buffer.clear();
+        return written;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer at the given file position.
+     * @return The number of bytes written.
+     */
+    private static int writeAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + length - buffer.remaining());
+        }
+        return length;
+    }
+
+    /**
+     * @param offsetField Position of a string's offset field, followed by its length field.
+     * @return The string's bytes, empty for null.
+     */
+    private byte[] stringBytes(int offsetField) {
+        byte[] bytes = new byte[Math.max(0, data.getInt(offsetField + 4))];
+        data.position(heapStart + data.getInt(offsetField));
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Copies the complete image in FILE.tmp over the data file through its channel, forces it
+     * and deletes the image.
+     */
+    private void install() throws IOException {
+        try (FileChannel source = FileChannel.open(tempFile, StandardOpenOption.READ)) {
+            long length = source.size();
+            long copied = 0;
+            while (copied < length) {
+                copied += dataChannel.transferFrom(source, copied, length - copied);
+            }
+            dataChannel.force(true);
+        }
+        Files.delete(tempFile);
+    }
+
+    /**
+     * Deals with a FILE.tmp left by a crash during {@link #grow}: an image whose header was
+     * written is complete and may have been partly copied already, so the copy is done again; an
+     * image without its header was never copied and is deleted.
+     */
+    private void recoverGrow() throws IOException {
+        if (!Files.exists(tempFile)) {
+            return;
+        }
+        boolean complete;
+        try (FileChannel image = FileChannel.open(tempFile, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            while (header.hasRemaining() && image.read(header, header.position()) > 0) {
+                // Read the magic and version.
+            }
+            complete = !header.hasRemaining() && header.getLong(H_MAGIC) == MAGIC
+                    && header.getInt(H_VERSION) == VERSION;
+        }
+        if (!complete) {
+            Files.delete(tempFile);
+            return;
+        }
+        System.out.println("Finishing an interrupted rewrite of " + file + ".");
+        dataChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            install();
+        } finally {
+            dataChannel.close();
+        }
+    }
+
+    /**
+     * The embedded file belongs to one process, so it keeps no versions; conditional writes
+     * compare values instead.
+     */
+    @Override
+    public long lastVersion() {
+        return 0;
+    }
+
+    /**
+     * Writes everything to the file, empties the log and releases the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (!failed) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not checkpoint " + file + "; the log will be replayed on the next start.");
+            e.printStackTrace();
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // Released when the channel closes anyway.
+        }
+        closeQuietly(wal);
+        closeQuietly(dataChannel);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing useful to do while closing.
+            }
+        }
+    }
+
+    /**
+     * An open-addressing hash table from book id to slot number, stored off-heap in a direct
+     * buffer so it neither adds to the Java heap nor is scanned by the garbage collector.
+     * Each entry is 8 bytes: the id and the slot number plus one (0 marks an empty entry).
+     * Deletion shifts following entries back instead of leaving tombstones.
+     */
+    private static final class IdIndex {
+        private ByteBuffer table = ByteBuffer.allocateDirect(8 * 2048);
+        private int mask = 2047;
+        private int shift = 32 - 11;
+        private int count;
+
+        void clear() {
+            for (int i = 0; i <= mask; i++) {
+                table.putInt(i * 8 + 4, 0);
+            }
+            count = 0;
+        }
+
+        private int home(int id) {
+            // Fibonacci hashing: the high bits of the product are well mixed even for sequential ids.
+            return (id * 0x9E3779B9) >>> shift;
+        }
+
+        /**
+         * @return The slot of the id, or -1 if it is not in the table.
+         */
+        int get(int id) {
+            for (int i = home(id); ; i = (i + 1) & mask) {
+                int value = table.getInt(i * 8 + 4);
+                if (value == 0) {
+                    return -1;
+                }
+                if (table.getInt(i * 8) == id) {
+                    return value - 1;
+                }
+            }
+        }
+
+        void put(int id, int slot) {
+            if ((count + 1) * 2 > mask + 1) {
+                resize((mask + 1) * 2);
+            }
+            for (int i = home(id); ; i = (i + 1) & mask) {
+                int value = table.getInt(i * 8 + 4);
+                if (value == 0 || table.getInt(i * 8) == id) {
+                    if (value == 0) {
+                        count++;
+                    }
+                    table.putInt(i * 8, id);
+                    table.putInt(i * 8 + 4, slot + 1);
+                    return;
+                }
+            }
+        }
+
+        void remove(int id) {
+            int i = home(id);
+            while (true) {
+                int value = table.getInt(i * 8 + 4);
+                if (value == 0) {
+                    return;
+                }
+                if (table.getInt(i * 8) == id) {
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+            count--;
+            // Move back any later entry of the same run that would become unreachable.
+            int gap = i;
+            for (int j = (gap + 1) & mask; table.getInt(j * 8 + 4) != 0; j = (j + 1) & mask) {
+                int h = home(table.getInt(j * 8));
+                boolean between = gap <= j ? (gap < h && h <= j) : (gap < h || h <= j);
+                if (!between) {
+                    table.putInt(gap * 8, table.getInt(j * 8));
+                    table.putInt(gap * 8 + 4, table.getInt(j * 8 + 4));
+                    gap = j;
+                }
+            }
+            table.putInt(gap * 8 + 4, 0);
+        }
+
+        private void resize(int capacity) {
+            ByteBuffer old = table;
+            int oldCapacity = mask + 1;
+            table = ByteBuffer.allocateDirect(8 * capacity);
+            mask = capacity - 1;
+            shift = Integer.numberOfLeadingZeros(capacity) + 1;
+            count = 0;
+            for (int i = 0; i < oldCapacity; i++) {
+                int value = old.getInt(i * 8 + 4);
+                if (value != 0) {
+                    put(old.getInt(i * 8), value - 1);
+                }
+            }
+        }
+    }
+}
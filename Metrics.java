@@ -0,0 +1,97 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The registry of all {@link OperationMetrics} in the process.
+ *
+ * Every operation is registered as the JMX MBean "ebookstore:type=Operation,name=NAME", so
+ * latencies and counters can be watched with jconsole or any JMX client. Names are grouped by
+ * prefix: "db." for statement executions, "db.*.fetch" for reading their result sets,
+ * "pool.acquire" for waiting on a pooled connection, "console." and "http." for whole operations.
+ * A reporter thread can also print a summary line of everything that ran.
+ */
+public final class Metrics {
+
+    private static final Map<String, OperationMetrics> operations = new ConcurrentSkipListMap<>();
+    private static ScheduledExecutorService reporter;
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the metrics of an operation, creating and registering them on first use.
+     * Call once and keep the result; the lookup itself is not meant for the hot path.
+     */
+    public static OperationMetrics operation(String name) {
+        OperationMetrics metrics = operations.get(name);
+        if (metrics != null) {
+            return metrics;
+        }
+        synchronized (operations) {
+            metrics = operations.get(name);
+            if (metrics == null) {
+                metrics = new OperationMetrics(name);
+                register(metrics);
+                operations.put(name, metrics);
+            }
+            return metrics;
+        }
+    }
+
+    private static void register(OperationMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(metrics, new ObjectName("ebookstore:type=Operation,name=" + metrics.getName()));
+        } catch (JMException e) {
+            // Metrics are still recorded and reported; they are only missing from JMX.
+            System.out.println("Could not register JMX metrics for " + metrics.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns one line with the summary of every operation that ran at least once.
+     */
+    public static String summary() {
+        StringBuilder line = new StringBuilder("Metrics:");
+        for (OperationMetrics metrics : operations.values()) {
+            if (metrics.getCount() > 0) {
+                line.append(line.length() > "Metrics:".length() ? " | " : " ").append(metrics.summary());
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Prints {@link #summary()} every intervalSeconds on a background thread.
+     * @param intervalSeconds The interval; 0 or less disables the reporter.
+     */
+    public static synchronized void startReporter(int intervalSeconds) {
+        if (intervalSeconds <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println(summary()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    static String formatMicros(double micros) {
+        if (micros >= 1_000_000) {
+            return String.format("%.2fs", micros / 1_000_000);
+        }
+        if (micros >= 1000) {
+            return String.format("%.1fms", micros / 1000);
+        }
+        return String.format("%.0fus", micros);
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, row count and error count of one operation, such as a statement or a menu action.
+ *
+ * Instances are created once through {@link Metrics#operation(String)} and kept in fields, so
+ * recording is allocation-free:
+ * <pre>
+ * long start = System.nanoTime();
+ * ... run the operation ...
+ * METRICS.record(System.nanoTime() - start, rows);
+ * </pre>
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records one successful call.
+     * @param nanos How long the call took.
+     * @param rowCount Rows read or written by the call.
+     */
+    public void record(long nanos, long rowCount) {
+        latency.record(nanos);
+        rows.addAndGet(rowCount);
+    }
+
+    /**
+     * Records one failed call.
+     * @param nanos How long the call took before failing.
+     */
+    public void error(long nanos) {
+        latency.record(nanos);
+        errors.incrementAndGet();
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public long getRows() {
+        return rows.get();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latency.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return latency.getPercentile(0.50) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return latency.getPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return latency.getPercentile(0.999) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return latency.getMax() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        rows.set(0);
+        errors.set(0);
+    }
+
+    /**
+     * A one-line summary, e.g. "db.page n=120 p50=210us p99=1.4ms p999=3.1ms rows=2520 errors=0".
+     */
+    public String summary() {
+        return name + " n=" + getCount()
+                + " p50=" + Metrics.formatMicros(getP50Micros())
+                + " p99=" + Metrics.formatMicros(getP99Micros())
+                + " p999=" + Metrics.formatMicros(getP999Micros())
+                + " rows=" + getRows() + " errors=" + getErrors();
+    }
+}
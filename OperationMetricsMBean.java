@@ -0,0 +1,27 @@
+/**
+ * The JMX view of one instrumented operation (see {@link OperationMetrics}).
+ * Latencies are in microseconds.
+ */
+public interface OperationMetricsMBean {
+
+    long getCount();
+
+    long getErrors();
+
+    long getRows();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+
+    /**
+     * Clears the latency histogram and the counters.
+     */
+    void reset();
+}
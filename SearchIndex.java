@@ -0,0 +1,456 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An in-memory inverted index over book titles and authors.
+ *
+ * Titles and authors are normalized the same way as the SQL searches (lowercase, apostrophes
+ * and commas removed) and split into words. Each word maps to a sorted array of book ids
+ * (its postings). A query matches a book when every query word is a prefix of some word in
+ * the title (or author), so "lord ring" finds "The Lord of the Rings". Only the postings of
+ * the most selective query word are read, merged in id order from where the page starts; the
+ * remaining words are checked against the words of each candidate, split once when the book
+ * was indexed. A search stops once its page is full, so its cost follows the page size rather
+ * than the number of matches.
+ *
+ * The index is built once at startup and kept current through {@link CatalogListener}.
+ */
+public class SearchIndex implements CatalogListener {
+
+    // Books read per page while building.
+    private static final int BUILD_CHUNK = 1000;
+
+    /**
+     * An indexed book with the words of its title and author, sorted and distinct.
+     */
+    private static final class Indexed {
+        final Book book;
+        final String[] titleWords;
+        final String[] authorWords;
+
+        Indexed(Book book, String[] titleWords, String[] authorWords) {
+            this.book = book;
+            this.titleWords = titleWords;
+            this.authorWords = authorWords;
+        }
+    }
+
+    private final Map<Integer, Indexed> books = new HashMap<>();
+    private final TreeMap<String, IntList> titleWords = new TreeMap<>();
+    private final TreeMap<String, IntList> authorWords = new TreeMap<>();
+
+    /**
+     * Creates the index if enabled with -Debookstore.searchIndex=true, or returns null otherwise.
+     */
+    public static SearchIndex fromSystemProperties() {
+        return Boolean.getBoolean("ebookstore.searchIndex") ? new SearchIndex() : null;
+    }
+
+    /**
+     * Normalizes text the same way as the title search in SQL:
+     * LOWER(REPLACE(REPLACE(title, '''', ''), ',', '')).
+     * @param text The text to normalize, may be null.
+     * @return The normalized text, never null.
+     */
+    public static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.toLowerCase().replace("'", "").replace(",", "");
+    }
+
+    /**
+     * Splits text into normalized, distinct words, in sorted order.
+     */
+    static String[] words(String text) {
+        String normalized = normalize(text).trim();
+        if (normalized.isEmpty()) {
+            return new String[0];
+        }
+        String[] words = normalized.split("\\s+");
+        Arrays.sort(words);
+        int distinct = 0;
+        for (int i = 0; i < words.length; i++) {
+            if (i == 0 || !words[i].equals(words[i - 1])) {
+                words[distinct++] = words[i];
+            }
+        }
+        return Arrays.copyOf(words, distinct);
+    }
+
+    /**
+     * Replaces the contents of the index with the given books.
+     * Postings are appended unsorted and sorted once at the end, which is much cheaper than
+     * inserting every id in place.
+     * @param catalog Every book in the catalog.
+     */
+    public synchronized void build(Iterable<Book> catalog) {
+        books.clear();
+        Map<String, IntList> titles = new HashMap<>();
+        Map<String, IntList> authors = new HashMap<>();
+        for (Book book : catalog) {
+            Indexed entry = new Indexed(book, words(book.getTitle()), words(book.getAuthor()));
+            books.put(book.getId(), entry);
+            for (String word : entry.titleWords) {
+                titles.computeIfAbsent(word, w -> new IntList()).add(book.getId());
+            }
+            for (String word : entry.authorWords) {
+                authors.computeIfAbsent(word, w -> new IntList()).add(book.getId());
+            }
+        }
+        fill(titleWords, titles);
+        fill(authorWords, authors);
+    }
+
+    private static void fill(TreeMap<String, IntList> index, Map<String, IntList> lists) {
+        index.clear();
+        for (Map.Entry<String, IntList> entry : lists.entrySet()) {
+            IntList ids = entry.getValue();
+            ids.sort();
+            index.put(entry.getKey(), ids);
+        }
+    }
+
+    /**
+     * Builds the index from one pass over the catalog, read in keyset pages.
+     * @param repository Where the catalog is stored.
+     * @throws SQLException If the catalog cannot be read.
+     */
+    public void build(BookRepository repository) throws SQLException {
+        build(readCatalog(repository));
+    }
+
+    /**
+     * Reads the whole catalog in keyset pages of BUILD_CHUNK books.
+     * @param repository Where the catalog is stored.
+     * @return Every book, in id order.
+     * @throws SQLException If the catalog cannot be read.
+     */
+    static List<Book> readCatalog(BookRepository repository) throws SQLException {
+        List<Book> catalog = new ArrayList<>();
+        int fromId = Integer.MIN_VALUE;
+        while (true) {
+            List<Book> chunk = repository.page(fromId, BUILD_CHUNK);
+            catalog.addAll(chunk);
+            if (chunk.size() < BUILD_CHUNK || chunk.get(chunk.size() - 1).getId() == Integer.MAX_VALUE) {
+                break;
+            }
+            fromId = chunk.get(chunk.size() - 1).getId() + 1;
+        }
+        return catalog;
+    }
+
+    public synchronized int size() {
+        return books.size();
+    }
+
+    @Override
+    public synchronized void bookSaved(Book book) {
+        removeBook(book.getId());
+        Indexed entry = new Indexed(book, words(book.getTitle()), words(book.getAuthor()));
+        books.put(book.getId(), entry);
+        for (String word : entry.titleWords) {
+            titleWords.computeIfAbsent(word, w -> new IntList()).insert(book.getId());
+        }
+        for (String word : entry.authorWords) {
+            authorWords.computeIfAbsent(word, w -> new IntList()).insert(book.getId());
+        }
+    }
+
+    @Override
+    public synchronized void bookDeleted(int id) {
+        removeBook(id);
+    }
+
+    @Override
+    public synchronized void quantityChanged(int id, int qty) {
+        // No indexed words change; only the stored book shown in results does.
+        Indexed entry = books.get(id);
+        if (entry != null) {
+            books.put(id, new Indexed(entry.book.withQty(qty), entry.titleWords, entry.authorWords));
+        }
+    }
+
+    private void removeBook(int id) {
+        Indexed old = books.remove(id);
+        if (old == null) {
+            return;
+        }
+        for (String word : old.titleWords) {
+            removeId(titleWords, word, id);
+        }
+        for (String word : old.authorWords) {
+            removeId(authorWords, word, id);
+        }
+    }
+
+    private static void removeId(TreeMap<String, IntList> index, String word, int id) {
+        IntList ids = index.get(word);
+        if (ids != null && ids.delete(id) && ids.size() == 0) {
+            index.remove(word);
+        }
+    }
+
+    /**
+     * Tells whether a query has any words to look up. A query without words matches every book,
+     * which the index leaves to the database's keyset pages.
+     */
+    public static boolean hasWords(String query) {
+        return words(query).length > 0;
+    }
+
+    /**
+     * Finds one page of the books whose title contains every word of the query as a word prefix.
+     * @param query  The title search text.
+     * @param fromId The lowest id to return (keyset paging, like {@link BookRepository#searchTitle}).
+     * @param limit  The number of books to return, at most.
+     * @return Matching books in id order, or null if the query has no words (match everything).
+     */
+    public synchronized List<Book> searchTitle(String query, int fromId, int limit) {
+        return search(titleWords, query, true, fromId, limit, null);
+    }
+
+    /**
+     * Finds one page of the books whose author contains every word of the query as a word prefix.
+     * @param query  The author search text.
+     * @param fromId The lowest id to return.
+     * @param limit  The number of books to return, at most.
+     * @return Matching books in id order, or null if the query has no words (match everything).
+     */
+    public synchronized List<Book> searchAuthor(String query, int fromId, int limit) {
+        return search(authorWords, query, false, fromId, limit, null);
+    }
+
+    /**
+     * Counts the books whose title matches the query, without keeping them.
+     * @return The number of matches; every book if the query has no words.
+     */
+    public synchronized int countTitle(String query) {
+        return count(titleWords, query, true);
+    }
+
+    /**
+     * Counts the books whose author matches the query, without keeping them.
+     * @return The number of matches; every book if the query has no words.
+     */
+    public synchronized int countAuthor(String query) {
+        return count(authorWords, query, false);
+    }
+
+    private int count(TreeMap<String, IntList> index, String query, boolean title) {
+        int[] count = new int[1];
+        List<Book> all = search(index, query, title, Integer.MIN_VALUE, Integer.MAX_VALUE, count);
+        return all == null ? books.size() : count[0];
+    }
+
+    /**
+     * @param count If not null, matches are only counted into count[0] and not returned.
+     */
+    private List<Book> search(TreeMap<String, IntList> index, String query, boolean title,
+                              int fromId, int limit, int[] count) {
+        String[] terms = words(query);
+        if (terms.length == 0) {
+            return null;
+        }
+        // Pick the most selective term: the one whose matching postings are shortest.
+        int best = -1;
+        long bestSize = Long.MAX_VALUE;
+        for (int i = 0; i < terms.length; i++) {
+            long size = 0;
+            for (IntList ids : prefixRange(index, terms[i]).values()) {
+                size += ids.size();
+            }
+            if (size == 0) {
+                return Collections.emptyList();
+            }
+            if (size < bestSize) {
+                bestSize = size;
+                best = i;
+            }
+        }
+
+        List<Book> result = new ArrayList<>();
+        int found = 0;
+        Union candidates = new Union(prefixRange(index, terms[best]).values(), fromId);
+        while (found < limit && candidates.hasNext()) {
+            Indexed entry = books.get(candidates.next());
+            String[] bookWords = title ? entry.titleWords : entry.authorWords;
+            boolean matches = true;
+            for (int i = 0; i < terms.length && matches; i++) {
+                matches = i == best || hasPrefix(bookWords, terms[i]);
+            }
+            if (matches) {
+                found++;
+                if (count == null) {
+                    result.add(entry.book);
+                }
+            }
+        }
+        if (count != null) {
+            count[0] = found;
+        }
+        return result;
+    }
+
+    private static SortedMap<String, IntList> prefixRange(TreeMap<String, IntList> index, String prefix) {
+        return index.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    /**
+     * Walks the union of sorted postings in id order, each id once, starting at a given id. The
+     * lists are merged through a heap of their next ids, so reading the first page of a word with
+     * thousands of prefix matches neither copies nor sorts their postings.
+     */
+    private static final class Union {
+        private final IntList[] lists;
+        private final int[] positions;
+        private final PriorityQueue<Integer> next;
+
+        Union(Collection<IntList> postings, int fromId) {
+            lists = postings.toArray(new IntList[0]);
+            positions = new int[lists.length];
+            next = new PriorityQueue<>(Math.max(1, lists.length),
+                    (a, b) -> Integer.compare(lists[a].get(positions[a]), lists[b].get(positions[b])));
+            for (int i = 0; i < lists.length; i++) {
+                positions[i] = lists[i].lowerBound(fromId);
+                if (positions[i] < lists[i].size()) {
+                    next.add(i);
+                }
+            }
+        }
+
+        boolean hasNext() {
+            return !next.isEmpty();
+        }
+
+        int next() {
+            int id = current(next.peek());
+            // The same id may head several lists (a title with "lord" and "lords").
+            while (!next.isEmpty() && current(next.peek()) == id) {
+                int list = next.poll();
+                if (++positions[list] < lists[list].size()) {
+                    next.add(list);
+                }
+            }
+            return id;
+        }
+
+        private int current(int list) {
+            return lists[list].get(positions[list]);
+        }
+    }
+
+    /**
+     * Returns true if one of the sorted words starts with the prefix.
+     */
+    private static boolean hasPrefix(String[] sortedWords, String prefix) {
+        int pos = Arrays.binarySearch(sortedWords, prefix);
+        if (pos >= 0) {
+            return true;
+        }
+        pos = -pos - 1;
+        return pos < sortedWords.length && sortedWords[pos].startsWith(prefix);
+    }
+
+    /**
+     * A growable list of ints, used while building postings and as the postings themselves.
+     * As postings the values are kept sorted: {@link #insert(int)} appends in amortised constant
+     * time when the id is above the last one, as it is for new books, and only moves values when
+     * an id lands in the middle.
+     */
+    static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int removeLast() {
+            return values[--size];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        /**
+         * Sorts the values and drops the spare capacity, once a list built by {@link #add(int)}
+         * becomes postings.
+         */
+        void sort() {
+            values = Arrays.copyOf(values, Math.max(1, size));
+            Arrays.sort(values, 0, size);
+        }
+
+        /**
+         * @return The position of the first sorted value greater than or equal to the value.
+         */
+        int lowerBound(int value) {
+            int pos = Arrays.binarySearch(values, 0, size, value);
+            return pos >= 0 ? pos : -pos - 1;
+        }
+
+        /**
+         * Returns true if the sorted values contain the value.
+         */
+        boolean contains(int value) {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+
+        /**
+         * Adds a value to the sorted values, unless it is already there.
+         */
+        void insert(int value) {
+            if (size == 0 || value > values[size - 1]) {
+                add(value);
+                return;
+            }
+            int pos = Arrays.binarySearch(values, 0, size, value);
+            if (pos >= 0) {
+                return;
+            }
+            pos = -pos - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+            values[pos] = value;
+            size++;
+        }
+
+        /**
+         * Removes a value from the sorted values.
+         * @return True if the value was there.
+         */
+        boolean delete(int value) {
+            int pos = Arrays.binarySearch(values, 0, size, value);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+            size--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies sales and restocks as relative stock changes, without a database round trip per sale.
+ *
+ * Each book that is sold or restocked gets an in-memory entry holding its available quantity
+ * and the change not yet written to the database. {@link #adjust(int, int)} updates both with a
+ * compare-and-set loop, so concurrent sales of the same title never lose an update, never take a
+ * lock and can never take the quantity below zero. A background flusher periodically merges the
+ * pending changes into one {@link BookRepository#addToQty(List, List)} call (one batch of
+ * "UPDATE books SET qty = qty + ?" statements in a single transaction with JDBC);
+ * {@link #close()} runs a final flush so accepted sales are durable on shutdown.
+ *
+ * Absolute quantity changes made elsewhere (updating a book, importing) reach the ledger as
+ * {@link CatalogListener} events and are combined with the changes still pending and those
+ * being flushed. A change the database refuses, because the book was deleted or its stock was
+ * lowered elsewhere below what was sold here, is dropped and reported once, and the available
+ * quantity is taken again from the row.
+ */
+public class StockLedger implements CatalogListener, AutoCloseable {
+
+    /** Returned by {@link #adjust(int, int)} when no book has the id. */
+    public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+    /** Returned by {@link #adjust(int, int)} when the sale would take the quantity below zero. */
+    public static final int INSUFFICIENT_STOCK = -1;
+
+    /**
+     * The stock of one book: the quantity available to sell, and the part of it not yet flushed.
+     * Both live in one AtomicLong (available in the high half, pending in the low half), so a
+     * sale and a reload from the database always see and change them together.
+     */
+    private static final class Entry {
+        final AtomicLong state;
+        // The change taken by the flush in progress, not yet committed; guarded by the ledger.
+        int inflight;
+        // Version token of the last flush of this book until a row holding it (or a later write)
+        // is seen, 0 after that. Guarded by the ledger.
+        long awaited;
+
+        Entry(int qty) {
+            state = new AtomicLong(state(qty, 0));
+        }
+    }
+
+    private static long state(int available, int pending) {
+        return ((long) available << 32) | (pending & 0xFFFFFFFFL);
+    }
+
+    private static int available(long state) {
+        return (int) (state >> 32);
+    }
+
+    private static int pending(long state) {
+        return (int) state;
+    }
+
+    // Units sold here but refused by the database, recorded as rows.
+    private static final OperationMetrics OVERSOLD = Metrics.operation("stock.oversold");
+
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private final BookCache cache;
+    private final List<CatalogListener> listeners;
+    private final ScheduledExecutorService flusher;
+
+    // Used for loading quantities and flushing, guarded by this. Not closed by the ledger.
+    private final BookRepository repository;
+    // Set by close(); from then on sales are refused and flushing is done. Read without the lock.
+    private volatile boolean closed = false;
+
+    /**
+     * @param cache           Optional catalog cache used to load quantities without a query, may be null.
+     * @param listeners       In-memory catalog views to tell about new quantities.
+     * @param flushIntervalMs How often pending changes are written to the database.
+     * @param repository      Storage the ledger reads and flushes through. It is used from the
+     *                        flusher thread, so with JDBC it needs a connection of its own.
+     */
+    public StockLedger(BookCache cache, List<CatalogListener> listeners, long flushIntervalMs,
+                       BookRepository repository) {
+        this.cache = cache;
+        this.listeners = listeners;
+        this.repository = repository;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stock-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a ledger that flushes every -Debookstore.stock.flushIntervalMs milliseconds (default 200).
+     */
+    public static StockLedger fromSystemProperties(BookCache cache, List<CatalogListener> listeners,
+                                                   BookRepository repository) {
+        return new StockLedger(cache, listeners, Long.getLong("ebookstore.stock.flushIntervalMs", 200L), repository);
+    }
+
+    /**
+     * Sells (negative delta) or restocks (positive delta) a book.
+     * @param id    The book id.
+     * @param delta The change in quantity.
+     * @return The new available quantity, {@link #INSUFFICIENT_STOCK} if there is not enough
+     *         stock for the sale, or {@link #NOT_FOUND} if no book has the id.
+     * @throws SQLException If the ledger is closed, or the current quantity had to be loaded and
+     *                      the query failed.
+     */
+    public int adjust(int id, int delta) throws SQLException {
+        // A change accepted after the final flush would never be written.
+        checkOpen();
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            entry = load(id);
+            if (entry == null) {
+                return NOT_FOUND;
+            }
+        }
+        int next;
+        while (true) {
+            long state = entry.state.get();
+            int current = available(state);
+            long wanted = (long) current + delta;
+            if (wanted < 0) {
+                return INSUFFICIENT_STOCK;
+            }
+            next = (int) Math.min(wanted, Integer.MAX_VALUE);
+            if (entry.state.compareAndSet(state, state(next, pending(state) + next - current))) {
+                break;
+            }
+        }
+        if (entries.get(id) != entry) {
+            // The book was deleted meanwhile; no flush will see this entry again.
+            return NOT_FOUND;
+        }
+        notifyQuantity(id, entry);
+        return next;
+    }
+
+    /**
+     * Tells the other listeners the available quantity of a book. Concurrent sales of a title
+     * finish their compare-and-set in one order but could notify in another, leaving the views
+     * with an older quantity. So the quantity is read again under the entry's lock when telling
+     * them: whichever notification comes last carries the latest quantity.
+     */
+    private void notifyQuantity(int id, Entry entry) {
+        synchronized (entry) {
+            int qty = available(entry.state.get());
+            for (CatalogListener listener : listeners) {
+                if (listener != this) {
+                    listener.quantityChanged(id, qty);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the quantity the ledger believes is available, including unflushed changes,
+     * or null if the book has not been sold or restocked through the ledger.
+     */
+    public Integer available(int id) {
+        Entry entry = entries.get(id);
+        return entry == null ? null : available(entry.state.get());
+    }
+
+    private Entry load(int id) throws SQLException {
+        Book book = cache != null ? cache.get(id) : null;
+        if (book == null && (cache == null || !cache.isComplete())) {
+            synchronized (this) {
+                checkOpen();
+                book = repository.findById(id);
+            }
+        }
+        if (book == null) {
+            return null;
+        }
+        Entry loaded = new Entry(book.getQty());
+        Entry existing = entries.putIfAbsent(id, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLNonTransientConnectionException("Stock ledger is closed");
+        }
+    }
+
+    /**
+     * Writes all pending changes to the database as one batch in one transaction.
+     * While the batch runs, its changes are in flight: no longer pending, but not yet in the
+     * rows either. If the batch fails, the changes are put back and retried by the next flush.
+     * Once the ledger is closed its final flush has run, so this does nothing.
+     * @return The number of books whose quantity was written.
+     * @throws SQLException If the batch could not be written.
+     */
+    public synchronized int flush() throws SQLException {
+        return closed ? 0 : write();
+    }
+
+    private int write() throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        List<Integer> deltas = new ArrayList<>();
+        List<Entry> flushing = new ArrayList<>();
+        for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            int delta = takePending(entry);
+            if (delta != 0) {
+                entry.inflight = delta;
+                ids.add(e.getKey());
+                deltas.add(delta);
+                flushing.add(entry);
+            }
+        }
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        int[] counts;
+        long version;
+        try {
+            counts = repository.addToQty(ids, deltas);
+            version = repository.lastVersion();
+        } catch (SQLException e) {
+            for (int i = 0; i < flushing.size(); i++) {
+                flushing.get(i).inflight = 0;
+                addPending(flushing.get(i), deltas.get(i));
+            }
+            throw e;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            Entry entry = flushing.get(i);
+            entry.inflight = 0;
+            if (counts[i] != 0) {
+                entry.awaited = version;
+            } else {
+                refused(ids.get(i), entry, deltas.get(i));
+            }
+        }
+        return ids.size();
+    }
+
+    /**
+     * Handles a change the database did not apply: the book was deleted, or its stock was lowered
+     * elsewhere so that the change would make it negative. Retrying would fail the same way on
+     * every flush, so the change is dropped and reported once, and the available quantity is
+     * taken again from the row, with the changes made since on top. If the row cannot be read,
+     * the change is kept for the next flush.
+     */
+    private void refused(int id, Entry entry, int delta) {
+        Book book;
+        try {
+            book = repository.findById(id);
+        } catch (SQLException e) {
+            addPending(entry, delta);
+            return;
+        }
+        if (book == null) {
+            System.out.println("Stock change of " + delta + " for book " + id
+                    + " was dropped: the book no longer exists.");
+            entries.remove(id, entry);
+            return;
+        }
+        System.out.println("Stock change of " + delta + " for book " + id + " was dropped: only "
+                + book.getQty() + " in stock in the database, where it was changed elsewhere.");
+        OVERSOLD.record(0, -delta);
+        reload(entry, book.getQty());
+        notifyQuantity(id, entry);
+    }
+
+    /**
+     * Takes qty as what the database holds and puts the changes in flight or pending on top,
+     * never going below zero.
+     */
+    private static void reload(Entry entry, int qty) {
+        while (true) {
+            long state = entry.state.get();
+            long available = (long) qty + entry.inflight + pending(state);
+            int next = (int) Math.max(0, Math.min(Integer.MAX_VALUE, available));
+            if (entry.state.compareAndSet(state, state(next, pending(state)))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the pending change of an entry out of it, leaving the available quantity as it is.
+     */
+    private static int takePending(Entry entry) {
+        while (true) {
+            long state = entry.state.get();
+            if (pending(state) == 0 || entry.state.compareAndSet(state, state(available(state), 0))) {
+                return pending(state);
+            }
+        }
+    }
+
+    /**
+     * Puts a change that was taken for flushing back into the pending change.
+     */
+    private static void addPending(Entry entry, int delta) {
+        while (true) {
+            long state = entry.state.get();
+            if (entry.state.compareAndSet(state, state(available(state), pending(state) + delta))) {
+                return;
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            System.out.println("Stock flush failed, retrying later: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Takes the quantity of a saved row as the one in the database. Synchronized with
+     * {@link #flush()}, so the in-flight change and the version of the last flush are settled.
+     *
+     * A row read before the last flush (by the change feed, say) would undo the flushed changes.
+     * Versions are random tokens that cannot be ordered, so until the row written by the flush
+     * comes back, a row with another version is checked against the database: if the database
+     * still holds the flush, the row is older and ignored, otherwise it was written after the
+     * flush and the current row is taken.
+     */
+    @Override
+    public synchronized void bookSaved(Book book) {
+        Entry entry = entries.get(book.getId());
+        if (entry == null) {
+            return;
+        }
+        if (entry.awaited != 0 && book.getVersion() != entry.awaited) {
+            Book current;
+            try {
+                current = repository.findById(book.getId());
+            } catch (SQLException e) {
+                // Keep the quantity as it is; the next row of this book is checked again.
+                return;
+            }
+            if (current == null || current.getVersion() == entry.awaited) {
+                return;
+            }
+            book = current;
+        }
+        entry.awaited = 0;
+        reload(entry, book.getQty());
+    }
+
+    @Override
+    public void bookDeleted(int id) {
+        entries.remove(id);
+    }
+
+    @Override
+    public void quantityChanged(int id, int qty) {
+        // Quantity changes are produced by the ledger itself.
+    }
+
+    /**
+     * Refuses further sales, stops the background flusher and writes everything still pending.
+     * Whoever sells through the ledger (the HTTP server, say) should be stopped first, so no sale
+     * is in progress during the final flush. The repository stays open; it belongs to whoever
+     * created the ledger.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flusher.shutdown();
+        try {
+            write();
+        } catch (SQLException e) {
+            System.out.println("Final stock flush failed; unsaved stock changes were lost.");
+            e.printStackTrace();
+        }
+    }
+}
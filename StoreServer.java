@@ -0,0 +1,585 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the bookstore operations as a small JSON API over the JDK's built-in HTTP server.
+ *
+ * <pre>
+ * GET    /books?after=ID&amp;limit=N          next page of books after ID (keyset pagination)
+ * GET    /books/ID                        one book
+ * GET    /books/search?title=T&amp;limit=N   title search (or author=A), continue with after=ID
+ * GET    /books/search?title=T&amp;fuzzy=true typo-tolerant search, best matches first
+ * POST   /books                           create, body {"id":..,"title":..,"author":..,"qty":..};
+ *                                         without "id" the next free id is assigned
+ * PUT    /books/ID                        replace title, author and qty; with If-Match: VERSION
+ *                                         (or "version" in the body) only if unchanged, else 409
+ * DELETE /books/ID                        delete; with If-Match: VERSION (or ?version=) only if
+ *                                         unchanged, else 409
+ * POST   /books/ID/stock                  sell or restock, body {"delta": -1}
+ * GET    /reports/summary                 number of books and authors, total stock
+ * GET    /reports/low-stock?threshold=N   books with less stock than N, lowest first
+ * GET    /reports/authors?after=A&amp;limit=N title count and stock per author, by name
+ * GET    /reports/top-authors?limit=N     authors with the most stock
+ * GET    /reports/top-titles?limit=N      books with the most stock
+ * </pre>
+ *
+ * Reports are answered from the in-memory {@link InventoryStats}, without a query. The server
+ * is up before the in-memory views are loaded: until then lookups and searches read the
+ * database, and reports and fuzzy searches are answered with 503.
+ *
+ * Requests run on virtual threads when the JVM supports them (Java 21+), otherwise on a
+ * bounded platform thread pool. Each request borrows a connection from a bounded pool;
+ * when the pool stays exhausted past the acquire timeout, or more than maxConcurrent
+ * requests are already in flight, the request is rejected with 503 instead of queueing.
+ */
+public class StoreServer {
+
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 1000;
+
+    // Whole-request latency per route; failures are answers with a 5xx status.
+    private static final OperationMetrics LIST_METRICS = Metrics.operation("http.list");
+    private static final OperationMetrics GET_METRICS = Metrics.operation("http.get");
+    private static final OperationMetrics SEARCH_METRICS = Metrics.operation("http.search");
+    private static final OperationMetrics CREATE_METRICS = Metrics.operation("http.create");
+    private static final OperationMetrics UPDATE_METRICS = Metrics.operation("http.update");
+    private static final OperationMetrics DELETE_METRICS = Metrics.operation("http.delete");
+    private static final OperationMetrics STOCK_METRICS = Metrics.operation("http.stock");
+    private static final OperationMetrics REPORT_METRICS = Metrics.operation("http.report");
+    private static final OperationMetrics OTHER_METRICS = Metrics.operation("http.other");
+    private static final OperationMetrics REJECTED_METRICS = Metrics.operation("http.rejected");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConnectionPool pool;
+    private final long acquireTimeoutMillis;
+    private final Semaphore inFlight;
+    private final CatalogViews views;
+    private final List<CatalogListener> listeners;
+    private final StockLedger stock;
+
+    /**
+     * @param port                 TCP port to listen on.
+     * @param pool                 Connection pool used by request handlers.
+     * @param acquireTimeoutMillis How long a request waits for a pooled connection.
+     * @param maxConcurrent        Maximum number of requests processed at once.
+     * @param views                Cache, search indexes, reports and taken ids; requests read the
+     *                             database while they are loading.
+     * @param listeners            In-memory catalog views to notify after writes.
+     * @param stock                Ledger that applies sales and restocks.
+     */
+    public StoreServer(int port, ConnectionPool pool, long acquireTimeoutMillis, int maxConcurrent,
+                       CatalogViews views, List<CatalogListener> listeners, StockLedger stock) throws IOException {
+        this.pool = pool;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.inFlight = new Semaphore(maxConcurrent);
+        this.views = views;
+        this.listeners = listeners;
+        this.stock = stock;
+        this.executor = newRequestExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.server.createContext("/books", this::handle);
+        this.server.createContext("/reports", this::handle);
+        this.server.setExecutor(executor);
+    }
+
+    /**
+     * Uses a virtual thread per request when available, so thousands of concurrent clients
+     * do not need thousands of platform threads. Looked up reflectively to keep Java 8 builds working.
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Integer.getInteger("ebookstore.server.threads", 200));
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, waits up to the given delay for running ones, and releases resources.
+     * The handlers are waited for before the stock ledger is closed, so a sale in progress is
+     * either part of its final flush or refused.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stock.close();
+        pool.close();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Thrown by handlers to answer with a specific status code and error message.
+     */
+    private static final class HttpError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            long start = System.nanoTime();
+            if (!inFlight.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, 503, Json.error("Server busy"));
+                REJECTED_METRICS.error(System.nanoTime() - start);
+                return;
+            }
+            OperationMetrics metrics = metricsFor(exchange.getRequestMethod(), exchange.getRequestURI().getPath());
+            boolean failed = false;
+            try {
+                route(exchange);
+            } catch (HttpError e) {
+                failed = e.status >= 500;
+                send(exchange, e.status, Json.error(e.getMessage()));
+            } catch (SQLTransientConnectionException e) {
+                failed = true;
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, 503, Json.error("No database connection available"));
+            } catch (SQLTimeoutException e) {
+                failed = true;
+                send(exchange, 504, Json.error("Database timeout"));
+            } catch (SQLException e) {
+                failed = true;
+                e.printStackTrace();
+                send(exchange, 500, Json.error("Database error"));
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, Json.error(e.getMessage()));
+            } finally {
+                inFlight.release();
+                if (failed) {
+                    metrics.error(System.nanoTime() - start);
+                } else {
+                    metrics.record(System.nanoTime() - start, 0);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static OperationMetrics metricsFor(String method, String path) {
+        if (path.startsWith("/reports")) {
+            return REPORT_METRICS;
+        }
+        if (path.endsWith("/stock")) {
+            return STOCK_METRICS;
+        }
+        if (path.endsWith("/search")) {
+            return SEARCH_METRICS;
+        }
+        boolean collection = path.length() <= "/books/".length();
+        switch (method) {
+            case "GET":
+                return collection ? LIST_METRICS : GET_METRICS;
+            case "POST":
+                return CREATE_METRICS;
+            case "PUT":
+                return UPDATE_METRICS;
+            case "DELETE":
+                return DELETE_METRICS;
+            default:
+                return OTHER_METRICS;
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException, SQLException, HttpError {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> params = queryParams(exchange.getRequestURI().getRawQuery());
+        if (path.startsWith("/reports")) {
+            if (!"GET".equals(method)) {
+                throw new HttpError(405, "Method not allowed");
+            }
+            send(exchange, 200, report(path.substring("/reports".length()), params));
+            return;
+        }
+        String rest = path.length() > "/books".length() ? path.substring("/books".length() + 1) : "";
+
+        if (rest.isEmpty()) {
+            if ("GET".equals(method)) {
+                send(exchange, 200, Json.books(page(params)));
+            } else if ("POST".equals(method)) {
+                Map<String, Object> body = Json.parseObject(readBody(exchange.getRequestBody()));
+                boolean assigned = !body.containsKey("id");
+                Book book = toBook(body, assigned ? Integer.valueOf(views.nextId()) : null);
+                // A taken id is usually known without a query; the INSERT catches the rest.
+                Book saved;
+                while (views.isTaken(book.getId()) || (saved = insert(book)) == null) {
+                    if (!assigned) {
+                        throw new HttpError(409, "A book with id " + book.getId() + " already exists");
+                    }
+                    // Taken by another instance: move on to the next assigned id.
+                    book = book.withId(views.nextId());
+                }
+                notifySaved(saved);
+                send(exchange, 201, Json.book(saved));
+            } else {
+                throw new HttpError(405, "Method not allowed");
+            }
+        } else if ("search".equals(rest)) {
+            if (!"GET".equals(method)) {
+                throw new HttpError(405, "Method not allowed");
+            }
+            send(exchange, 200, Json.books(search(params)));
+        } else if (rest.endsWith("/stock")) {
+            if (!"POST".equals(method)) {
+                throw new HttpError(405, "Method not allowed");
+            }
+            adjustStock(exchange, pathId(rest.substring(0, rest.length() - "/stock".length())));
+        } else {
+            int id = pathId(rest);
+            if ("GET".equals(method)) {
+                BookCache cache = views.cache();
+                Book book = cache != null ? cache.get(id) : null;
+                if (book == null && (cache == null || !cache.isComplete())) {
+                    book = withConnection(s -> s.findById(id));
+                }
+                if (book == null) {
+                    throw new HttpError(404, "Book not found");
+                }
+                // The database may not have caught up with the latest sales yet.
+                Integer available = stock.available(id);
+                if (available != null) {
+                    book = book.withQty(available);
+                }
+                send(exchange, 200, Json.book(book));
+            } else if ("PUT".equals(method)) {
+                Map<String, Object> body = Json.parseObject(readBody(exchange.getRequestBody()));
+                Book book = toBook(body, id);
+                Long expected = expectedVersion(exchange, body.get("version"));
+                Book saved = withConnection(s -> {
+                    boolean updated = expected != null
+                            ? s.updateIfUnchanged(book.withVersion(expected), book)
+                            : s.update(book);
+                    return updated ? book.withVersion(s.lastVersion()) : null;
+                });
+                if (saved == null) {
+                    throw notUpdated(id, expected);
+                }
+                notifySaved(saved);
+                send(exchange, 200, Json.book(saved));
+            } else if ("DELETE".equals(method)) {
+                String param = params.get("version");
+                Long expected = expectedVersion(exchange, param == null ? null : parseVersion(param));
+                boolean deleted = withConnection(s -> expected != null
+                        ? s.deleteIfUnchanged(new Book(id, null, null, 0, expected))
+                        : s.delete(id));
+                if (!deleted) {
+                    throw notUpdated(id, expected);
+                }
+                for (CatalogListener listener : listeners) {
+                    listener.bookDeleted(id);
+                }
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                throw new HttpError(405, "Method not allowed");
+            }
+        }
+    }
+
+    /**
+     * Returns the version the client last read, from an If-Match header or else from the
+     * request, or null when the client did not send one and the write is unconditional.
+     */
+    private static Long expectedVersion(HttpExchange exchange, Object fromRequest) throws HttpError {
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null) {
+            String tag = ifMatch.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            return parseVersion(tag.replace("\"", ""));
+        }
+        if (fromRequest == null) {
+            return null;
+        }
+        if (!(fromRequest instanceof Long) || (Long) fromRequest < 0) {
+            throw new HttpError(400, "Expected version (whole number)");
+        }
+        return (Long) fromRequest;
+    }
+
+    private static Long parseVersion(String text) throws HttpError {
+        try {
+            long version = Long.parseLong(text.trim());
+            if (version >= 0) {
+                return version;
+            }
+        } catch (NumberFormatException e) {
+            // Answered below.
+        }
+        throw new HttpError(400, "Expected version (whole number)");
+    }
+
+    /**
+     * Tells a conditional write that lost to a concurrent change (409) from one whose book is gone (404).
+     */
+    private HttpError notUpdated(int id, Long expected) throws SQLException {
+        if (expected != null) {
+            Book current = withConnection(s -> s.findById(id));
+            if (current != null) {
+                return new HttpError(409, "Book was changed since version " + expected
+                        + "; it is now at version " + current.getVersion());
+            }
+        }
+        return new HttpError(404, "Book not found");
+    }
+
+    private static int pathId(String segment) throws HttpError {
+        try {
+            return Integer.parseInt(segment);
+        } catch (NumberFormatException e) {
+            throw new HttpError(404, "Not found");
+        }
+    }
+
+    /**
+     * Applies the delta from the request body through the stock ledger. The response is sent as
+     * soon as the in-memory quantity changed; the database is updated by the ledger's next flush.
+     */
+    private void adjustStock(HttpExchange exchange, int id) throws IOException, SQLException, HttpError {
+        Integer delta = toInt(Json.parseObject(readBody(exchange.getRequestBody())).get("delta"));
+        if (delta == null) {
+            throw new HttpError(400, "Expected delta (integer)");
+        }
+        int qty = stock.adjust(id, delta);
+        if (qty == StockLedger.NOT_FOUND) {
+            throw new HttpError(404, "Book not found");
+        }
+        if (qty == StockLedger.INSUFFICIENT_STOCK) {
+            throw new HttpError(409, "Not enough stock");
+        }
+        send(exchange, 200, "{\"id\":" + id + ",\"qty\":" + qty + "}");
+    }
+
+    /**
+     * Returns the report at a path below /reports as JSON.
+     */
+    private String report(String path, Map<String, String> params) throws HttpError, SQLException {
+        InventoryStats stats = views.stats();
+        if (stats == null) {
+            if (views.hasStats()) {
+                throw new HttpError(503, "Inventory reports are still loading");
+            }
+            throw new HttpError(404, "Inventory reports are not enabled");
+        }
+        switch (path) {
+            case "/summary":
+                return "{\"books\":" + stats.size() + ",\"authors\":" + stats.authorCount()
+                        + ",\"stock\":" + stats.totalStock() + "}";
+            case "/low-stock":
+                int threshold = intParam(params, "threshold", stats.getLowStockThreshold());
+                int lowLimit = limit(params);
+                return Json.books(withConnection(s -> stats.lowStock(s, threshold, lowLimit)));
+            case "/authors":
+                return Json.authorTotals(stats.authors(params.get("after"), limit(params)));
+            case "/top-authors":
+                return Json.authorTotals(stats.topAuthors(limit(params)));
+            case "/top-titles":
+                int topLimit = limit(params);
+                return Json.books(withConnection(s -> stats.topTitles(s, topLimit)));
+            default:
+                throw new HttpError(404, "Not found");
+        }
+    }
+
+    /**
+     * @return The book as stored, or null if a book with the same id already exists.
+     */
+    private Book insert(Book book) throws SQLException {
+        return withConnection(s -> s.insert(book) ? book.withVersion(s.lastVersion()) : null);
+    }
+
+    /**
+     * Returns the page that starts right after the last id the client has seen (the after parameter).
+     */
+    private List<Book> page(Map<String, String> params) throws SQLException {
+        int limit = limit(params);
+        if (!params.containsKey("after")) {
+            return withConnection(s -> s.page(Integer.MIN_VALUE, limit));
+        }
+        int after = intParam(params, "after", Integer.MIN_VALUE);
+        if (after == Integer.MAX_VALUE) {
+            return Collections.emptyList();
+        }
+        return withConnection(s -> s.page(after + 1, limit));
+    }
+
+    private List<Book> search(Map<String, String> params) throws SQLException, HttpError {
+        int limit = limit(params);
+        String title = params.get("title");
+        String author = params.get("author");
+        if (title == null && author == null) {
+            throw new HttpError(400, "Give a title or author to search for");
+        }
+        if (Boolean.parseBoolean(params.get("fuzzy"))) {
+            FuzzyIndex fuzzyIndex = views.fuzzyIndex();
+            if (fuzzyIndex == null) {
+                if (views.hasFuzzyIndex()) {
+                    throw new HttpError(503, "Fuzzy search is still loading");
+                }
+                throw new HttpError(400, "Fuzzy search is not enabled on this server");
+            }
+            int k = params.containsKey("limit") ? limit : fuzzyIndex.getK();
+            return title != null ? fuzzyIndex.searchTitle(title, k) : fuzzyIndex.searchAuthor(author, k);
+        }
+        // Like listing, a further page continues after the last id of the previous one.
+        int after = intParam(params, "after", Integer.MIN_VALUE);
+        if (after == Integer.MAX_VALUE) {
+            return Collections.emptyList();
+        }
+        int fromId = params.containsKey("after") ? after + 1 : Integer.MIN_VALUE;
+        SearchIndex searchIndex = views.searchIndex();
+        if (searchIndex != null) {
+            List<Book> found = title != null ? searchIndex.searchTitle(title, fromId, limit)
+                    : searchIndex.searchAuthor(author, fromId, limit);
+            if (found != null) {
+                return found;
+            }
+        }
+        return withConnection(s -> title != null
+                ? s.searchTitle(title, fromId, limit)
+                : s.searchAuthor(author, fromId, limit));
+    }
+
+    private void notifySaved(Book book) {
+        for (CatalogListener listener : listeners) {
+            listener.bookSaved(book);
+        }
+    }
+
+    /**
+     * A database operation run with the prepared statements of a pooled connection.
+     */
+    private interface PooledCall<T> {
+        T run(BookStatements statements) throws SQLException;
+    }
+
+    private <T> T withConnection(PooledCall<T> call) throws SQLException {
+        BookStatements statements = pool.acquire(acquireTimeoutMillis);
+        try {
+            return call.run(statements);
+        } finally {
+            pool.release(statements);
+        }
+    }
+
+    /**
+     * Makes a book of a parsed JSON body, taking the id from the body unless one is given.
+     */
+    private static Book toBook(Map<String, Object> body, Integer givenId) throws HttpError {
+        Integer id = givenId != null ? givenId : toInt(body.get("id"));
+        Object title = body.get("title");
+        Object author = body.get("author");
+        Integer qty = toInt(body.get("qty"));
+        if (id == null || !(title instanceof String) || !(author instanceof String) || qty == null) {
+            throw new HttpError(400, "Expected id (integer), title (string), author (string) and qty (integer)");
+        }
+        return new Book(id, (String) title, (String) author, qty);
+    }
+
+    /**
+     * Returns a parsed JSON number as an int, or null if it is not a whole number in the int
+     * range, so that 1.5 or 4294967297 are refused rather than acted on as another value.
+     */
+    static Integer toInt(Object value) {
+        if (!(value instanceof Long)) {
+            return null;
+        }
+        long number = (Long) value;
+        return number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE ? Integer.valueOf((int) number) : null;
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            body.write(buffer, 0, n);
+            if (body.size() > 64 * 1024) {
+                throw new IllegalArgumentException("Request body too large");
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> queryParams(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            try {
+                params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + name + " must be a number");
+        }
+    }
+
+    private static int limit(Map<String, String> params) {
+        return Math.max(1, Math.min(MAX_LIMIT, intParam(params, "limit", DEFAULT_LIMIT)));
+    }
+}
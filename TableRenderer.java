@@ -0,0 +1,229 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Renders books as a fixed-width table of ID, title, author and quantity.
+ *
+ * Each row is padded into one reused char buffer (numbers are written digit by digit, nothing
+ * is formatted with String.format) and appended to a large buffered writer, which is flushed
+ * explicitly once the table is complete. Listing a page therefore costs one write to the
+ * terminal instead of one auto-flushed println per row, which is what dominates over SSH.
+ * Titles and authors longer than their column are cut and end in "...", never in half a
+ * surrogate pair; ids and quantities are never cut and widen their row instead.
+ *
+ * Not thread safe; the console uses one renderer.
+ */
+public class TableRenderer {
+
+    public static final int ID_WIDTH = 5;
+    public static final int TITLE_WIDTH = 50;
+    public static final int AUTHOR_WIDTH = 30;
+    public static final int QTY_WIDTH = 4;
+
+    private static final String ELLIPSIS = "...";
+
+    // Narrowest text columns the pager shrinks to on a small terminal.
+    private static final int MIN_TEXT_WIDTH = 10;
+
+    private final Writer out;
+    private final int titleWidth;
+    private final int authorWidth;
+    // Room for a full row: the text columns, and numbers of up to 11 characters ("-2147483648").
+    private final char[] line;
+
+    /**
+     * @param out         Where the table goes; wrapped in a 64 KB buffer.
+     * @param titleWidth  Width of the title column.
+     * @param authorWidth Width of the author column.
+     */
+    public TableRenderer(OutputStream out, int titleWidth, int authorWidth) {
+        this(new OutputStreamWriter(out, Charset.defaultCharset()), titleWidth, authorWidth);
+    }
+
+    /**
+     * @param out         Where the table goes; wrapped in a 64 KB buffer.
+     * @param titleWidth  Width of the title column.
+     * @param authorWidth Width of the author column.
+     */
+    public TableRenderer(Writer out, int titleWidth, int authorWidth) {
+        this.out = new BufferedWriter(out, 64 * 1024);
+        this.titleWidth = Math.max(ELLIPSIS.length() + 1, titleWidth);
+        this.authorWidth = Math.max(ELLIPSIS.length() + 1, authorWidth);
+        this.line = new char[Math.max(ID_WIDTH, 11) + 1 + this.titleWidth + 1 + this.authorWidth + 1
+                + Math.max(QTY_WIDTH, 11) + 1];
+    }
+
+    /**
+     * Creates a renderer for the console. With -Debookstore.pager=true the title and author
+     * columns are narrowed to fit the terminal width (see {@link #screenColumns()}).
+     */
+    public static TableRenderer forConsole(OutputStream out) {
+        if (!Boolean.getBoolean("ebookstore.pager")) {
+            return new TableRenderer(out, TITLE_WIDTH, AUTHOR_WIDTH);
+        }
+        // Whatever the id, qty and separators leave is shared 5:3 like the default widths.
+        int text = screenColumns() - ID_WIDTH - QTY_WIDTH - 4;
+        int title = Math.min(TITLE_WIDTH, Math.max(MIN_TEXT_WIDTH, text * 5 / 8));
+        int author = Math.min(AUTHOR_WIDTH, Math.max(MIN_TEXT_WIDTH, text - title));
+        return new TableRenderer(out, title, author);
+    }
+
+    /**
+     * Returns the height of the terminal: -Debookstore.pager.rows, else the LINES environment
+     * variable (exported by most shells), else 24.
+     */
+    public static int screenRows() {
+        return terminalSize("ebookstore.pager.rows", "LINES", 24);
+    }
+
+    /**
+     * Returns the width of the terminal: -Debookstore.pager.columns, else the COLUMNS
+     * environment variable, else 80.
+     */
+    public static int screenColumns() {
+        return terminalSize("ebookstore.pager.columns", "COLUMNS", 80);
+    }
+
+    private static int terminalSize(String property, String variable, int fallback) {
+        Integer size = Integer.getInteger(property);
+        if (size == null) {
+            try {
+                String value = System.getenv(variable);
+                size = value != null ? Integer.valueOf(value.trim()) : fallback;
+            } catch (NumberFormatException e) {
+                size = fallback;
+            }
+        }
+        return Math.max(1, size);
+    }
+
+    /**
+     * Renders a title line, the column headers, the rows and a footer line, then flushes.
+     * @param title  Line printed above the table, may be null.
+     * @param books  The rows.
+     * @param footer Line printed below the table, may be null.
+     */
+    public void table(String title, List<Book> books, String footer) {
+        try {
+            if (title != null) {
+                out.write(title);
+                out.write('\n');
+            }
+            header();
+            for (int i = 0; i < books.size(); i++) {
+                row(books.get(i));
+            }
+            if (footer != null) {
+                out.write(footer);
+                out.write('\n');
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends the column headers. Nothing is written until {@link #flush()}.
+     */
+    public void header() throws IOException {
+        int n = pad(0, "ID", ID_WIDTH);
+        n = pad(n, "Title", titleWidth);
+        n = pad(n, "Author", authorWidth);
+        n = pad(n, "Qty", QTY_WIDTH);
+        end(n);
+    }
+
+    /**
+     * Appends one book as a row. Nothing is written until {@link #flush()}.
+     */
+    public void row(Book book) throws IOException {
+        int n = number(0, book.getId(), ID_WIDTH);
+        n = pad(n, book.getTitle(), titleWidth);
+        n = pad(n, book.getAuthor(), authorWidth);
+        n = number(n, book.getQty(), QTY_WIDTH);
+        end(n);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Ends a row: the last column keeps its padding, like "%-4d", and the separator after it
+     * becomes the newline.
+     */
+    private void end(int n) throws IOException {
+        line[n - 1] = '\n';
+        out.write(line, 0, n);
+    }
+
+    /**
+     * Copies text into the line at n, cut or padded to width, followed by a space.
+     * @return The position after the space.
+     */
+    private int pad(int n, String text, int width) {
+        if (text == null) {
+            text = "null";
+        }
+        int length = text.length();
+        if (length > width) {
+            // Cut before the ellipsis, without splitting a surrogate pair.
+            int cut = width - ELLIPSIS.length();
+            if (Character.isHighSurrogate(text.charAt(cut - 1))) {
+                cut--;
+            }
+            text.getChars(0, cut, line, n);
+            ELLIPSIS.getChars(0, ELLIPSIS.length(), line, n + cut);
+            length = cut + ELLIPSIS.length();
+        } else {
+            text.getChars(0, length, line, n);
+        }
+        int end = n + width;
+        for (int i = n + length; i < end; i++) {
+            line[i] = ' ';
+        }
+        line[end] = ' ';
+        return end + 1;
+    }
+
+    /**
+     * Writes value into the line at n, left aligned and padded to width, followed by a space.
+     * @return The position after the space.
+     */
+    private int number(int n, int value, int width) {
+        int digits = value < 0 ? digits(value) + 1 : digits(value);
+        // Fill from the last digit backwards; negating each digit keeps Integer.MIN_VALUE correct.
+        int pos = n + digits;
+        int v = value > 0 ? -value : value;
+        do {
+            line[--pos] = (char) ('0' - v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (value < 0) {
+            line[n] = '-';
+        }
+        int end = n + Math.max(width, digits);
+        for (int i = n + digits; i < end; i++) {
+            line[i] = ' ';
+        }
+        line[end] = ' ';
+        return end + 1;
+    }
+
+    private static int digits(int value) {
+        long v = Math.abs((long) value);
+        int digits = 1;
+        while (v >= 10) {
+            v /= 10;
+            digits++;
+        }
+        return digits;
+    }
+}
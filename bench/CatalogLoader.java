@@ -0,0 +1,137 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.SplittableRandom;
+
+/**
+ * Creates the books table from schema.sql and fills it with a generated catalog of a given size.
+ *
+ * Generated books have ids from FIRST_ID up, titles built from a small vocabulary (so word
+ * searches find a realistic number of matches) and authors drawn from a list of names.
+ * The same id always produces the same book, so benchmark runs are comparable.
+ */
+public class CatalogLoader {
+
+    /** Id of the first generated book; below it are only the rows of schema.sql. */
+    public static final int FIRST_ID = 10_001;
+
+    static final String[] TITLE_WORDS = {
+        "Shadow", "River", "Garden", "Winter", "Silent", "Crown", "Glass", "Harbor", "Iron", "Night",
+        "Summer", "Storm", "Lantern", "Orchard", "Stone", "Empire", "Whisper", "Mountain", "Letters", "Voyage",
+        "Secret", "Kingdom", "Ember", "Mirror", "Forest", "Island", "Memory", "Thunder", "Willow", "Compass",
+    };
+
+    static final String[] FIRST_NAMES = {
+        "Ada", "Charles", "Jane", "Leo", "Mary", "George", "Virginia", "Fyodor", "Toni", "Gabriel",
+        "Agatha", "Herman", "Emily", "Franz", "Ursula", "Jorge", "Doris", "Italo", "Chinua", "Haruki",
+    };
+
+    static final String[] LAST_NAMES = {
+        "Austen", "Dickens", "Tolstoy", "Woolf", "Dostoevsky", "Morrison", "Marquez", "Christie", "Melville",
+        "Bronte", "Kafka", "LeGuin", "Borges", "Lessing", "Calvino", "Achebe", "Murakami", "Shelley", "Eliot",
+        "Orwell", "Rowling", "Lewis", "Tolkien", "Carroll", "Twain",
+    };
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int COMMIT_INTERVAL = 20_000;
+
+    /**
+     * Returns the generated book with this id.
+     */
+    public static Book book(int id) {
+        SplittableRandom random = new SplittableRandom(id);
+        String title = "The " + pick(random, TITLE_WORDS) + " of the " + pick(random, TITLE_WORDS)
+                + (random.nextInt(3) == 0 ? " " + pick(random, TITLE_WORDS) : "");
+        String author = pick(random, FIRST_NAMES) + " " + pick(random, LAST_NAMES);
+        return new Book(id, title, author, random.nextInt(100));
+    }
+
+    private static String pick(SplittableRandom random, String[] words) {
+        return words[random.nextInt(words.length)];
+    }
+
+    /**
+     * Drops the tables of schema.sql and recreates them by running it.
+     * @param connection Connection to the database to reset.
+     * @param schema     Path of schema.sql.
+     */
+    public static void reset(Connection connection, Path schema) throws IOException, SQLException {
+        String script = new String(Files.readAllBytes(schema), StandardCharsets.UTF_8);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS books");
+            stmt.executeUpdate("DROP TABLE IF EXISTS id_blocks");
+            stmt.executeUpdate("DROP TABLE IF EXISTS catalog_version");
+            stmt.executeUpdate("DROP TABLE IF EXISTS book_tombstones");
+            stmt.executeUpdate("DROP TABLE IF EXISTS catalog_readers");
+            for (String sql : script.split(";")) {
+                if (!sql.trim().isEmpty()) {
+                    stmt.executeUpdate(sql);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts the generated books FIRST_ID .. FIRST_ID + count - 1 in JDBC batches.
+     * @return The time taken in nanoseconds.
+     */
+    public static long load(Connection connection, int count) throws SQLException {
+        long start = System.nanoTime();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO books (id, title, author, qty) VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < count; i++) {
+                Book book = book(FIRST_ID + i);
+                insert.setInt(1, book.getId());
+                insert.setString(2, book.getTitle());
+                insert.setString(3, book.getAuthor());
+                insert.setInt(4, book.getQty());
+                insert.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+                if ((i + 1) % COMMIT_INTERVAL == 0) {
+                    connection.commit();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Writes the generated books firstId .. firstId + count - 1 to a CSV file in the import format.
+     */
+    public static void writeCsv(Path file, int firstId, int count) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("id,title,author,qty\n");
+            for (int i = 0; i < count; i++) {
+                Book book = book(firstId + i);
+                out.write(book.getId() + "," + book.getTitle() + "," + book.getAuthor() + "," + book.getQty() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Resets the configured database and loads a catalog of the given size (default 100000).
+     */
+    public static void main(String[] args) throws IOException, SQLException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        try (Connection connection = EbookStore.openConnection()) {
+            reset(connection, Paths.get("schema.sql"));
+            long nanos = load(connection, count);
+            System.out.println(String.format("Loaded %d book(s) in %.1f s.", count, nanos / 1e9));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares rendering catalog rows the way the console used to (String.format and an
+ * auto-flushed println per row) with {@link TableRenderer}.
+ *
+ * Rows are the generated books of {@link CatalogLoader}, rendered a page at a time to a real
+ * file descriptor, so the cost of every flush reaches the operating system as it does on a
+ * terminal. No database is needed:
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -cp out -Dbench.rows=200000 -Dbench.pageSize=1000 RenderBenchmark [output file]
+ * </pre>
+ * The output file defaults to /dev/null; pass a file on a slow disk or a named pipe read over
+ * SSH to see the effect of the number of writes.
+ */
+public class RenderBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int rows = Integer.getInteger("bench.rows", 200_000);
+        int pageSize = Math.max(1, Integer.getInteger("bench.pageSize", 1000));
+        int runs = Integer.getInteger("bench.runs", 5);
+        String file = args.length > 0 ? args[0] : "/dev/null";
+
+        List<List<Book>> pages = new ArrayList<>();
+        for (int first = 0; first < rows; first += pageSize) {
+            List<Book> page = new ArrayList<>(pageSize);
+            for (int id = first; id < Math.min(rows, first + pageSize); id++) {
+                page.add(CatalogLoader.book(CatalogLoader.FIRST_ID + id));
+            }
+            pages.add(page);
+        }
+
+        try (OutputStream raw = new FileOutputStream(file)) {
+            // Like System.out: an 8 KB buffer flushed on every println.
+            PrintStream console = new PrintStream(new BufferedOutputStream(raw, 8192), true);
+            TableRenderer table = new TableRenderer(console, TableRenderer.TITLE_WIDTH, TableRenderer.AUTHOR_WIDTH);
+            for (int run = 0; run <= runs; run++) {
+                // Run 0 warms up the JIT and is not reported.
+                long formatted = System.nanoTime();
+                for (List<Book> page : pages) {
+                    formatPage(console, page);
+                }
+                formatted = System.nanoTime() - formatted;
+
+                long rendered = System.nanoTime();
+                for (List<Book> page : pages) {
+                    table.table(null, page, null);
+                }
+                rendered = System.nanoTime() - rendered;
+
+                if (run > 0) {
+                    System.out.println(String.format(
+                            "run %d: String.format + println %,.0f rows/sec, TableRenderer %,.0f rows/sec (%.1fx)",
+                            run, rows * 1e9 / formatted, rows * 1e9 / rendered, (double) formatted / rendered));
+                }
+            }
+        }
+    }
+
+    /**
+     * The listing code before TableRenderer.
+     */
+    private static void formatPage(PrintStream out, List<Book> page) {
+        out.println(String.format("%-5s %-50s %-30s %-4s", "ID", "Title", "Author", "Qty"));
+        for (Book book : page) {
+            out.println(String.format("%-5d %-50s %-30s %-4d",
+                    book.getId(), book.getTitle(), book.getAuthor(), book.getQty()));
+        }
+    }
+}
@@ -0,0 +1,323 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Measures throughput and latency percentiles of every catalog operation at several catalog sizes.
+ *
+ * For each size the books table is recreated from schema.sql and filled by {@link CatalogLoader},
+ * then each operation is warmed up and timed call by call through the same code the console
+ * and the server use ({@link BookStatements}, {@link BulkImporter}, optionally {@link SearchIndex}
+ * and {@link FuzzyIndex}): listing a page, id lookup, title search, author search, update,
+ * single insert and bulk insert.
+ *
+ * Results are printed and written as JSON (one result object per line, so two runs can be
+ * diffed directly). Passing -Dbench.baseline=FILE with the JSON of an earlier run prints the
+ * change in throughput and p99 latency for every operation.
+ *
+ * The books table is dropped, so this refuses to run unless the JDBC URL is an in-memory
+ * database or -Dbench.reset=true is given. With H2 in MySQL mode:
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -cp out:h2.jar -Debookstore.db.url="jdbc:h2:mem:bench;MODE=MySQL;DB_CLOSE_DELAY=-1" \
+ *      -Debookstore.db.user=sa -Debookstore.db.password= StoreBenchmark
+ * </pre>
+ */
+public class StoreBenchmark {
+
+    private static final int PAGE_SIZE = 20;
+    private static final int SEARCH_LIMIT = 20;
+
+    /**
+     * One timed call of an operation; i is the iteration number.
+     */
+    private interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * Latency distribution and throughput of one operation at one catalog size.
+     */
+    private static final class Result {
+        final int size;
+        final String operation;
+        final int iterations;
+        final long totalNanos;
+        final long[] sorted;
+        final int rowsPerOp;
+
+        Result(int size, String operation, long[] nanos, int rowsPerOp) {
+            this.size = size;
+            this.operation = operation;
+            this.iterations = nanos.length;
+            this.sorted = nanos.clone();
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long n : nanos) {
+                total += n;
+            }
+            this.totalNanos = total;
+            this.rowsPerOp = rowsPerOp;
+        }
+
+        double opsPerSec() {
+            return totalNanos == 0 ? 0.0 : iterations * 1e9 / totalNanos;
+        }
+
+        double micros(double percentile) {
+            int rank = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank))] / 1000.0;
+        }
+
+        String key() {
+            return size + "/" + operation;
+        }
+
+        String toJson() throws IOException {
+            StringBuilder out = new StringBuilder("{\"size\":").append(size).append(",\"operation\":");
+            Json.writeString(out, operation);
+            out.append(",\"iterations\":").append(iterations)
+                    .append(",\"opsPerSec\":").append(format(opsPerSec()))
+                    .append(",\"meanUs\":").append(format(totalNanos / 1000.0 / iterations))
+                    .append(",\"p50Us\":").append(format(micros(0.50)))
+                    .append(",\"p90Us\":").append(format(micros(0.90)))
+                    .append(",\"p99Us\":").append(format(micros(0.99)))
+                    .append(",\"p999Us\":").append(format(micros(0.999)))
+                    .append(",\"maxUs\":").append(format(sorted[sorted.length - 1] / 1000.0));
+            if (rowsPerOp > 1) {
+                out.append(",\"rowsPerSec\":").append(format(opsPerSec() * rowsPerOp));
+            }
+            return out.append('}').toString();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%9d  %-22s %11.0f ops/s  p50 %9.1f us  p99 %9.1f us  p99.9 %9.1f us",
+                    size, operation, opsPerSec(), micros(0.50), micros(0.99), micros(0.999));
+        }
+    }
+
+    private static String format(double value) {
+        return String.format("%.3f", value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("ebookstore.db.url", "");
+        if (!url.contains(":mem:") && !Boolean.getBoolean("bench.reset")) {
+            System.out.println("StoreBenchmark drops and recreates the books table. Point ebookstore.db.url"
+                    + " at an in-memory database, or pass -Dbench.reset=true to run against " + url + ".");
+            return;
+        }
+        int[] sizes = parseSizes(System.getProperty("bench.sizes", "1000,100000,1000000"));
+        int iterations = Integer.getInteger("bench.iterations", 2000);
+        int warmup = Integer.getInteger("bench.warmup", 500);
+        int bulkRuns = Integer.getInteger("bench.bulkRuns", 5);
+        int bulkRows = Integer.getInteger("bench.bulkRows", 10_000);
+        boolean withIndex = Boolean.getBoolean("bench.searchIndex");
+        boolean withFuzzy = Boolean.getBoolean("bench.fuzzy");
+        Path schema = Paths.get(System.getProperty("bench.schema", "schema.sql"));
+        Path output = Paths.get(System.getProperty("bench.out", "bench-results.json"));
+
+        List<Result> results = new ArrayList<>();
+        String database;
+        try (Connection connection = EbookStore.openConnection();
+             BookStatements statements = new BookStatements(connection, 0)) {
+            DatabaseMetaData meta = connection.getMetaData();
+            database = meta.getDatabaseProductName() + " " + meta.getDatabaseProductVersion();
+            System.out.println("Database: " + database);
+
+            for (int size : sizes) {
+                CatalogLoader.reset(connection, schema);
+                long loadNanos = CatalogLoader.load(connection, size);
+                System.out.println(String.format("Loaded %d book(s) in %.1f s.", size, loadNanos / 1e9));
+                int firstNewId = CatalogLoader.FIRST_ID + size;
+
+                SplittableRandom random = new SplittableRandom(42);
+                int[] ids = new int[iterations + warmup];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = CatalogLoader.FIRST_ID + random.nextInt(size);
+                }
+
+                results.add(measure(size, "list", warmup, iterations, 1,
+                        i -> statements.page(ids[i], PAGE_SIZE + 1)));
+                results.add(measure(size, "id lookup", warmup, iterations, 1,
+                        i -> statements.findById(ids[i])));
+                results.add(measure(size, "title search", warmup, iterations, 1,
+                        i -> statements.searchTitle(word(CatalogLoader.TITLE_WORDS, i), Integer.MIN_VALUE, SEARCH_LIMIT)));
+                results.add(measure(size, "author search", warmup, iterations, 1,
+                        i -> statements.searchAuthor(word(CatalogLoader.LAST_NAMES, i), Integer.MIN_VALUE, SEARCH_LIMIT)));
+                if (withIndex) {
+                    SearchIndex index = new SearchIndex();
+                    index.build(statements);
+                    results.add(measure(size, "title search (index)", warmup, iterations, 1,
+                            i -> index.searchTitle(word(CatalogLoader.TITLE_WORDS, i), Integer.MIN_VALUE, SEARCH_LIMIT)));
+                    results.add(measure(size, "author search (index)", warmup, iterations, 1,
+                            i -> index.searchAuthor(word(CatalogLoader.LAST_NAMES, i), Integer.MIN_VALUE, SEARCH_LIMIT)));
+                }
+                if (withFuzzy) {
+                    FuzzyIndex fuzzy = new FuzzyIndex(SEARCH_LIMIT, 2);
+                    fuzzy.build(statements);
+                    results.add(measure(size, "fuzzy title search", warmup, iterations, 1,
+                            i -> fuzzy.searchTitle(misspell(word(CatalogLoader.TITLE_WORDS, i)), SEARCH_LIMIT)));
+                }
+                results.add(measure(size, "update", warmup, iterations, 1,
+                        i -> statements.update(CatalogLoader.book(ids[i]).withQty(i % 100))));
+                results.add(measure(size, "single insert", warmup, iterations, 1,
+                        i -> statements.insert(CatalogLoader.book(firstNewId + i))));
+                deleteFrom(connection, firstNewId);
+
+                results.add(measureBulk(connection, size, firstNewId, bulkRuns, bulkRows));
+                deleteFrom(connection, firstNewId);
+
+                for (Result result : results) {
+                    if (result.size == size) {
+                        System.out.println(result);
+                    }
+                }
+            }
+        }
+
+        writeJson(output, database, iterations, results);
+        System.out.println("Results written to " + output + ".");
+        String baseline = System.getProperty("bench.baseline");
+        if (baseline != null) {
+            compare(Paths.get(baseline), results);
+        }
+    }
+
+    private static Result measure(int size, String name, int warmup, int iterations, int rowsPerOp,
+                                  Operation operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run(iterations + i);
+        }
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            operation.run(i);
+            nanos[i] = System.nanoTime() - start;
+        }
+        return new Result(size, name, nanos, rowsPerOp);
+    }
+
+    /**
+     * Imports generated CSV files through {@link BulkImporter}; the first import is a warm-up.
+     * Files are written before timing starts, so only the import itself is measured.
+     */
+    private static Result measureBulk(Connection connection, int size, int firstNewId, int runs, int rows)
+            throws IOException, SQLException {
+        List<Path> files = new ArrayList<>();
+        try {
+            for (int run = 0; run <= runs; run++) {
+                Path file = Files.createTempFile("bench-import-", ".csv");
+                files.add(file);
+                CatalogLoader.writeCsv(file, firstNewId + run * rows, rows);
+            }
+            BulkImporter importer = BulkImporter.fromSystemProperties(connection, Collections.emptyList());
+            importer.importFile(files.get(0));
+            long[] nanos = new long[runs];
+            for (int run = 0; run < runs; run++) {
+                long start = System.nanoTime();
+                importer.importFile(files.get(run + 1));
+                nanos[run] = System.nanoTime() - start;
+            }
+            return new Result(size, "bulk insert", nanos, rows);
+        } finally {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static String word(String[] words, int i) {
+        return words[i % words.length];
+    }
+
+    /**
+     * Swaps two letters in the middle of a word, the most common typo.
+     */
+    private static String misspell(String word) {
+        if (word.length() < 4) {
+            return word;
+        }
+        int i = word.length() / 2;
+        return word.substring(0, i - 1) + word.charAt(i) + word.charAt(i - 1) + word.substring(i + 1);
+    }
+
+    private static void deleteFrom(Connection connection, int firstId) throws SQLException {
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM books WHERE id >= ?")) {
+            delete.setInt(1, firstId);
+            delete.executeUpdate();
+        }
+    }
+
+    private static int[] parseSizes(String list) {
+        String[] parts = list.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+
+    private static void writeJson(Path file, String database, int iterations, List<Result> results)
+            throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("{\"started\":");
+            Json.writeString(out, Instant.now().toString());
+            out.write(",\"database\":");
+            Json.writeString(out, database);
+            out.write(",\"java\":");
+            Json.writeString(out, System.getProperty("java.version"));
+            out.write(",\"iterations\":" + iterations + ",\"results\":[\n");
+            for (int i = 0; i < results.size(); i++) {
+                out.write(results.get(i).toJson());
+                out.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            out.write("]}\n");
+        }
+    }
+
+    /**
+     * Prints the change against an earlier results file. Each result sits on its own line,
+     * so the flat objects can be read back one line at a time.
+     */
+    private static void compare(Path baseline, List<Result> results) throws IOException {
+        Map<String, Map<String, Object>> before = new HashMap<>();
+        for (String line : Files.readAllLines(baseline, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.startsWith("{\"size\"")) {
+                Map<String, Object> result = Json.parseObject(line.endsWith(",")
+                        ? line.substring(0, line.length() - 1) : line);
+                before.put(result.get("size") + "/" + result.get("operation"), result);
+            }
+        }
+        System.out.println("\nChange against " + baseline + ":");
+        for (Result result : results) {
+            Map<String, Object> old = before.get(result.key());
+            if (old == null) {
+                continue;
+            }
+            double oldOps = ((Number) old.get("opsPerSec")).doubleValue();
+            double oldP99 = ((Number) old.get("p99Us")).doubleValue();
+            System.out.println(String.format("%9d  %-22s throughput %+7.1f%%  p99 %+7.1f%%",
+                    result.size, result.operation,
+                    percentChange(oldOps, result.opsPerSec()), percentChange(oldP99, result.micros(0.99))));
+        }
+    }
+
+    private static double percentChange(double before, double after) {
+        return before == 0 ? 0.0 : (after - before) * 100.0 / before;
+    }
+}
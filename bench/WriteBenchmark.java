@@ -0,0 +1,135 @@
+import java.sql.*;
+
+/**
+ * Compares the write paths before and after the move to {@link BookStatements}.
+ *
+ * The "before" variants reproduce what the console used to do: a fresh PreparedStatement per
+ * call, a SELECT COUNT(*) before every insert and a SELECT before every update and delete.
+ * The "after" variants use one reused statement per operation and a single round trip.
+ *
+ * Run against a scratch database (rows with ids from BASE_ID up are created and removed):
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -cp out:mysql-connector-j.jar -Debookstore.db.url=... WriteBenchmark [operations]
+ * </pre>
+ */
+public class WriteBenchmark {
+
+    private static final int BASE_ID = 1_900_000_000;
+
+    public static void main(String[] args) throws SQLException {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        try (Connection connection = EbookStore.openConnection();
+             BookStatements statements = new BookStatements(connection, 0)) {
+            cleanUp(connection);
+
+            // Warm up the driver and server-side caches before measuring.
+            legacyInserts(connection, operations / 10);
+            cleanUp(connection);
+
+            report("insert (check + insert, new statements)", operations, legacyInserts(connection, operations));
+            report("update (select + update, new statements)", operations, legacyUpdates(connection, operations));
+            report("delete (select + delete, new statements)", operations, legacyDeletes(connection, operations));
+
+            report("insert (one round trip, reused statement)", operations, inserts(statements, operations));
+            report("update (conditional, reused statement)", operations, updates(statements, operations));
+            report("delete (conditional, reused statement)", operations, deletes(statements, operations));
+            cleanUp(connection);
+        }
+    }
+
+    private static long legacyInserts(Connection connection, int n) throws SQLException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            try (PreparedStatement check = connection.prepareStatement("SELECT COUNT(*) FROM books WHERE id = ?")) {
+                check.setInt(1, BASE_ID + i);
+                try (ResultSet rs = check.executeQuery()) {
+                    rs.next();
+                }
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO books (id, title, author, qty) VALUES (?, ?, ?, ?)")) {
+                insert.setInt(1, BASE_ID + i);
+                insert.setString(2, "Benchmark title " + i);
+                insert.setString(3, "Benchmark author");
+                insert.setInt(4, 10);
+                insert.executeUpdate();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long legacyUpdates(Connection connection, int n) throws SQLException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            try (PreparedStatement select = connection.prepareStatement("SELECT * FROM books WHERE id = ?")) {
+                select.setInt(1, BASE_ID + i);
+                try (ResultSet rs = select.executeQuery()) {
+                    rs.next();
+                }
+            }
+            String updateField = "qty";
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE books SET " + updateField + " = ? WHERE id = ?")) {
+                update.setInt(1, 11);
+                update.setInt(2, BASE_ID + i);
+                update.executeUpdate();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long legacyDeletes(Connection connection, int n) throws SQLException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            try (PreparedStatement select = connection.prepareStatement("SELECT * FROM books WHERE id = ?")) {
+                select.setInt(1, BASE_ID + i);
+                try (ResultSet rs = select.executeQuery()) {
+                    rs.next();
+                }
+            }
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM books WHERE id = ?")) {
+                delete.setInt(1, BASE_ID + i);
+                delete.executeUpdate();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long inserts(BookStatements statements, int n) throws SQLException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            statements.insert(new Book(BASE_ID + i, "Benchmark title " + i, "Benchmark author", 10));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long updates(BookStatements statements, int n) throws SQLException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            Book before = new Book(BASE_ID + i, "Benchmark title " + i, "Benchmark author", 10);
+            statements.updateIfUnchanged(before, before.withQty(11));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long deletes(BookStatements statements, int n) throws SQLException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            statements.deleteIfUnchanged(new Book(BASE_ID + i, "Benchmark title " + i, "Benchmark author", 11));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void cleanUp(Connection connection) throws SQLException {
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM books WHERE id >= ?")) {
+            delete.setInt(1, BASE_ID);
+            delete.executeUpdate();
+        }
+    }
+
+    private static void report(String name, int operations, long nanos) {
+        System.out.println(String.format("%-45s %8.1f us/op %10.0f ops/sec",
+                name, nanos / 1000.0 / operations, operations * 1e9 / nanos));
+    }
+}
@@ -0,0 +1,55 @@
+CREATE TABLE books (
+    id INT PRIMARY KEY,
+    title VARCHAR(100),
+    author VARCHAR(100),
+    qty INT,
+    -- Random token of the last write to the row, compared by conditional writes.
+    version BIGINT NOT NULL DEFAULT 0,
+    -- Catalog version at which the last write reached the change feeds, 0 until stamped
+    -- (see CatalogVersion).
+    stamp BIGINT NOT NULL DEFAULT 0
+);
+
+CREATE INDEX books_stamp ON books (stamp);
+
+-- The catalog version: advanced once per stamp of pending writes.
+CREATE TABLE catalog_version (
+    name VARCHAR(30) PRIMARY KEY,
+    version BIGINT NOT NULL
+);
+
+INSERT INTO catalog_version (name, version) VALUES ('books', 0);
+-- Tombstones up to the 'horizon' version may have been deleted (see CatalogVersion).
+INSERT INTO catalog_version (name, version) VALUES ('horizon', 0);
+-- A row named 'incarnation' holding a random id is added on first use (see CatalogVersion).
+
+-- One row per deleted book, stamped with the catalog version of the delete (see ChangeFeed).
+CREATE TABLE book_tombstones (
+    id INT NOT NULL,
+    stamp BIGINT NOT NULL DEFAULT 0
+);
+
+CREATE INDEX book_tombstones_stamp ON book_tombstones (stamp);
+
+-- Instances following the catalog, the oldest version each still needs tombstones after, and
+-- when each last reported it (epoch millis). Tombstones no reader needs are deleted.
+CREATE TABLE catalog_readers (
+    name VARCHAR(40) PRIMARY KEY,
+    version BIGINT NOT NULL,
+    seen BIGINT NOT NULL
+);
+
+-- Blocks of ids for new books are leased by advancing next_id (see IdAllocator).
+-- The row is created on the first lease, starting after the highest book id.
+CREATE TABLE id_blocks (
+    name VARCHAR(30) PRIMARY KEY,
+    next_id BIGINT NOT NULL
+);
+
+INSERT INTO books (id, title, author, qty) VALUES
+(3001, 'A Tale of Two Cities', 'Charles Dickens', 30),
+(3002, 'Harry Potter and the Philosopher''s Stone', 'J.K. Rowling', 40),
+(3003, 'The Lion, the Witch and the Wardrobe', 'C.S. Lewis', 25),
+(3004, 'The Lord of the Rings', 'J.R.R Tolkien', 37),
+(3005, 'Alice in Wonderland', 'Lewis Carroll', 12);
+
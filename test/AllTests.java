@@ -0,0 +1,21 @@
+/**
+ * Runs every check under test/. Run from the repository root, since some checks read schema.sql:
+ * <pre>
+ * javac -d out *.java test/*.java
+ * java -cp out:h2.jar AllTests
+ * </pre>
+ */
+public class AllTests {
+
+    public static void main(String[] args) throws Exception {
+        BulkImporterTest.main(args);
+        StockLedgerTest.main(args);
+        MappedRecoveryTest.main(args);
+        FuzzyIndexTest.main(args);
+        SearchIndexTest.main(args);
+        WritePathTest.main(args);
+        TombstoneRetentionTest.main(args);
+        CatalogViewsTest.main(args);
+        System.out.println("All checks passed.");
+    }
+}
@@ -0,0 +1,53 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks how {@link BulkImporter} splits a file into records and records into books.
+ */
+public class BulkImporterTest {
+
+    public static void main(String[] args) throws Exception {
+        Check.run("import skips a header line", () -> {
+            Check.that(BulkImporter.isHeader("id,title,author,qty", ','), "header recognised");
+            Check.that(BulkImporter.isHeader("\"ID\"\t\"Title\"\t\"Author\"\t\"Qty\"", '\t'), "quoted TSV header");
+            Check.that(!BulkImporter.isHeader("3001,A Tale of Two Cities,Charles Dickens,30", ','), "a book");
+            Check.that(!BulkImporter.isHeader("3001,missing columns", ','), "malformed, not a header");
+            Check.that(!BulkImporter.isHeader("", ','), "blank line");
+        });
+        Check.run("import reads quoted fields across lines", () -> {
+            List<String> records = records("id,title,author,qty\n"
+                    + "1,\"Poems,\nVolume \"\"One\"\"\",\"A. Poet\",3\n"
+                    + "\n"
+                    + "2,Plain,Writer,4\n");
+            Check.equal(4, records.size(), "records");
+            Book poems = BulkImporter.parseLine(records.get(1), ',');
+            Check.equal("Poems,\nVolume \"One\"", poems.getTitle(), "title keeps the line break");
+            Check.equal("A. Poet", poems.getAuthor(), "author");
+            Check.equal(3, poems.getQty(), "qty");
+            Check.equal(null, BulkImporter.parseLine(records.get(2), ','), "blank record");
+            Check.equal(2, BulkImporter.parseLine(records.get(3), ',').getId(), "next record");
+        });
+        Check.run("import rejects an unterminated quote with its line", () -> {
+            try {
+                records("1,Fine,Writer,1\n2,\"Never closed,Writer,2\n3,Other,Writer,3\n");
+                throw new AssertionError("expected an IOException");
+            } catch (IOException e) {
+                Check.that(e.getMessage().contains("line 2"), "message names the line: " + e.getMessage());
+            }
+        });
+    }
+
+    private static List<String> records(String text) throws IOException {
+        List<String> records = new ArrayList<>();
+        try (BulkImporter.RecordReader reader = new BulkImporter.RecordReader(
+                new BufferedReader(new StringReader(text)))) {
+            for (String record = reader.next(); record != null; record = reader.next()) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,93 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Checks that {@link CatalogViews} answer null until they are loaded, and that changes made
+ * while they load are applied once they are.
+ */
+public class CatalogViewsTest {
+
+    public static void main(String[] args) throws Exception {
+        Check.run("views hold back changes made while they load", () -> {
+            CatalogViews views = new CatalogViews(new BookCache(100), new SearchIndex(), null,
+                    new InventoryStats(5, 10), new IdAllocator(null, 10));
+            List<Book> books = Arrays.asList(new Book(1, "The Hobbit", "Tolkien", 3), new Book(2, "Dune", "Herbert", 4));
+            // A write lands while the catalog is being read: book 2 is gone and book 3 is new.
+            Iterable<Book> catalog = () -> new Iterator<Book>() {
+                private final Iterator<Book> in = books.iterator();
+
+                @Override
+                public boolean hasNext() {
+                    return in.hasNext();
+                }
+
+                @Override
+                public Book next() {
+                    Check.equal(null, views.cache(), "cache while loading");
+                    Check.equal(null, views.searchIndex(), "index while loading");
+                    Check.that(!views.isTaken(1), "ids unknown while loading");
+                    views.bookDeleted(2);
+                    views.bookSaved(new Book(3, "Hobbit Tales", "Other", 1));
+                    views.quantityChanged(1, 7);
+                    return in.next();
+                }
+            };
+            views.load(null, catalog);
+            Check.that(views.isLoaded(), "loaded");
+            Check.equal(null, views.cache().get(2), "deleted book");
+            Check.equal("Hobbit Tales", views.cache().get(3).getTitle(), "saved book");
+            Check.equal(7, views.cache().get(1).getQty(), "quantity");
+            Check.equal(Arrays.asList(1, 3), ids(views.searchIndex().searchTitle("hobbit", Integer.MIN_VALUE, 5)), "index");
+            Check.equal(2, views.stats().size(), "reports");
+            Check.that(views.isTaken(3) && !views.isTaken(2), "ids");
+            views.bookSaved(new Book(4, "Emma", "Austen", 1));
+            Check.that(views.isTaken(4), "changes after loading");
+        });
+        Check.run("views that fail to load stay unloaded and load again later", () -> {
+            CatalogViews views = new CatalogViews(new BookCache(100), null, null, null, new IdAllocator(null, 10));
+            Iterable<Book> broken = () -> {
+                throw new IllegalStateException("unreadable");
+            };
+            try {
+                views.load(null, broken);
+                Check.that(false, "load should fail");
+            } catch (IllegalStateException expected) {
+                // The views stay unloaded.
+            }
+            views.bookSaved(new Book(9, "Lost", "Nobody", 1));
+            Check.that(!views.isLoaded() && views.cache() == null, "unloaded after failure");
+            views.load(null, Arrays.asList(new Book(1, "Emma", "Austen", 1)));
+            Check.equal(1, views.cache().size(), "only the books read");
+        });
+        Check.run("embedded ids handed out before loading start after the highest id", () -> {
+            Path dir = Files.createTempDirectory("mapped");
+            MappedBookRepository store = new MappedBookRepository(dir.resolve("books.db"), true, 1L << 30);
+            try {
+                for (int id : new int[] {5, 40, 12}) {
+                    store.insert(new Book(id, "Title " + id, "Author", 1));
+                }
+                IdAllocator ids = new IdAllocator(null, 10);
+                ids.startAfterHighest(store);
+                Check.equal(41, ids.next(), "first id");
+                ids.load(store);
+                Check.equal(42, ids.next(), "next id after loading");
+                Check.equal(3, ids.size(), "ids loaded");
+            } finally {
+                store.close();
+                MappedRecoveryTest.delete(dir);
+            }
+        });
+    }
+
+    private static List<Integer> ids(List<Book> books) {
+        List<Integer> ids = new ArrayList<>();
+        for (Book book : books) {
+            ids.add(book.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,37 @@
+import java.util.Objects;
+
+/**
+ * Assertions for the checks under test/. Each check class has a main method that throws
+ * {@link AssertionError} on the first failure, so a run either prints every "ok" line or stops
+ * with the failing expectation.
+ */
+final class Check {
+
+    private Check() {
+    }
+
+    static void that(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void equal(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    /**
+     * Runs one named check and prints "ok" with its name once it passes.
+     */
+    static void run(String name, Body body) throws Exception {
+        body.run();
+        System.out.println("ok " + name);
+    }
+
+    @FunctionalInterface
+    interface Body {
+        void run() throws Exception;
+    }
+}
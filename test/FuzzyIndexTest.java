@@ -0,0 +1,33 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the ranking of {@link FuzzyIndex}: fewest typos first, then closest length, then id.
+ */
+public class FuzzyIndexTest {
+
+    public static void main(String[] args) throws Exception {
+        Check.run("fuzzy search breaks a tie on typos by id", () -> {
+            FuzzyIndex index = new FuzzyIndex(10, 2);
+            // One typo each, in different words, and the same length: the lower id ranks first,
+            // although it is found on a later pass over the first word's matches.
+            index.build(Arrays.asList(
+                    new Book(2, "Harry Pottr", "Author", 1),
+                    new Book(1, "Hary Potter", "Author", 1)));
+            List<Book> best = index.searchTitle("harry potter", 1);
+            Check.equal(1, best.size(), "results");
+            Check.equal(1, best.get(0).getId(), "best match");
+            List<Book> both = index.searchTitle("harry potter", 2);
+            Check.equal(1, both.get(0).getId(), "first of two");
+            Check.equal(2, both.get(1).getId(), "second of two");
+        });
+        Check.run("fuzzy search ranks fewer typos first", () -> {
+            FuzzyIndex index = new FuzzyIndex(10, 2);
+            index.build(Arrays.asList(
+                    new Book(1, "The Lord of the Rigns", "J.R.R. Tolkein", 1),
+                    new Book(2, "The Lord of the Rings", "J.R.R. Tolkien", 1)));
+            Check.equal(2, index.searchAuthor("tolkien", 2).get(0).getId(), "exact author first");
+            Check.equal(1, index.searchTitle("lord rigns", 2).get(0).getId(), "exact title first");
+        });
+    }
+}
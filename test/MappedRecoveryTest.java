@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checks that {@link MappedBookRepository} recovers from a crash: the log is replayed over a file
+ * whose header is older than its slots and strings, and a rewrite interrupted by a crash is
+ * finished or dropped. A crash is simulated by copying the files of a store that is still open.
+ */
+public class MappedRecoveryTest {
+
+    public static void main(String[] args) throws Exception {
+        Check.run("mapped store replays its log over a stale header", () -> {
+            Path dir = Files.createTempDirectory("mapped");
+            Path crashed = Files.createTempDirectory("mapped-crash");
+            try {
+                Map<Integer, String> expected = new TreeMap<>();
+                MappedBookRepository store = open(dir);
+                for (int id = 1; id <= 3; id++) {
+                    put(store, expected, new Book(id, "Title " + id, "Author " + id, id));
+                }
+                store.close();
+                byte[] checkpointed = header(dir.resolve("books.db"));
+
+                store = open(dir);
+                put(store, expected, new Book(4, "Title 4", "Author 4", 4));
+                // Longer than before, so it takes new heap space past book 4.
+                put(store, expected, new Book(1, "A much longer title for book 1", "Author 1", 10));
+                store.delete(2);
+                expected.remove(2);
+                copyFiles(dir, crashed);
+                store.close();
+                // Only the header page reached the disk as of the last checkpoint.
+                writeHeader(crashed.resolve("books.db"), checkpointed);
+
+                store = open(crashed);
+                Check.equal(expected, read(store), "books after the replay");
+                put(store, expected, new Book(5, "Written after the replay", "Author 5", 5));
+                Check.equal(expected, read(store), "books after a write following the replay");
+                store.close();
+                store = open(crashed);
+                Check.equal(expected, read(store), "books after reopening");
+                store.close();
+            } finally {
+                delete(dir);
+                delete(crashed);
+            }
+        });
+        Check.run("mapped store grows and keeps every book", () -> {
+            Path dir = Files.createTempDirectory("mapped");
+            try {
+                Map<Integer, String> expected = new TreeMap<>();
+                MappedBookRepository store = open(dir);
+                // Past the initial 1024 slots and 64 KB of strings.
+                for (int id = 1; id <= 3000; id++) {
+                    put(store, expected, new Book(id, "Title of book number " + id, "Author " + id % 50, id % 7));
+                }
+                Check.equal(expected, read(store), "books after growing");
+                Check.that(!Files.exists(dir.resolve("books.db.tmp")), "no rewrite image left");
+                store.close();
+                store = open(dir);
+                Check.equal(expected, read(store), "books after reopening");
+                store.close();
+            } finally {
+                delete(dir);
+            }
+        });
+        Check.run("mapped store finishes a rewrite interrupted by a crash", () -> {
+            Path dir = Files.createTempDirectory("mapped");
+            Path crashed = Files.createTempDirectory("mapped-crash");
+            try {
+                Map<Integer, String> expected = new TreeMap<>();
+                MappedBookRepository store = open(dir);
+                put(store, expected, new Book(1, "One", "Author", 1));
+                put(store, expected, new Book(2, "Two", "Author", 2));
+                store.close();
+                Path image = Files.createTempFile("mapped", ".img");
+                Files.copy(dir.resolve("books.db"), image, StandardCopyOption.REPLACE_EXISTING);
+
+                store = open(dir);
+                put(store, expected, new Book(3, "Three", "Author", 3));
+                copyFiles(dir, crashed);
+                store.close();
+                // The copy of the complete image over the data file stopped half way.
+                try (FileChannel channel = FileChannel.open(crashed.resolve("books.db"), StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.allocate(4096), 0);
+                }
+                Files.move(image, crashed.resolve("books.db.tmp"));
+
+                store = open(crashed);
+                Check.equal(expected, read(store), "books after finishing the rewrite and the replay");
+                Check.that(!Files.exists(crashed.resolve("books.db.tmp")), "image removed");
+                store.close();
+
+                // An image without its header was never copied, so it is dropped.
+                Files.write(crashed.resolve("books.db.tmp"), new byte[100]);
+                store = open(crashed);
+                Check.equal(expected, read(store), "books with an incomplete image");
+                Check.that(!Files.exists(crashed.resolve("books.db.tmp")), "incomplete image removed");
+                store.close();
+            } finally {
+                delete(dir);
+                delete(crashed);
+            }
+        });
+    }
+
+    private static MappedBookRepository open(Path dir) throws Exception {
+        return new MappedBookRepository(dir.resolve("books.db"), true, 1L << 30);
+    }
+
+    private static void put(MappedBookRepository store, Map<Integer, String> expected, Book book) throws Exception {
+        if (!store.insert(book)) {
+            store.update(book);
+        }
+        expected.put(book.getId(), book.toString());
+    }
+
+    /**
+     * @return Every book, by id, as its toString (Book has no equals).
+     */
+    private static Map<Integer, String> read(MappedBookRepository store) throws Exception {
+        Map<Integer, String> books = new TreeMap<>();
+        for (Book book : SearchIndex.readCatalog(store)) {
+            books.put(book.getId(), book.toString());
+        }
+        return books;
+    }
+
+    private static byte[] header(Path file) throws IOException {
+        byte[] header = new byte[64];
+        System.arraycopy(Files.readAllBytes(file), 0, header, 0, header.length);
+        return header;
+    }
+
+    private static void writeHeader(Path file, byte[] header) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(header), 0);
+        }
+    }
+
+    private static void copyFiles(Path from, Path to) throws IOException {
+        for (String name : new String[] {"books.db", "books.db.wal"}) {
+            Files.copy(from.resolve(name), to.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
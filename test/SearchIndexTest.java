@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that {@link SearchIndex} returns matches in id order, one page at a time.
+ */
+public class SearchIndexTest {
+
+    public static void main(String[] args) throws Exception {
+        Check.run("index search pages through the matches in id order", () -> {
+            SearchIndex index = new SearchIndex();
+            List<Book> catalog = new ArrayList<>();
+            for (int id = 1; id <= 50; id++) {
+                // "lord" and "lords" both match the prefix "lord"; every third book has both.
+                String title = id % 3 == 0 ? "Lords of the Lord " + id : id % 2 == 0 ? "The Lord " + id : "Rings " + id;
+                catalog.add(new Book(id, title, "Author " + (id % 5), id));
+            }
+            index.build(catalog);
+            List<Integer> expected = new ArrayList<>();
+            for (Book book : catalog) {
+                if (book.getTitle().startsWith("Lords") || book.getTitle().startsWith("The Lord")) {
+                    expected.add(book.getId());
+                }
+            }
+            List<Integer> paged = new ArrayList<>();
+            int fromId = Integer.MIN_VALUE;
+            while (true) {
+                List<Book> page = index.searchTitle("lord", fromId, 4);
+                Check.that(page.size() <= 4, "page size " + page.size());
+                for (Book book : page) {
+                    paged.add(book.getId());
+                }
+                if (page.size() < 4) {
+                    break;
+                }
+                fromId = page.get(page.size() - 1).getId() + 1;
+            }
+            Check.equal(expected, paged, "ids over all pages");
+            Check.equal(expected.size(), index.countTitle("lord"), "count");
+            Check.equal(Arrays.asList(6, 8), ids(index.searchTitle("lord", 5, 2)), "page from id 5");
+            Check.equal(Arrays.asList(3, 6), ids(index.searchTitle("lord of", Integer.MIN_VALUE, 2)), "two words");
+            Check.equal(Arrays.asList(5, 10, 15), ids(index.searchAuthor("author 0", Integer.MIN_VALUE, 3)), "author");
+            Check.equal(null, index.searchTitle("  ", Integer.MIN_VALUE, 3), "no words");
+            Check.equal(0, index.searchTitle("nothing", Integer.MIN_VALUE, 3).size(), "no match");
+        });
+        Check.run("index search follows saved and deleted books", () -> {
+            SearchIndex index = new SearchIndex();
+            index.build(Arrays.asList(new Book(1, "The Hobbit", "Tolkien", 1), new Book(2, "Hobbit Tales", "Other", 1)));
+            index.bookSaved(new Book(1, "Silmarillion", "Tolkien", 1));
+            Check.equal(Arrays.asList(2), ids(index.searchTitle("hobbit", Integer.MIN_VALUE, 10)), "after renaming");
+            index.quantityChanged(1, 7);
+            Check.equal(7, index.searchTitle("silm", Integer.MIN_VALUE, 10).get(0).getQty(), "new quantity");
+            index.bookDeleted(2);
+            Check.equal(0, index.countTitle("hobbit"), "after deleting");
+        });
+    }
+
+    private static List<Integer> ids(List<Book> books) {
+        List<Integer> ids = new ArrayList<>();
+        for (Book book : books) {
+            ids.add(book.getId());
+        }
+        return ids;
+    }
+}
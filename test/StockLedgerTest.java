@@ -0,0 +1,83 @@
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * Checks that {@link StockLedger} writes accepted sales on flush and on close, and refuses sales
+ * once closed. Runs over the embedded storage in a temporary file.
+ */
+public class StockLedgerTest {
+
+    public static void main(String[] args) throws Exception {
+        Check.run("ledger flushes sales and restocks", () -> withStore(store -> {
+            store.insert(new Book(1, "Title", "Author", 10));
+            StockLedger ledger = new StockLedger(null, new ArrayList<>(), 3_600_000L, store);
+            Check.equal(7, ledger.adjust(1, -3), "after the sale");
+            Check.equal(9, ledger.adjust(1, 2), "after the restock");
+            Check.equal(StockLedger.INSUFFICIENT_STOCK, ledger.adjust(1, -10), "oversale");
+            Check.equal(10, store.findById(1).getQty(), "not written before the flush");
+            Check.equal(1, ledger.flush(), "books flushed");
+            Check.equal(9, store.findById(1).getQty(), "written by the flush");
+            Check.equal(0, ledger.flush(), "nothing left to flush");
+            ledger.close();
+        }));
+        Check.run("ledger writes on close and then refuses sales", () -> withStore(store -> {
+            store.insert(new Book(1, "Title", "Author", 10));
+            StockLedger ledger = new StockLedger(null, new ArrayList<>(), 3_600_000L, store);
+            ledger.adjust(1, -4);
+            ledger.close();
+            Check.equal(6, store.findById(1).getQty(), "written by close");
+            try {
+                ledger.adjust(1, -1);
+                throw new AssertionError("expected the closed ledger to refuse the sale");
+            } catch (SQLException e) {
+                // Refused.
+            }
+            Check.equal(0, ledger.flush(), "flush after close");
+            Check.equal(6, store.findById(1).getQty(), "unchanged after close");
+        }));
+        Check.run("ledger drops a sale the database refuses and reloads the stock", () -> withStore(store -> {
+            store.insert(new Book(1, "Title", "Author", 10));
+            StockLedger ledger = new StockLedger(null, new ArrayList<>(), 3_600_000L, store);
+            ledger.adjust(1, -8);
+            // Lowered elsewhere, below what was sold here.
+            store.update(new Book(1, "Title", "Author", 3));
+            Check.equal(1, ledger.flush(), "books flushed");
+            Check.equal(3, store.findById(1).getQty(), "refused change not written");
+            Check.equal(3, ledger.available(1), "available taken from the row");
+            Check.equal(0, ledger.flush(), "the refused change is not retried");
+            ledger.close();
+        }));
+        Check.run("ledger never takes a saved row below zero", () -> withStore(store -> {
+            store.insert(new Book(1, "Title", "Author", 10));
+            StockLedger ledger = new StockLedger(null, new ArrayList<>(), 3_600_000L, store);
+            ledger.adjust(1, -5);
+            ledger.bookSaved(new Book(1, "Title", "Author", 2));
+            Check.equal(0, ledger.available(1), "available after the update");
+            Check.equal(StockLedger.INSUFFICIENT_STOCK, ledger.adjust(1, -1), "nothing left to sell");
+            ledger.close();
+        }));
+    }
+
+    interface StoreBody {
+        void run(MappedBookRepository store) throws Exception;
+    }
+
+    static void withStore(StoreBody body) throws Exception {
+        Path dir = Files.createTempDirectory("ledger");
+        MappedBookRepository store = new MappedBookRepository(dir.resolve("books.db"), false, 1 << 20);
+        try {
+            body.run(store);
+        } finally {
+            store.close();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+}
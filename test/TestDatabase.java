@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory H2 databases in MySQL mode for the checks that need SQL. A database lives until the
+ * JVM exits, so several connections can share it; {@link #create(String)} gives it the tables
+ * of schema.sql afresh.
+ */
+final class TestDatabase {
+
+    private static final Pattern TABLE = Pattern.compile("CREATE TABLE (\\w+)");
+
+    private TestDatabase() {
+    }
+
+    /**
+     * Opens a connection to the named database after dropping its tables and running schema.sql.
+     */
+    static Connection create(String name) throws IOException, SQLException {
+        String script = new String(Files.readAllBytes(Paths.get("schema.sql")), StandardCharsets.UTF_8);
+        Connection connection = connect(name);
+        try (Statement stmt = connection.createStatement()) {
+            Matcher table = TABLE.matcher(script);
+            while (table.find()) {
+                stmt.executeUpdate("DROP TABLE IF EXISTS " + table.group(1));
+            }
+            for (String sql : script.split(";")) {
+                if (!sql.trim().isEmpty()) {
+                    stmt.executeUpdate(sql);
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Opens another connection to a database made by {@link #create(String)}.
+     */
+    static Connection connect(String name) throws SQLException {
+        return DriverManager.getConnection("jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+    }
+}
@@ -0,0 +1,130 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that tombstones are kept while a registered reader may still need them and deleted
+ * after, that a snapshot older than the horizon is refused, and that a feed whose registration
+ * expired reads the catalog again. Runs against H2 in MySQL mode.
+ */
+public class TombstoneRetentionTest {
+
+    private static final long HOUR = 3_600_000L;
+
+    public static void main(String[] args) throws Exception {
+        Check.run("tombstones are pruned up to the oldest reader", () -> {
+            try (Connection connection = TestDatabase.create("retention");
+                 BookStatements writer = new BookStatements(connection, 0)) {
+                Check.equal(0L, CatalogVersion.register(connection, "a"), "horizon of a new database");
+                CatalogVersion.register(connection, "b");
+                writer.delete(3001);
+                long first = writer.stampPending();
+                writer.delete(3002);
+                long second = writer.stampPending();
+                CatalogVersion.reading(connection, "a", first);
+                CatalogVersion.reading(connection, "b", second);
+                Check.equal(first, CatalogVersion.prune(connection, HOUR), "horizon at the oldest reader");
+                Check.equal(1L, count(connection, "book_tombstones"), "tombstone after it kept");
+                // b stopped reporting long ago; a has seen everything.
+                update(connection, "UPDATE catalog_readers SET seen = 0 WHERE name = 'b'");
+                CatalogVersion.reading(connection, "a", second);
+                Check.equal(second, CatalogVersion.prune(connection, HOUR), "horizon after b expired");
+                Check.equal(0L, count(connection, "book_tombstones"), "tombstones left");
+                Check.equal(1L, count(connection, "catalog_readers"), "readers left");
+                Check.that(!CatalogVersion.reading(connection, "b", second), "expired reader removed");
+            }
+        });
+        Check.run("a running feed keeps the tombstones it has not read", () -> {
+            try (Connection connection = TestDatabase.create("retention");
+                 BookStatements writer = new BookStatements(connection, 0)) {
+                List<Integer> deleted = new ArrayList<>();
+                try (ChangeFeed feed = new ChangeFeed(new BookStatements(TestDatabase.connect("retention"), 0),
+                        Collections.singletonList(deletes(deleted)), 0, HOUR, null)) {
+                    writer.delete(3001);
+                    writer.stampPending();
+                    CatalogVersion.prune(connection, HOUR);
+                    feed.refresh();
+                    Check.equal(Collections.singletonList(3001), deleted, "delete passed on");
+                }
+                CatalogVersion.prune(connection, HOUR);
+                Check.equal(0L, count(connection, "book_tombstones"), "pruned once the feed closed");
+            }
+        });
+        Check.run("a snapshot older than the horizon is refused", () -> {
+            Path file = Files.createTempFile("catalog", ".snap");
+            try (Connection connection = TestDatabase.create("retention");
+                 BookStatements writer = new BookStatements(connection, 0)) {
+                writer.stampPending();
+                CatalogSnapshot snapshot = new CatalogSnapshot(file, 0);
+                snapshot.write(writer);
+                long version = snapshot.getVersion();
+                long incarnation = writer.incarnation();
+                Check.that(snapshot.load(incarnation, version + 1, version) != null, "loaded at the horizon");
+                Check.that(snapshot.load(incarnation, version + 1, version + 1) == null, "refused past it");
+                snapshot.close();
+            } finally {
+                Files.delete(file);
+            }
+        });
+        Check.run("a feed whose registration expired reads the catalog again", () -> {
+            try (Connection connection = TestDatabase.create("retention");
+                 BookStatements writer = new BookStatements(connection, 0)) {
+                List<Integer> deleted = new ArrayList<>();
+                int[] reloads = {0};
+                try (ChangeFeed feed = new ChangeFeed(new BookStatements(TestDatabase.connect("retention"), 0),
+                        Collections.singletonList(deletes(deleted)), 0, HOUR, null)) {
+                    feed.onReload(catalog -> {
+                        Check.equal(null, catalog.findById(3001), "reload sees the delete");
+                        reloads[0]++;
+                    });
+                    writer.delete(3001);
+                    long version = writer.stampPending();
+                    // As if the feed had not reported within the retention period.
+                    update(connection, "DELETE FROM catalog_readers");
+                    Check.equal(version, CatalogVersion.prune(connection, HOUR), "horizon");
+                    feed.refresh();
+                    Check.equal(1, reloads[0], "reloads");
+                    Check.equal(version, feed.getVersion(), "feed continues after the reload");
+                    Check.equal(Collections.emptyList(), deleted, "nothing passed on twice");
+                }
+            }
+        });
+    }
+
+    private static CatalogListener deletes(List<Integer> deleted) {
+        return new CatalogListener() {
+            @Override
+            public void bookSaved(Book book) {
+            }
+
+            @Override
+            public void bookDeleted(int id) {
+                deleted.add(id);
+            }
+
+            @Override
+            public void quantityChanged(int id, int qty) {
+            }
+        };
+    }
+
+    private static long count(Connection connection, String table) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static void update(Connection connection, String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(sql);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the JDBC write paths against H2 in MySQL mode: single writes, conditional writes,
+ * quantity batches, imports and batch scripts, and that {@link ChangeFeed} passes each of them
+ * on once it stamps them.
+ */
+public class WritePathTest {
+
+    /**
+     * Keeps the last save of each book and the deleted ids, as a feed passes them on.
+     */
+    private static final class Recorder implements CatalogListener {
+        final Map<Integer, Book> saved = new HashMap<>();
+        final List<Integer> deleted = new ArrayList<>();
+
+        @Override
+        public void bookSaved(Book book) {
+            saved.put(book.getId(), book);
+        }
+
+        @Override
+        public void bookDeleted(int id) {
+            deleted.add(id);
+        }
+
+        @Override
+        public void quantityChanged(int id, int qty) {
+        }
+    }
+
+    @FunctionalInterface
+    private interface Body {
+        void run(BookStatements writer, ChangeFeed feed, Recorder seen) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Check.run("single writes leave the counter alone until a feed stamps them", () -> withDatabase(
+                (writer, feed, seen) -> {
+            long start = writer.currentVersion();
+            Check.that(writer.insert(new Book(1, "Dune", "Frank Herbert", 5)), "inserted");
+            Check.equal(writer.lastVersion(), writer.findById(1).getVersion(), "version token of the row");
+            Check.that(!writer.insert(new Book(1, "Dune", "Frank Herbert", 5)), "duplicate id refused");
+            Check.that(writer.update(new Book(1, "Dune", "Frank Herbert", 6)), "updated");
+            Check.that(!writer.update(new Book(99, "Missing", "Nobody", 1)), "no book to update");
+            Check.equal(start, writer.currentVersion(), "counter after single writes");
+            // The five books of schema.sql are pending too.
+            Check.equal(6, feed.refresh(), "changes passed on");
+            Check.equal(start + 1, feed.getVersion(), "one stamp for every pending write");
+            Check.equal(6, seen.saved.get(1).getQty(), "latest quantity passed on");
+            Check.equal(0, feed.refresh(), "nothing new");
+            Check.equal(start + 1, writer.currentVersion(), "no stamp without pending writes");
+        }));
+        Check.run("conditional writes compare the version token", () -> withDatabase((writer, feed, seen) -> {
+            writer.insert(new Book(1, "Dune", "Frank Herbert", 5));
+            Book read = writer.findById(1);
+            writer.update(read.withQty(4));
+            Check.that(!writer.updateIfUnchanged(read, read.withQty(3)), "stale update refused");
+            Check.that(!writer.deleteIfUnchanged(read), "stale delete refused");
+            Book current = writer.findById(1);
+            Check.that(writer.updateIfUnchanged(current, current.withId(2)), "moved to a new id");
+            Check.equal(null, writer.findById(1), "old id gone");
+            Check.equal(writer.lastVersion(), writer.findById(2).getVersion(), "version token of the moved row");
+            feed.refresh();
+            Check.equal(Collections.singletonList(1), seen.deleted, "tombstone of the old id");
+            Check.equal(4, seen.saved.get(2).getQty(), "moved book passed on");
+            Check.that(writer.deleteIfUnchanged(writer.findById(2)), "deleted");
+            Check.that(!writer.delete(2), "nothing left to delete");
+            feed.refresh();
+            Check.equal(Arrays.asList(1, 2), seen.deleted, "tombstone of the delete");
+        }));
+        Check.run("quantity batches skip changes below zero", () -> withDatabase((writer, feed, seen) -> {
+            int[] counts = writer.addToQty(Arrays.asList(3001, 3002), Arrays.asList(-5, -100));
+            Check.equal("[1, 0]", Arrays.toString(counts), "update counts");
+            Book book = writer.findById(3001);
+            Check.equal(25, book.getQty(), "quantity after the batch");
+            Check.equal(writer.lastVersion(), book.getVersion(), "version token of the batch");
+            feed.refresh();
+            Check.equal(25, seen.saved.get(3001).getQty(), "quantity passed on");
+        }));
+        Check.run("imports and scripts stamp their rows when they commit", () -> withDatabase(
+                (writer, feed, seen) -> {
+            feed.refresh();
+            Path file = Files.createTempFile("import", ".csv");
+            try {
+                Files.write(file, ("id,title,author,qty\n"
+                        + "1,\"Poems,\nVolume One\",A. Poet,3\n"
+                        + "2,Plain,Writer,4\n"
+                        + "3001,Already there,Writer,1\n").getBytes(StandardCharsets.UTF_8));
+                Recorder imported = new Recorder();
+                BulkImporter importer = new BulkImporter(writer.getConnection(), 2, 2, 1,
+                        BulkImporter.OnDuplicate.SKIP, Collections.singletonList(imported));
+                BulkImporter.Result result = importer.importFile(file);
+                Check.equal(2L, result.getInserted(), "rows imported");
+                Check.equal(1L, result.skipped, "existing id skipped");
+                Check.equal("Poems,\nVolume One", writer.findById(1).getTitle(), "quoted line break");
+                Check.equal(writer.findById(1).getVersion(), imported.saved.get(1).getVersion(),
+                        "listeners get the version token of the row");
+            } finally {
+                Files.delete(file);
+            }
+            Check.equal(2, feed.refresh(), "imported rows passed on");
+            Check.that(seen.saved.containsKey(2), "imported book passed on");
+
+            String script = "{\"op\":\"enter\",\"id\":10,\"title\":\"Emma\",\"author\":\"Jane Austen\",\"qty\":2}\n"
+                    + "{\"op\":\"update\",\"id\":3002,\"qty\":7}\n"
+                    + "{\"op\":\"delete\",\"id\":3003}\n";
+            StringWriter out = new StringWriter();
+            BatchRunner.Result result = new BatchRunner(writer, 2, 2).run(
+                    new BufferedReader(new StringReader(script)), out);
+            Check.equal(3L, result.ok, "commands applied: " + out);
+            Check.equal(3, feed.refresh(), "script changes passed on");
+            Check.equal(7, seen.saved.get(3002).getQty(), "updated by the script");
+            Check.that(seen.saved.containsKey(10), "entered by the script");
+            Check.equal(Collections.singletonList(3003), seen.deleted, "deleted by the script");
+        }));
+        Check.run("ledger ignores a row read before its flush", () -> withDatabase((writer, feed, seen) -> {
+            try (BookStatements own = new BookStatements(TestDatabase.connect("writes"), 0)) {
+                StockLedger ledger = new StockLedger(null, new ArrayList<>(), 3_600_000L, own);
+                Book before = writer.findById(3001);
+                Check.equal(27, ledger.adjust(3001, -3), "after the sale");
+                ledger.flush();
+                ledger.bookSaved(before);
+                Check.equal(27, ledger.available(3001), "stale row ignored");
+                writer.update(before.withQty(50));
+                ledger.bookSaved(writer.findById(3001));
+                Check.equal(50, ledger.available(3001), "later write taken");
+                ledger.close();
+            }
+        }));
+    }
+
+    /**
+     * Runs a check over a fresh database, with statements to write through and a feed that
+     * passes the changes to a recorder.
+     */
+    private static void withDatabase(Body body) throws Exception {
+        try (Connection connection = TestDatabase.create("writes");
+             BookStatements writer = new BookStatements(connection, 0)) {
+            Recorder seen = new Recorder();
+            try (ChangeFeed feed = new ChangeFeed(new BookStatements(TestDatabase.connect("writes"), 0),
+                    Collections.singletonList(seen), 0, 3_600_000L, null)) {
+                body.run(writer, feed, seen);
+            }
+        }
+    }
+}